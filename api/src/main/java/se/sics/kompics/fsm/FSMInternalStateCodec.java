@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import java.nio.ByteBuffer;
+import se.sics.kompics.fsm.id.FSMIdentifier;
+import se.sics.kompics.util.Identifier;
+
+/**
+ * Binary form of the instances of an fsm definition - base id and internal state - for snapshots.
+ * <p>
+ * Encoding writes at the position of the buffer and may throw BufferOverflowException, in which case it is retried
+ * with a larger buffer. Decoding reads exactly what encoding wrote and is called from several threads at once.
+ */
+public interface FSMInternalStateCodec<IS extends FSMInternalState> {
+
+  public void encodeBaseId(Identifier baseId, ByteBuffer buf);
+
+  public Identifier decodeBaseId(ByteBuffer buf) throws FSMException;
+
+  public void encode(IS is, ByteBuffer buf);
+
+  public IS decode(FSMIdentifier fsmId, ByteBuffer buf) throws FSMException;
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import se.sics.kompics.fsm.id.FSMIdentifier;
+
+/**
+ * Internal state builder whose states are reused by new instances, when the MultiFSM pools its instances
+ * (MultiFSMConfig.setPool). The MultiFSM calls both from the thread of its component.
+ */
+public interface FSMRecyclableStateBuilder extends FSMInternalStateBuilder {
+
+  /**
+   * Called when the instance owning {@code is} was killed and pooled - drop what {@code is} references, it is not
+   * used again until reset. Nothing else may hold on to {@code is} past its kill.
+   *
+   * @return false if {@code is} can't be reused, it is then left to the gc
+   */
+  public boolean recycle(FSMInternalState is);
+
+  /**
+   * Called in place of newState with a state recycle accepted.
+   *
+   * @return {@code is}, as newState(fsmId) would have built it
+   */
+  public FSMInternalState reset(FSMInternalState is, FSMIdentifier fsmId);
+}
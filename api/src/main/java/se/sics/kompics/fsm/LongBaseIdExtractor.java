@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import se.sics.kompics.KompicsEvent;
+import se.sics.kompics.util.Identifier;
+
+/**
+ * Extractor for base ids that map one to one onto a long (int/long counters and the like). A MultiFSM built with
+ * such an extractor keeps its instances in a primitive keyed map and routes events on the long key, without boxing,
+ * hashing or comparing Identifier objects. The Identifier of the base id is only extracted (fromEvent) when an
+ * instance is created.
+ * <p>
+ * The long keys must be consistent with the Identifiers: fromEvent(e) equal to baseId iff keyFromEvent(e) == key(baseId).
+ */
+public interface LongBaseIdExtractor extends BaseIdExtractor {
+
+  /**
+   * reserved - returned by keyFromEvent for events without a base id. Not a valid key.
+   */
+  public static final long NO_ID = Long.MIN_VALUE;
+
+  public long keyFromEvent(KompicsEvent event) throws FSMException;
+
+  public long key(Identifier baseId);
+}
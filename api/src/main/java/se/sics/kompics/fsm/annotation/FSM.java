@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import se.sics.kompics.fsm.FSMStateName;
+
+/**
+ * Class holding the event handlers of an fsm definition, as static methods annotated with OnEvent or OnPattern. The
+ * fsm annotation processor (processor module) generates a <i>Class</i>Dispatcher next to it, whose semanticDef()
+ * takes the place of the one built by hand with FSMBuilder. Nested classes get <i>Outer_Inner</i>Dispatcher.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface FSM {
+
+  /**
+   * @return the enum whose constants the handlers name in their states - "START" is FSMBasicStateNames.START
+   */
+  Class<? extends FSMStateName> states();
+}
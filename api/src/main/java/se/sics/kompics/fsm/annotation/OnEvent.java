@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import se.sics.kompics.PortType;
+
+/**
+ * Handler of a basic event, in a class annotated with FSM. The method is static and has the signature of
+ * FSMBasicEventHandler.handle - FSMStateName m(FSMStateName state, ES es, IS is, E event) - the event type being
+ * the type of its last parameter.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.METHOD)
+public @interface OnEvent {
+
+  Class<? extends PortType> port();
+
+  /**
+   * @return true for a request, received on a port the component provides - false for an indication, received on a
+   * port it requires
+   */
+  boolean negative() default false;
+
+  /**
+   * @return names of the constants of FSM.states() the handler is subscribed in, or "START"
+   */
+  String[] states() default {};
+
+  /**
+   * @return true if this is the fallback handler of the event, called in states without a handler for it - states
+   * are then left empty
+   */
+  boolean fallback() default false;
+}
@@ -33,6 +33,9 @@ public class FSMIdentifier implements Identifier {
     this.baseId = baseId;
   }
 
+  /**
+   * Correlated for sequential base ids - use the FSMPartitioner of the FSMIdentifierFactory to spread instances.
+   */
   @Override
   public int partition(int nrPartitions) {
     long longP = fsmDefId.partition(nrPartitions);
@@ -69,6 +69,11 @@ public interface FSMIdentifierFactory {
       return id.fsmDefId;
     }
 
+    @Override
+    public FSMPartitioner partitioner() {
+      return FSMPartitioner.MIX64;
+    }
+
     @Override
     public void reset() {
       reservedFSMDIds.clear();
@@ -82,6 +87,11 @@ public interface FSMIdentifierFactory {
   public FSMIdentifier getFSMId(Identifier fsmDefId, Identifier baseId);
   
   public Identifier getFSMDefId(Identifier fsmId);
+
+  /**
+   * how instances of fsms with ids from this factory are spread over shards
+   */
+  public FSMPartitioner partitioner();
   
   public void reset();
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.id;
+
+import se.sics.kompics.util.Identifier;
+
+/**
+ * Maps fsm instances to one of nrPartitions partitions - shards of a component, nodes.
+ */
+public interface FSMPartitioner {
+
+  /**
+   * FSMIdentifier.partition - the sum of the identifier partitions. Correlated for sequential base ids and small
+   * def ids, kept for compatibility.
+   */
+  public static final FSMPartitioner MODULO = new FSMPartitioner() {
+    @Override
+    public int partition(Identifier fsmDefId, Identifier baseId, int nrPartitions) {
+      return (int) (((long) fsmDefId.partition(nrPartitions) + baseId.partition(nrPartitions)) % nrPartitions);
+    }
+  };
+
+  /**
+   * Mixed 64 bit hash of both identifier hash codes, reduced to the range by multiplication. Balanced, but changing
+   * nrPartitions moves about half of the instances.
+   */
+  public static final FSMPartitioner MIX64 = new FSMPartitioner() {
+    @Override
+    public int partition(Identifier fsmDefId, Identifier baseId, int nrPartitions) {
+      long h = Hash.of(fsmDefId, baseId);
+      return (int) (((h >>> 32) * nrPartitions) >>> 32);
+    }
+  };
+
+  /**
+   * Jump consistent hash (Lamping, Veach) of the mixed hash. Balanced, and growing from n to n+1 partitions only
+   * moves 1/(n+1) of the instances. Costs O(log nrPartitions).
+   */
+  public static final FSMPartitioner JUMP = new FSMPartitioner() {
+    @Override
+    public int partition(Identifier fsmDefId, Identifier baseId, int nrPartitions) {
+      long key = Hash.of(fsmDefId, baseId);
+      long b = -1;
+      long j = 0;
+      while (j < nrPartitions) {
+        b = j;
+        key = key * 2862933555777941757L + 1;
+        j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+      }
+      return (int) b;
+    }
+  };
+
+  public int partition(Identifier fsmDefId, Identifier baseId, int nrPartitions);
+
+  public static class Hash {
+
+    private Hash() {
+    }
+
+    public static long of(Identifier fsmDefId, Identifier baseId) {
+      return mix64(((long) fsmDefId.hashCode() << 32) ^ (baseId.hashCode() & 0xffffffffL));
+    }
+
+    /**
+     * murmur3 64 bit finalizer - every input bit affects every output bit
+     */
+    public static long mix64(long h) {
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return h;
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import org.slf4j.LoggerFactory;
+import se.sics.kompics.ClassMatchedHandler;
+import se.sics.kompics.Handler;
+import se.sics.kompics.fsm.FSMBuilder;
+import se.sics.kompics.fsm.FSMDiagnosticContext;
+import se.sics.kompics.fsm.FSMException;
+import se.sics.kompics.fsm.MultiFSM;
+import se.sics.kompics.fsm.core.IntId;
+
+/**
+ * Guards the steady state dispatch path against allocation regressions: an event routed to a live instance and
+ * handled in its current state (with or without a transition) should not allocate. Bytes are measured with the per
+ * thread allocation counter of the jvm, after a warmup that gets the path compiled.
+ * <p>
+ * Guarded with the diagnostic context OFF, and LAZY with the MultiFSM logger above debug - the production modes. FULL,
+ * the default, puts the fsm strings in the MDC on every event and allocates whatever the slf4j MDC adapter does, so it
+ * is not guarded.
+ * <p>
+ * Exits with a non zero code if a path allocates. Runs as part of the benchmarks module build (mvn verify),
+ * -Dallocation.guard.skip skips it.
+ */
+public class AllocationGuard {
+
+  private static final int INSTANCES = 1024;
+  private static final int WARMUP_EVENTS = 2000000;
+  private static final int MEASURED_EVENTS = 1000000;
+  //a few bytes over a million events are jit/safepoint noise, not a per event allocation
+  private static final long TOLERANCE_BYTES = 1024;
+
+  private final com.sun.management.ThreadMXBean threads
+    = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+  private final DispatchFSM.Keys keys;
+  private final FSMDiagnosticContext diagnosticContext;
+  private final MultiFSM multiFSM;
+  private final Handler<DispatchEvent.Hit> hit;
+  private final Handler<DispatchEvent.Toggle> toggle;
+  private final ClassMatchedHandler patternHit;
+  private final DispatchEvent.Hit[] hits = new DispatchEvent.Hit[INSTANCES];
+  private final DispatchEvent.Toggle[] toggles = new DispatchEvent.Toggle[INSTANCES];
+  private final DispatchEvent.Envelope[] envelopes = new DispatchEvent.Envelope[INSTANCES];
+
+  public AllocationGuard(DispatchFSM.Keys keys, FSMDiagnosticContext diagnosticContext) {
+    this.keys = keys;
+    this.diagnosticContext = diagnosticContext;
+    BenchmarkProxy proxy = BenchmarkProxy.instance();
+    DispatchFSM.ExternalState es = new DispatchFSM.ExternalState();
+    es.setProxy(proxy.componentProxy());
+    try {
+      multiFSM = DispatchFSM.multifsm(BenchmarkSetup.fsmIdFactory(DispatchFSM.NAME), es,
+        FSMBuilder.multiFSMConfig().setDiagnosticContext(diagnosticContext), keys);
+    } catch (FSMException ex) {
+      throw new RuntimeException(ex);
+    }
+    multiFSM.setupHandlers();
+    hit = proxy.basicHandler(DispatchEvent.Hit.class);
+    toggle = proxy.basicHandler(DispatchEvent.Toggle.class);
+    patternHit = proxy.patternHandler(DispatchEvent.Hit.class, DispatchEvent.Envelope.class);
+    for (int i = 0; i < INSTANCES; i++) {
+      IntId baseId = new IntId(i);
+      hits[i] = new DispatchEvent.Hit(baseId);
+      toggles[i] = new DispatchEvent.Toggle(baseId);
+      envelopes[i] = new DispatchEvent.Envelope(hits[i]);
+      hit.handle(hits[i]);
+    }
+  }
+
+  private enum Path {
+    BASIC_HIT_IN_STATE,
+    BASIC_TRANSITION,
+    PATTERN_HIT_IN_STATE
+  }
+
+  private void run(Path path, int events) {
+    for (int i = 0; i < events; i++) {
+      int idx = i & (INSTANCES - 1);
+      switch (path) {
+        case BASIC_HIT_IN_STATE:
+          hit.handle(hits[idx]);
+          break;
+        case BASIC_TRANSITION:
+          toggle.handle(toggles[idx]);
+          break;
+        case PATTERN_HIT_IN_STATE:
+          patternHit.handle(envelopes[idx].content, envelopes[idx]);
+          break;
+        default:
+          throw new IllegalArgumentException("unknown path:" + path);
+      }
+    }
+  }
+
+  private long allocated(Path path) {
+    run(path, WARMUP_EVENTS);
+    long threadId = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(threadId);
+    run(path, MEASURED_EVENTS);
+    return threads.getThreadAllocatedBytes(threadId) - before;
+  }
+
+  /**
+   * @return the paths that allocate, empty if none does
+   */
+  public String check() {
+    if (!threads.isThreadAllocatedMemorySupported()) {
+      System.out.println("thread allocation accounting not supported by this jvm - skipping");
+      return "";
+    }
+    threads.setThreadAllocatedMemoryEnabled(true);
+    StringBuilder failed = new StringBuilder();
+    for (Path path : Path.values()) {
+      long fsm = allocated(path);
+      System.out.println(String.format(Locale.ROOT, "%-24s %10.3f bytes/event %s keys %s context", path,
+        (double) fsm / MEASURED_EVENTS, keys, diagnosticContext));
+      if (fsm > TOLERANCE_BYTES) {
+        failed.append(keys).append(':').append(diagnosticContext).append(':').append(path).append(" ");
+      }
+    }
+    if (multiFSM.size() != INSTANCES) {
+      throw new IllegalStateException("expected:" + INSTANCES + " live instances, found:" + multiFSM.size());
+    }
+    return failed.toString().trim();
+  }
+
+  public static void main(String[] args) {
+    //LAZY populates the MDC when debug is on - guarded only in the mode it is meant for
+    if (LoggerFactory.getLogger(MultiFSM.class).isDebugEnabled()) {
+      System.err.println("MultiFSM logger enabled for debug - run with -Dlogback.configurationFile="
+        + "logback-benchmarks.xml");
+      System.exit(1);
+    }
+    String failed = "";
+    for (FSMDiagnosticContext diagnosticContext : new FSMDiagnosticContext[]{FSMDiagnosticContext.OFF,
+      FSMDiagnosticContext.LAZY}) {
+      for (DispatchFSM.Keys keys : DispatchFSM.Keys.values()) {
+        failed = (failed + " " + new AllocationGuard(keys, diagnosticContext).check()).trim();
+      }
+    }
+    if (!failed.isEmpty()) {
+      System.err.println("allocating dispatch paths:" + failed);
+      System.exit(1);
+    }
+  }
+}
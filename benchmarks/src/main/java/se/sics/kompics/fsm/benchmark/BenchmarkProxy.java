@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import org.javatuples.Pair;
+import se.sics.kompics.ClassMatchedHandler;
+import se.sics.kompics.ComponentProxy;
+import se.sics.kompics.Handler;
+import se.sics.kompics.KompicsEvent;
+
+/**
+ * Stand-in for a kompics component proxy, so that the handlers a MultiFSM subscribes can be driven directly,
+ * without a scheduler in between. Subscriptions are recorded, triggers are counted and dropped.
+ */
+public class BenchmarkProxy implements InvocationHandler {
+
+  private final Map<Class, Handler> basicHandlers = new HashMap<>();
+  private final Map<Pair<Class, Class>, ClassMatchedHandler> patternHandlers = new HashMap<>();
+  public long triggered = 0;
+
+  private BenchmarkProxy() {
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    switch (method.getName()) {
+      case "trigger":
+        triggered++;
+        return null;
+      case "subscribe":
+        if (args[0] instanceof Handler) {
+          Handler h = (Handler) args[0];
+          basicHandlers.put(h.getEventType(), h);
+        } else if (args[0] instanceof ClassMatchedHandler) {
+          ClassMatchedHandler h = (ClassMatchedHandler) args[0];
+          patternHandlers.put(Pair.with((Class) h.pattern(), (Class) h.getCxtType()), h);
+        }
+        return null;
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "equals":
+        return proxy == args[0];
+      case "toString":
+        return "BenchmarkProxy";
+      default:
+        return stub(method.getReturnType());
+    }
+  }
+
+  /**
+   * ports and port pairs are only ever passed back to trigger, so an inert proxy (or null for concrete port
+   * classes) is enough
+   */
+  private Object stub(Class type) {
+    if (type.isInterface()) {
+      return Proxy.newProxyInstance(type.getClassLoader(), new Class[]{type}, this);
+    }
+    if (type == boolean.class) {
+      return false;
+    }
+    if (type == int.class) {
+      return 0;
+    }
+    if (type == long.class) {
+      return 0L;
+    }
+    return null;
+  }
+
+  public <E extends KompicsEvent> Handler<E> basicHandler(Class<E> eventType) {
+    Handler h = basicHandlers.get(eventType);
+    if (h == null) {
+      throw new IllegalStateException("no handler subscribed for event:" + eventType);
+    }
+    return h;
+  }
+
+  public ClassMatchedHandler patternHandler(Class contentType, Class containerType) {
+    ClassMatchedHandler h = patternHandlers.get(Pair.with(contentType, containerType));
+    if (h == null) {
+      throw new IllegalStateException("no handler subscribed for content:" + contentType
+        + " container:" + containerType);
+    }
+    return h;
+  }
+
+  public static BenchmarkProxy instance() {
+    return new BenchmarkProxy();
+  }
+
+  public ComponentProxy componentProxy() {
+    return (ComponentProxy) Proxy.newProxyInstance(ComponentProxy.class.getClassLoader(),
+      new Class[]{ComponentProxy.class}, this);
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.benchmark;
+
+import se.sics.kompics.fsm.FSMException;
+import se.sics.kompics.fsm.id.FSMIdentifierFactory;
+
+public class BenchmarkSetup {
+
+  /**
+   * the default factory is jvm wide and refuses double registrations, while benchmark states get set up once per
+   * trial
+   */
+  public static synchronized FSMIdentifierFactory fsmIdFactory(String... fsmNames) throws FSMException {
+    FSMIdentifierFactory fsmIdFactory = FSMIdentifierFactory.DEFAULT;
+    for (String fsmName : fsmNames) {
+      try {
+        fsmIdFactory.getFSMDefId(fsmName);
+      } catch (FSMException ex) {
+        fsmIdFactory.registerFSMDefId(fsmName);
+      }
+    }
+    return fsmIdFactory;
+  }
+}
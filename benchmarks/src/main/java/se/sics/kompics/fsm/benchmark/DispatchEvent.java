@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.benchmark;
+
+import se.sics.kompics.PatternExtractor;
+import se.sics.kompics.util.Identifier;
+
+public class DispatchEvent {
+
+  public static abstract class Base implements DispatchFSM.Event {
+
+    private final Identifier baseId;
+
+    public Base(Identifier baseId) {
+      this.baseId = baseId;
+    }
+
+    @Override
+    public Identifier getBaseId() {
+      return baseId;
+    }
+
+    @Override
+    public String toString() {
+      return getClass().getSimpleName() + "<" + baseId + ">";
+    }
+  }
+
+  /**
+   * handled in every state, without leaving it
+   */
+  public static class Hit extends Base {
+
+    public Hit(Identifier baseId) {
+      super(baseId);
+    }
+  }
+
+  /**
+   * handled in every state, moving between A and B
+   */
+  public static class Toggle extends Base {
+
+    public Toggle(Identifier baseId) {
+      super(baseId);
+    }
+  }
+
+  /**
+   * not handled in any state, only by its event fallback
+   */
+  public static class Miss extends Base {
+
+    public Miss(Identifier baseId) {
+      super(baseId);
+    }
+  }
+
+  /**
+   * not handled in any state and without fallback
+   */
+  public static class Unhandled extends Base {
+
+    public Unhandled(Identifier baseId) {
+      super(baseId);
+    }
+  }
+
+  /**
+   * moves the machine to FINAL
+   */
+  public static class Stop extends Base {
+
+    public Stop(Identifier baseId) {
+      super(baseId);
+    }
+  }
+
+  public static class Envelope implements PatternExtractor<Class, Hit>, DispatchFSM.Event {
+
+    public final Hit content;
+
+    public Envelope(Hit content) {
+      this.content = content;
+    }
+
+    @Override
+    public Identifier getBaseId() {
+      return content.getBaseId();
+    }
+
+    @Override
+    public Class extractPattern() {
+      return content.getClass();
+    }
+
+    @Override
+    public Hit extractValue() {
+      return content;
+    }
+
+    @Override
+    public String toString() {
+      return "Envelope<" + content + ">";
+    }
+  }
+}
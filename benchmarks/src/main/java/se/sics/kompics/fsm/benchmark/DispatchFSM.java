@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import se.sics.kompics.ComponentProxy;
+import se.sics.kompics.KompicsEvent;
+import se.sics.kompics.PatternExtractor;
+import se.sics.kompics.fsm.BaseIdExtractor;
+import se.sics.kompics.fsm.FSMBasicStateNames;
+import se.sics.kompics.fsm.FSMBuilder;
+import se.sics.kompics.fsm.FSMEvent;
+import se.sics.kompics.fsm.FSMException;
+import se.sics.kompics.fsm.FSMExternalState;
+import se.sics.kompics.fsm.FSMInternalState;
+import se.sics.kompics.fsm.FSMInternalStateCodec;
+import se.sics.kompics.fsm.FSMRecyclableStateBuilder;
+import se.sics.kompics.fsm.FSMStateName;
+import se.sics.kompics.fsm.LongBaseIdExtractor;
+import se.sics.kompics.fsm.MultiFSM;
+import se.sics.kompics.fsm.OnFSMExceptionAction;
+import se.sics.kompics.fsm.annotation.FSM;
+import se.sics.kompics.fsm.annotation.OnEvent;
+import se.sics.kompics.fsm.annotation.OnPattern;
+import se.sics.kompics.fsm.handler.FSMBasicEventHandler;
+import se.sics.kompics.fsm.handler.FSMPatternEventHandler;
+import se.sics.kompics.fsm.core.IntId;
+import se.sics.kompics.fsm.id.FSMIdentifier;
+import se.sics.kompics.fsm.id.FSMIdentifierFactory;
+import se.sics.kompics.util.Identifier;
+
+/**
+ * Synthetic definition covering every dispatch path of a MultiFSM: handled in state, handled with a transition,
+ * handled by fallback, unhandled, pattern events and the FINAL/kill path.
+ */
+public class DispatchFSM {
+
+  public static final String NAME = "dispatch-fsm";
+
+  private static FSMBuilder.StructuralDefinition structuralDef() throws FSMException {
+    return FSMBuilder.structuralDef()
+      .onStart()
+        .nextStates(States.A)
+        .buildTransition()
+      .onState(States.A)
+        .nextStates(States.A, States.B)
+        .toFinal()
+        .buildTransition()
+      .onState(States.B)
+        .nextStates(States.B, States.A)
+        .toFinal()
+        .buildTransition();
+  }
+
+  private static FSMBuilder.SemanticDefinition semanticDef() throws FSMException {
+    return FSMBuilder.semanticDef()
+      .positivePort(DispatchPort.class)
+        .basicEvent(DispatchEvent.Hit.class)
+          .subscribeOnStart(Handlers.handleStart)
+          .subscribe(Handlers.handleHit, States.A, States.B)
+        .basicEvent(DispatchEvent.Toggle.class)
+          .subscribe(Handlers.handleToggle, States.A, States.B)
+        .basicEvent(DispatchEvent.Miss.class)
+          .fallback(Handlers.handleMiss)
+        .basicEvent(DispatchEvent.Unhandled.class)
+        .basicEvent(DispatchEvent.Stop.class)
+          .subscribe(Handlers.handleStop, States.A, States.B)
+        .patternEvent(DispatchEvent.Hit.class, DispatchEvent.Envelope.class)
+          .subscribe(Handlers.handlePatternHit, States.A, States.B)
+        .buildEvents()
+      .defaultFallback(null, null);
+  }
+
+  private static final BaseIdExtractor bidx = new BaseIdExtractor() {
+    @Override
+    public Optional<Identifier> fromEvent(KompicsEvent event) throws FSMException {
+      if (event instanceof Event) {
+        return Optional.of(((Event) event).getBaseId());
+      }
+      return Optional.empty();
+    }
+  };
+
+  private static final LongBaseIdExtractor longBidx = new LongBaseIdExtractor() {
+    @Override
+    public Optional<Identifier> fromEvent(KompicsEvent event) throws FSMException {
+      return bidx.fromEvent(event);
+    }
+
+    @Override
+    public long keyFromEvent(KompicsEvent event) throws FSMException {
+      if (event instanceof Event) {
+        return key(((Event) event).getBaseId());
+      }
+      return NO_ID;
+    }
+
+    @Override
+    public long key(Identifier baseId) {
+      return ((IntId) baseId).id;
+    }
+  };
+
+  /**
+   * HANDLERS - one FSMBasicEventHandler class per handler, GENERATED - the FSMDispatcher the fsm processor generates
+   * from Annotated, same handlers
+   */
+  public static enum Dispatch {
+    HANDLERS,
+    GENERATED
+  }
+
+  /**
+   * how the MultiFSM keys its instances - base id objects or primitive longs
+   */
+  public static enum Keys {
+    IDENTIFIER,
+    LONG
+  }
+
+  private static final OnFSMExceptionAction oexa = new OnFSMExceptionAction() {
+    @Override
+    public void handle(FSMException ex) {
+      throw new RuntimeException(ex);
+    }
+  };
+
+  public static MultiFSM multifsm(FSMIdentifierFactory fsmIdFactory, ExternalState es) throws FSMException {
+    return multifsm(fsmIdFactory, es, FSMBuilder.multiFSMConfig());
+  }
+
+  public static MultiFSM multifsm(FSMIdentifierFactory fsmIdFactory, ExternalState es, 
+    FSMBuilder.MultiFSMConfig config) throws FSMException {
+    return multifsm(fsmIdFactory, es, config, Keys.IDENTIFIER);
+  }
+
+  public static MultiFSM multifsm(FSMIdentifierFactory fsmIdFactory, ExternalState es, 
+    FSMBuilder.MultiFSMConfig config, Keys keys) throws FSMException {
+    return multifsm(fsmIdFactory, es, config, keys, Dispatch.HANDLERS);
+  }
+
+  public static MultiFSM multifsm(FSMIdentifierFactory fsmIdFactory, ExternalState es, 
+    FSMBuilder.MultiFSMConfig config, Keys keys, Dispatch dispatch) throws FSMException {
+    FSMBuilder.SemanticDefinition semanticDef = dispatch == Dispatch.GENERATED
+      ? DispatchFSM_AnnotatedDispatcher.semanticDef().defaultFallback(null, null) : semanticDef();
+    return FSMBuilder.multiFSM(fsmIdFactory, NAME, structuralDef(), semanticDef, es, new InternalState.Builder(),
+      oexa, keys == Keys.LONG ? longBidx : bidx, config);
+  }
+
+  /**
+   * IntId base ids and the handled counter
+   */
+  public static final FSMInternalStateCodec<InternalState> codec = new FSMInternalStateCodec<InternalState>() {
+    @Override
+    public void encodeBaseId(Identifier baseId, ByteBuffer buf) {
+      buf.putInt(((IntId) baseId).id);
+    }
+
+    @Override
+    public Identifier decodeBaseId(ByteBuffer buf) {
+      return new IntId(buf.getInt());
+    }
+
+    @Override
+    public void encode(InternalState is, ByteBuffer buf) {
+      buf.putLong(is.handled);
+    }
+
+    @Override
+    public InternalState decode(FSMIdentifier fsmId, ByteBuffer buf) {
+      InternalState is = new InternalState(fsmId);
+      is.handled = buf.getLong();
+      return is;
+    }
+  };
+
+  public static interface Event extends FSMEvent {
+
+    public Identifier getBaseId();
+  }
+
+  public static enum States implements FSMStateName {
+    A, B
+  }
+
+  public static class ExternalState implements FSMExternalState {
+
+    ComponentProxy proxy;
+
+    @Override
+    public void setProxy(ComponentProxy proxy) {
+      this.proxy = proxy;
+    }
+
+    @Override
+    public ComponentProxy getProxy() {
+      return proxy;
+    }
+  }
+
+  public static class InternalState implements FSMInternalState {
+
+    FSMIdentifier fsmId;
+    long handled = 0;
+
+    private InternalState(FSMIdentifier fsmId) {
+      this.fsmId = fsmId;
+    }
+
+    @Override
+    public FSMIdentifier getFSMId() {
+      return fsmId;
+    }
+
+    public static class Builder implements FSMRecyclableStateBuilder {
+
+      @Override
+      public FSMInternalState newState(FSMIdentifier fsmId) {
+        return new InternalState(fsmId);
+      }
+
+      @Override
+      public boolean recycle(FSMInternalState is) {
+        ((InternalState) is).fsmId = null;
+        return true;
+      }
+
+      @Override
+      public FSMInternalState reset(FSMInternalState is, FSMIdentifier fsmId) {
+        InternalState state = (InternalState) is;
+        state.fsmId = fsmId;
+        state.handled = 0;
+        return state;
+      }
+    }
+  }
+
+  private static class Handlers {
+
+    static FSMBasicEventHandler handleStart
+      = new FSMBasicEventHandler<ExternalState, InternalState, DispatchEvent.Hit>() {
+        @Override
+        public FSMStateName handle(FSMStateName state, ExternalState es, InternalState is,
+          DispatchEvent.Hit event) throws FSMException {
+          is.handled++;
+          return States.A;
+        }
+      };
+
+    static FSMBasicEventHandler handleHit
+      = new FSMBasicEventHandler<ExternalState, InternalState, DispatchEvent.Hit>() {
+        @Override
+        public FSMStateName handle(FSMStateName state, ExternalState es, InternalState is,
+          DispatchEvent.Hit event) throws FSMException {
+          is.handled++;
+          return state;
+        }
+      };
+
+    static FSMBasicEventHandler handleToggle
+      = new FSMBasicEventHandler<ExternalState, InternalState, DispatchEvent.Toggle>() {
+        @Override
+        public FSMStateName handle(FSMStateName state, ExternalState es, InternalState is,
+          DispatchEvent.Toggle event) throws FSMException {
+          is.handled++;
+          return States.A.equals(state) ? States.B : States.A;
+        }
+      };
+
+    static FSMBasicEventHandler handleMiss
+      = new FSMBasicEventHandler<ExternalState, InternalState, DispatchEvent.Miss>() {
+        @Override
+        public FSMStateName handle(FSMStateName state, ExternalState es, InternalState is,
+          DispatchEvent.Miss event) throws FSMException {
+          is.handled++;
+          return state;
+        }
+      };
+
+    static FSMBasicEventHandler handleStop
+      = new FSMBasicEventHandler<ExternalState, InternalState, DispatchEvent.Stop>() {
+        @Override
+        public FSMStateName handle(FSMStateName state, ExternalState es, InternalState is,
+          DispatchEvent.Stop event) throws FSMException {
+          return FSMBasicStateNames.FINAL;
+        }
+      };
+
+    static FSMPatternEventHandler handlePatternHit
+      = new FSMPatternEventHandler<ExternalState, InternalState, DispatchEvent.Hit, PatternExtractor>() {
+        @Override
+        public FSMStateName handle(FSMStateName state, ExternalState es, InternalState is, DispatchEvent.Hit hit,
+          PatternExtractor container) throws FSMException {
+          is.handled++;
+          return state;
+        }
+      };
+  }
+
+  @FSM(states = States.class)
+  static class Annotated {
+
+    @OnEvent(port = DispatchPort.class, states = "START")
+    static FSMStateName handleStart(FSMStateName state, ExternalState es, InternalState is, DispatchEvent.Hit event) {
+      is.handled++;
+      return States.A;
+    }
+
+    @OnEvent(port = DispatchPort.class, states = {"A", "B"})
+    static FSMStateName handleHit(FSMStateName state, ExternalState es, InternalState is, DispatchEvent.Hit event) {
+      is.handled++;
+      return state;
+    }
+
+    @OnEvent(port = DispatchPort.class, states = {"A", "B"})
+    static FSMStateName handleToggle(FSMStateName state, ExternalState es, InternalState is,
+      DispatchEvent.Toggle event) {
+      is.handled++;
+      return States.A.equals(state) ? States.B : States.A;
+    }
+
+    @OnEvent(port = DispatchPort.class, fallback = true)
+    static FSMStateName handleMiss(FSMStateName state, ExternalState es, InternalState is, DispatchEvent.Miss event) {
+      is.handled++;
+      return state;
+    }
+
+    @OnEvent(port = DispatchPort.class, states = {"A", "B"})
+    static FSMStateName handleStop(FSMStateName state, ExternalState es, InternalState is, DispatchEvent.Stop event) {
+      return FSMBasicStateNames.FINAL;
+    }
+
+    @OnPattern(port = DispatchPort.class, states = {"A", "B"})
+    static FSMStateName handlePatternHit(FSMStateName state, ExternalState es, InternalState is, DispatchEvent.Hit hit,
+      DispatchEvent.Envelope container) {
+      is.handled++;
+      return state;
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.sics.kompics.fsm.id.FSMPartitioner;
+import se.sics.kompics.util.Identifier;
+
+/**
+ * Cost of routing one instance to its partition with each of the FSMPartitioners. Balance is measured by
+ * PartitionSkew.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FSMPartitionerBenchmark {
+
+  @Param({"MODULO", "MIX64", "JUMP"})
+  public PartitionSkew.Partitioners partitioner;
+
+  @Param({"8", "32"})
+  public int partitions;
+
+  private FSMPartitioner p;
+  private Identifier defId;
+  private Identifier[] baseIds;
+  private int next = 0;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    p = partitioner.partitioner;
+    defId = PartitionSkew.defIds(1)[0];
+    baseIds = PartitionSkew.baseIds(PartitionSkew.Distribution.RANDOM, 1024, partitions);
+  }
+
+  @Benchmark
+  public int partition() {
+    Identifier baseId = baseIds[next];
+    next = (next + 1) & (baseIds.length - 1);
+    return p.partition(defId, baseId, partitions);
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.sics.kompics.ClassMatchedHandler;
+import se.sics.kompics.Handler;
+import se.sics.kompics.fsm.FSMBuilder;
+import se.sics.kompics.fsm.FSMDiagnosticContext;
+import se.sics.kompics.fsm.FSMException;
+import se.sics.kompics.fsm.MultiFSM;
+import se.sics.kompics.fsm.core.IntId;
+
+/**
+ * Cost of a single event going through the handlers a MultiFSM subscribes - instance lookup, state dispatch and
+ * transition - for each of the dispatch paths. Events are pre-allocated and spread round-robin over the live
+ * instances, so that the lookup does not always hit the same entry.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MultiFSMDispatchBenchmark {
+
+  @Param({"1", "1024", "65536"})
+  public int instances;
+
+  @Param({"FULL", "LAZY", "OFF"})
+  public FSMDiagnosticContext diagnosticContext;
+
+  @Param({"IDENTIFIER", "LONG"})
+  public DispatchFSM.Keys keys;
+
+  private MultiFSM multiFSM;
+  private Handler<DispatchEvent.Hit> hit;
+  private Handler<DispatchEvent.Toggle> toggle;
+  private Handler<DispatchEvent.Miss> miss;
+  private Handler<DispatchEvent.Unhandled> unhandled;
+  private Handler<DispatchEvent.Stop> stop;
+  private ClassMatchedHandler patternHit;
+
+  private DispatchEvent.Hit[] hits;
+  private DispatchEvent.Toggle[] toggles;
+  private DispatchEvent.Miss[] misses;
+  private DispatchEvent.Unhandled[] unhandleds;
+  private DispatchEvent.Stop[] stops;
+  private DispatchEvent.Envelope[] envelopes;
+  private int next = 0;
+
+  @Setup(Level.Trial)
+  public void setup() throws FSMException {
+    BenchmarkProxy proxy = BenchmarkProxy.instance();
+    DispatchFSM.ExternalState es = new DispatchFSM.ExternalState();
+    es.setProxy(proxy.componentProxy());
+    multiFSM = DispatchFSM.multifsm(BenchmarkSetup.fsmIdFactory(DispatchFSM.NAME), es,
+      FSMBuilder.multiFSMConfig().setDiagnosticContext(diagnosticContext), keys);
+    multiFSM.setupHandlers();
+
+    hit = proxy.basicHandler(DispatchEvent.Hit.class);
+    toggle = proxy.basicHandler(DispatchEvent.Toggle.class);
+    miss = proxy.basicHandler(DispatchEvent.Miss.class);
+    unhandled = proxy.basicHandler(DispatchEvent.Unhandled.class);
+    stop = proxy.basicHandler(DispatchEvent.Stop.class);
+    patternHit = proxy.patternHandler(DispatchEvent.Hit.class, DispatchEvent.Envelope.class);
+
+    hits = new DispatchEvent.Hit[instances];
+    toggles = new DispatchEvent.Toggle[instances];
+    misses = new DispatchEvent.Miss[instances];
+    unhandleds = new DispatchEvent.Unhandled[instances];
+    stops = new DispatchEvent.Stop[instances];
+    envelopes = new DispatchEvent.Envelope[instances];
+    for (int i = 0; i < instances; i++) {
+      IntId baseId = new IntId(i);
+      hits[i] = new DispatchEvent.Hit(baseId);
+      toggles[i] = new DispatchEvent.Toggle(baseId);
+      misses[i] = new DispatchEvent.Miss(baseId);
+      unhandleds[i] = new DispatchEvent.Unhandled(baseId);
+      stops[i] = new DispatchEvent.Stop(baseId);
+      envelopes[i] = new DispatchEvent.Envelope(hits[i]);
+      //creates the instance and moves it out of START
+      hit.handle(hits[i]);
+    }
+    if (multiFSM.size() != instances) {
+      throw new IllegalStateException("expected:" + instances + " live instances, found:" + multiFSM.size());
+    }
+  }
+
+  private int nextInstance() {
+    int i = next;
+    next = (i + 1 == instances) ? 0 : i + 1;
+    return i;
+  }
+
+  @Benchmark
+  public void basicHitInState() {
+    hit.handle(hits[nextInstance()]);
+  }
+
+  @Benchmark
+  public void basicTransition() {
+    toggle.handle(toggles[nextInstance()]);
+  }
+
+  @Benchmark
+  public void basicFallback() {
+    miss.handle(misses[nextInstance()]);
+  }
+
+  @Benchmark
+  public void basicUnhandled() {
+    unhandled.handle(unhandleds[nextInstance()]);
+  }
+
+  @Benchmark
+  public void patternHitInState() {
+    DispatchEvent.Envelope envelope = envelopes[nextInstance()];
+    patternHit.handle(envelope.content, envelope);
+  }
+
+  /**
+   * FINAL removes the instance, the following event creates it again and moves it out of START
+   */
+  @Benchmark
+  public void killAndRecreate() {
+    int i = nextInstance();
+    stop.handle(stops[i]);
+    hit.handle(hits[i]);
+  }
+}
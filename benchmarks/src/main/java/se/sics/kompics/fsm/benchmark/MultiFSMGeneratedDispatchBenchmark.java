@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.sics.kompics.Handler;
+import se.sics.kompics.fsm.FSMBuilder;
+import se.sics.kompics.fsm.FSMDiagnosticContext;
+import se.sics.kompics.fsm.FSMException;
+import se.sics.kompics.fsm.MultiFSM;
+import se.sics.kompics.fsm.core.IntId;
+
+/**
+ * Hand written handlers against the dispatcher generated from the same handlers, on a mix of events that makes the
+ * handler call site of FSMState megamorphic for the hand written ones.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MultiFSMGeneratedDispatchBenchmark {
+
+  @Param({"1024"})
+  public int instances;
+
+  @Param({"HANDLERS", "GENERATED"})
+  public DispatchFSM.Dispatch dispatch;
+
+  private Handler<DispatchEvent.Hit> hit;
+  private Handler<DispatchEvent.Toggle> toggle;
+  private Handler<DispatchEvent.Stop> stop;
+  private DispatchEvent.Hit[] hits;
+  private DispatchEvent.Toggle[] toggles;
+  private DispatchEvent.Stop[] stops;
+  private int next = 0;
+
+  @Setup(Level.Trial)
+  public void setup() throws FSMException {
+    BenchmarkProxy proxy = BenchmarkProxy.instance();
+    DispatchFSM.ExternalState es = new DispatchFSM.ExternalState();
+    es.setProxy(proxy.componentProxy());
+    MultiFSM multiFSM = DispatchFSM.multifsm(BenchmarkSetup.fsmIdFactory(DispatchFSM.NAME), es,
+      FSMBuilder.multiFSMConfig().setDiagnosticContext(FSMDiagnosticContext.OFF), DispatchFSM.Keys.LONG, dispatch);
+    multiFSM.setupHandlers();
+    hit = proxy.basicHandler(DispatchEvent.Hit.class);
+    toggle = proxy.basicHandler(DispatchEvent.Toggle.class);
+    stop = proxy.basicHandler(DispatchEvent.Stop.class);
+
+    hits = new DispatchEvent.Hit[instances];
+    toggles = new DispatchEvent.Toggle[instances];
+    stops = new DispatchEvent.Stop[instances];
+    for (int i = 0; i < instances; i++) {
+      IntId baseId = new IntId(i);
+      hits[i] = new DispatchEvent.Hit(baseId);
+      toggles[i] = new DispatchEvent.Toggle(baseId);
+      stops[i] = new DispatchEvent.Stop(baseId);
+      hit.handle(hits[i]);
+    }
+  }
+
+  private int nextInstance() {
+    int i = next;
+    next = (i + 1 == instances) ? 0 : i + 1;
+    return i;
+  }
+
+  /**
+   * hit, toggle, then kill and recreate - four handlers through the same call site
+   */
+  @Benchmark
+  public void mixed() {
+    int i = nextInstance();
+    hit.handle(hits[i]);
+    toggle.handle(toggles[i]);
+    stop.handle(stops[i]);
+    hit.handle(hits[i]);
+  }
+
+  @Benchmark
+  public void basicHitInState() {
+    hit.handle(hits[nextInstance()]);
+  }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.benchmark;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import se.sics.kompics.Handler;
+import se.sics.kompics.fsm.FSMBuilder;
+import se.sics.kompics.fsm.FSMException;
+import se.sics.kompics.fsm.MultiFSM;
+import se.sics.kompics.fsm.core.IntId;
+
+/**
+ * Macro benchmark populating a single MultiFSM with an increasing number of live instances. For each population size
+ * it reports:
+ * <ul>
+ * <li>retained heap per instance - heap after a full gc, populated vs empty MultiFSM</li>
+ * <li>instance creation throughput - first event for an unknown id, which builds the instance and moves it out of
+ * START - and the p99.99/max latency of a single creation, where a resize of the instance map would show</li>
+ * <li>lookup latency percentiles of random live ids (timed individually, so the numbers include one nanoTime)</li>
+ * </ul>
+ * Results are written as scale.csv and scale.json in the output directory.
+ * <p>
+ * java -Xmx16g -cp benchmarks/target/benchmarks.jar se.sics.kompics.fsm.benchmark.MultiFSMScaleBenchmark
+ * [--sizes 1000,10000,100000,1000000,10000000] [--keys identifier,long] [--lookups 1000000] [--out target/scale]
+ * <p>
+ * or through the build: mvn -Pscale-benchmark verify -pl benchmarks -am
+ */
+public class MultiFSMScaleBenchmark {
+
+  private static final double[] PERCENTILES = new double[]{50, 90, 99, 99.9, 99.99};
+
+  private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+  private final int[] sizes;
+  private final DispatchFSM.Keys[] keys;
+  private final int lookups;
+  private final File outDir;
+  private final Random rand = new Random(1234);
+
+  public MultiFSMScaleBenchmark(int[] sizes, DispatchFSM.Keys[] keys, int lookups, File outDir) {
+    this.sizes = sizes;
+    this.keys = keys;
+    this.lookups = lookups;
+    this.outDir = outDir;
+  }
+
+  public List<Result> run() throws FSMException {
+    List<Result> results = new ArrayList<>();
+    for (DispatchFSM.Keys k : keys) {
+      for (int size : sizes) {
+        Result r = run(k, size);
+        System.out.println(r.toCsv());
+        results.add(r);
+      }
+    }
+    return results;
+  }
+
+  private Result run(DispatchFSM.Keys k, int size) throws FSMException {
+    BenchmarkProxy proxy = BenchmarkProxy.instance();
+    DispatchFSM.ExternalState es = new DispatchFSM.ExternalState();
+    es.setProxy(proxy.componentProxy());
+    MultiFSM multiFSM = DispatchFSM.multifsm(BenchmarkSetup.fsmIdFactory(DispatchFSM.NAME), es,
+      FSMBuilder.multiFSMConfig(), k);
+    multiFSM.setupHandlers();
+    Handler<DispatchEvent.Hit> hit = proxy.basicHandler(DispatchEvent.Hit.class);
+
+    //allocated before the empty heap measurement, so that it is not counted as instance footprint
+    long[] creations = new long[size];
+    long emptyHeap = usedHeap();
+    long start = System.nanoTime();
+    for (int i = 0; i < size; i++) {
+      long s = System.nanoTime();
+      hit.handle(new DispatchEvent.Hit(new IntId(i)));
+      creations[i] = System.nanoTime() - s;
+    }
+    long creationNanos = System.nanoTime() - start;
+    if (multiFSM.size() != size) {
+      throw new IllegalStateException("expected:" + size + " live instances, found:" + multiFSM.size());
+    }
+    long populatedHeap = usedHeap();
+
+    IntId[] probes = new IntId[Math.min(lookups, 1 << 16)];
+    for (int i = 0; i < probes.length; i++) {
+      probes[i] = new IntId(rand.nextInt(size));
+    }
+    long[] latencies = new long[lookups];
+    boolean found = true;
+    for (int i = 0; i < lookups; i++) {
+      IntId probe = probes[i % probes.length];
+      long s = System.nanoTime();
+      found &= multiFSM.activeFSM(probe);
+      latencies[i] = System.nanoTime() - s;
+    }
+    if (!found) {
+      throw new IllegalStateException("lookup missed a live instance");
+    }
+    Arrays.sort(latencies);
+    long[] percentiles = new long[PERCENTILES.length];
+    for (int i = 0; i < PERCENTILES.length; i++) {
+      percentiles[i] = percentile(latencies, PERCENTILES[i]);
+    }
+    Arrays.sort(creations);
+
+    double bytesPerInstance = (double) (populatedHeap - emptyHeap) / size;
+    double creationsPerSec = size / (creationNanos / 1000000000d);
+    return new Result(k, size, bytesPerInstance, creationsPerSec, percentile(creations, 99.99),
+      creations[creations.length - 1], percentiles, latencies[latencies.length - 1]);
+  }
+
+  private static long percentile(long[] sorted, double percentile) {
+    int idx = (int) Math.min(sorted.length - 1, Math.ceil(percentile / 100 * sorted.length) - 1);
+    return sorted[Math.max(0, idx)];
+  }
+
+  private long usedHeap() {
+    long used = Long.MAX_VALUE;
+    //a few rounds until the heap stops shrinking
+    for (int i = 0; i < 10; i++) {
+      System.gc();
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      long current = memory.getHeapMemoryUsage().getUsed();
+      if (current >= used) {
+        return current;
+      }
+      used = current;
+    }
+    return used;
+  }
+
+  public void write(List<Result> results) throws FileNotFoundException {
+    outDir.mkdirs();
+    try (PrintWriter csv = new PrintWriter(new File(outDir, "scale.csv"))) {
+      csv.println(Result.csvHeader());
+      for (Result r : results) {
+        csv.println(r.toCsv());
+      }
+    }
+    try (PrintWriter json = new PrintWriter(new File(outDir, "scale.json"))) {
+      json.println("[");
+      for (int i = 0; i < results.size(); i++) {
+        json.print("  " + results.get(i).toJson());
+        json.println(i + 1 < results.size() ? "," : "");
+      }
+      json.println("]");
+    }
+  }
+
+  public static class Result {
+
+    public final DispatchFSM.Keys keys;
+    public final int instances;
+    public final double bytesPerInstance;
+    public final double creationsPerSec;
+    public final long creationNanosP9999;
+    public final long creationNanosMax;
+    public final long[] lookupNanosPercentiles;
+    public final long lookupNanosMax;
+
+    public Result(DispatchFSM.Keys keys, int instances, double bytesPerInstance, double creationsPerSec,
+      long creationNanosP9999, long creationNanosMax, long[] lookupNanosPercentiles, long lookupNanosMax) {
+      this.keys = keys;
+      this.instances = instances;
+      this.bytesPerInstance = bytesPerInstance;
+      this.creationsPerSec = creationsPerSec;
+      this.creationNanosP9999 = creationNanosP9999;
+      this.creationNanosMax = creationNanosMax;
+      this.lookupNanosPercentiles = lookupNanosPercentiles;
+      this.lookupNanosMax = lookupNanosMax;
+    }
+
+    static String csvHeader() {
+      StringBuilder sb = new StringBuilder("keys,instances,bytes_per_instance,creations_per_sec,create_ns_p99_99,create_ns_max");
+      for (double p : PERCENTILES) {
+        sb.append(",lookup_ns_p").append(percentileName(p));
+      }
+      return sb.append(",lookup_ns_max").toString();
+    }
+
+    String toCsv() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(keys).append(',').append(instances).append(',')
+        .append(String.format(Locale.ROOT, "%.1f", bytesPerInstance)).append(',')
+        .append(String.format(Locale.ROOT, "%.0f", creationsPerSec)).append(',')
+        .append(creationNanosP9999).append(',').append(creationNanosMax);
+      for (long p : lookupNanosPercentiles) {
+        sb.append(',').append(p);
+      }
+      return sb.append(',').append(lookupNanosMax).toString();
+    }
+
+    String toJson() {
+      StringBuilder sb = new StringBuilder("{");
+      sb.append("\"keys\":\"").append(keys).append("\",\"instances\":").append(instances)
+        .append(",\"bytesPerInstance\":").append(String.format(Locale.ROOT, "%.1f", bytesPerInstance))
+        .append(",\"creationsPerSec\":").append(String.format(Locale.ROOT, "%.0f", creationsPerSec))
+        .append(",\"createNanos\":{\"p99_99\":").append(creationNanosP9999)
+        .append(",\"max\":").append(creationNanosMax).append('}')
+        .append(",\"lookupNanos\":{");
+      for (int i = 0; i < PERCENTILES.length; i++) {
+        sb.append("\"p").append(percentileName(PERCENTILES[i])).append("\":").append(lookupNanosPercentiles[i])
+          .append(',');
+      }
+      return sb.append("\"max\":").append(lookupNanosMax).append("}}").toString();
+    }
+
+    private static String percentileName(double p) {
+      return p == Math.rint(p) ? String.valueOf((long) p) : String.valueOf(p).replace('.', '_');
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int[] sizes = new int[]{1000, 10000, 100000, 1000000, 10000000};
+    DispatchFSM.Keys[] keys = DispatchFSM.Keys.values();
+    int lookups = 1000000;
+    File outDir = new File("target/scale");
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      switch (args[i]) {
+        case "--sizes":
+          String[] s = args[i + 1].split(",");
+          sizes = new int[s.length];
+          for (int j = 0; j < s.length; j++) {
+            sizes[j] = Integer.parseInt(s[j].trim());
+          }
+          break;
+        case "--keys":
+          String[] k = args[i + 1].split(",");
+          keys = new DispatchFSM.Keys[k.length];
+          for (int j = 0; j < k.length; j++) {
+            keys[j] = DispatchFSM.Keys.valueOf(k[j].trim().toUpperCase(Locale.ROOT));
+          }
+          break;
+        case "--lookups":
+          lookups = Integer.parseInt(args[i + 1]);
+          break;
+        case "--out":
+          outDir = new File(args[i + 1]);
+          break;
+        default:
+          throw new IllegalArgumentException("unknown option:" + args[i]);
+      }
+    }
+    MultiFSMScaleBenchmark benchmark = new MultiFSMScaleBenchmark(sizes, keys, lookups, outDir);
+    System.out.println(Result.csvHeader());
+    List<Result> results = benchmark.run();
+    benchmark.write(results);
+  }
+}
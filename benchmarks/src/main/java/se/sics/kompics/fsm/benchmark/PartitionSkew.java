@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.benchmark;
+
+import java.util.Locale;
+import java.util.Random;
+import se.sics.kompics.fsm.core.IntId;
+import se.sics.kompics.fsm.id.FSMPartitioner;
+import se.sics.kompics.util.ByteIdentifier;
+import se.sics.kompics.util.Identifier;
+
+/**
+ * Load balance of the FSMPartitioners for a few base id distributions, spread over the instances of several fsm
+ * definitions. For each partitioner, distribution and partition count it reports:
+ * <ul>
+ * <li>max/mean - load of the fullest partition relative to a perfect spread, 1.0 is perfect</li>
+ * <li>cv - coefficient of variation of the partition loads</li>
+ * <li>moved - fraction of instances changing partition when growing to one more partition</li>
+ * </ul>
+ * java -cp benchmarks/target/benchmarks.jar se.sics.kompics.fsm.benchmark.PartitionSkew [--ids 1000000]
+ * [--partitions 4,8,16,32] [--defs 4]
+ */
+public class PartitionSkew {
+
+  public static enum Partitioners {
+    MODULO(FSMPartitioner.MODULO),
+    MIX64(FSMPartitioner.MIX64),
+    JUMP(FSMPartitioner.JUMP);
+
+    public final FSMPartitioner partitioner;
+
+    private Partitioners(FSMPartitioner partitioner) {
+      this.partitioner = partitioner;
+    }
+  }
+
+  public static enum Distribution {
+    //0, 1, 2, ...
+    SEQUENTIAL,
+    //multiples of the partition count - e.g. ids allocated in blocks per node
+    STRIDED,
+    RANDOM
+  }
+
+  public static Identifier[] baseIds(Distribution distribution, int size, int partitions) {
+    Random rand = new Random(1234);
+    Identifier[] ids = new Identifier[size];
+    for (int i = 0; i < size; i++) {
+      switch (distribution) {
+        case SEQUENTIAL:
+          ids[i] = new IntId(i);
+          break;
+        case STRIDED:
+          ids[i] = new IntId(i * partitions);
+          break;
+        default:
+          ids[i] = new IntId(rand.nextInt(Integer.MAX_VALUE));
+      }
+    }
+    return ids;
+  }
+
+  public static Identifier[] defIds(int defs) {
+    Identifier[] ids = new Identifier[defs];
+    for (int i = 0; i < defs; i++) {
+      ids[i] = new ByteIdentifier((byte) i);
+    }
+    return ids;
+  }
+
+  /**
+   * @return the number of instances per partition
+   */
+  public static long[] loads(FSMPartitioner partitioner, Identifier[] defIds, Identifier[] baseIds, int partitions) {
+    long[] loads = new long[partitions];
+    for (Identifier defId : defIds) {
+      for (Identifier baseId : baseIds) {
+        loads[partitioner.partition(defId, baseId, partitions)]++;
+      }
+    }
+    return loads;
+  }
+
+  public static double maxOverMean(long[] loads) {
+    long max = 0;
+    long total = 0;
+    for (long l : loads) {
+      max = Math.max(max, l);
+      total += l;
+    }
+    return max / ((double) total / loads.length);
+  }
+
+  public static double cv(long[] loads) {
+    double mean = 0;
+    for (long l : loads) {
+      mean += l;
+    }
+    mean /= loads.length;
+    double var = 0;
+    for (long l : loads) {
+      var += (l - mean) * (l - mean);
+    }
+    return Math.sqrt(var / loads.length) / mean;
+  }
+
+  public static double moved(FSMPartitioner partitioner, Identifier[] defIds, Identifier[] baseIds, int partitions) {
+    long moved = 0;
+    for (Identifier defId : defIds) {
+      for (Identifier baseId : baseIds) {
+        if (partitioner.partition(defId, baseId, partitions) != partitioner.partition(defId, baseId, partitions + 1)) {
+          moved++;
+        }
+      }
+    }
+    return (double) moved / ((long) defIds.length * baseIds.length);
+  }
+
+  public static void main(String[] args) {
+    int size = 1000000;
+    int[] partitions = new int[]{4, 8, 16, 32};
+    int defs = 4;
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      switch (args[i]) {
+        case "--ids":
+          size = Integer.parseInt(args[i + 1]);
+          break;
+        case "--partitions":
+          String[] p = args[i + 1].split(",");
+          partitions = new int[p.length];
+          for (int j = 0; j < p.length; j++) {
+            partitions[j] = Integer.parseInt(p[j].trim());
+          }
+          break;
+        case "--defs":
+          defs = Integer.parseInt(args[i + 1]);
+          break;
+        default:
+          throw new IllegalArgumentException("unknown option:" + args[i]);
+      }
+    }
+    Identifier[] defIds = defIds(defs);
+    System.out.println("partitioner,distribution,partitions,max_over_mean,cv,moved");
+    for (Partitioners p : Partitioners.values()) {
+      for (Distribution d : Distribution.values()) {
+        for (int n : partitions) {
+          Identifier[] baseIds = baseIds(d, size, n);
+          long[] loads = loads(p.partitioner, defIds, baseIds, n);
+          System.out.println(String.format(Locale.ROOT, "%s,%s,%d,%.3f,%.4f,%.3f", p, d, n, maxOverMean(loads),
+            cv(loads), moved(p.partitioner, defIds, baseIds, n)));
+        }
+      }
+    }
+  }
+}
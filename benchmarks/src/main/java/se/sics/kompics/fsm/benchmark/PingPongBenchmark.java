@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.sics.kompics.ClassMatchedHandler;
+import se.sics.kompics.Handler;
+import se.sics.kompics.fsm.FSMException;
+import se.sics.kompics.fsm.MultiFSM;
+import se.sics.kompics.fsm.core.BasicEvent;
+import se.sics.kompics.fsm.core.IntId;
+import se.sics.kompics.fsm.core.PatternEvent;
+import se.sics.kompics.fsm.core.PingFSM;
+import se.sics.kompics.fsm.core.PongFSM;
+
+/**
+ * The example ping/pong definitions as a workload. The pong side cycles between its two wait states on a basic and a
+ * pattern ping, which is one round. The ping side is driven from START through its first basic pong.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PingPongBenchmark {
+
+  @Param({"1", "1024", "65536"})
+  public int instances;
+
+  private MultiFSM pongFSM;
+  private Handler<BasicEvent.Ping> basicPing;
+  private ClassMatchedHandler patternPing;
+  private BasicEvent.Ping[] pings;
+  private PatternEvent[] patternPings;
+  private int next = 0;
+
+  @Setup(Level.Trial)
+  public void setup() throws FSMException {
+    BenchmarkProxy proxy = BenchmarkProxy.instance();
+    PongFSM.ExternalState es = new PongFSM.ExternalState();
+    es.setProxy(proxy.componentProxy());
+    pongFSM = PongFSM.multifsm(BenchmarkSetup.fsmIdFactory(PingFSM.NAME, PongFSM.NAME), es);
+    pongFSM.setupHandlers();
+
+    basicPing = proxy.basicHandler(BasicEvent.Ping.class);
+    patternPing = proxy.patternHandler(BasicEvent.Ping.class, PatternEvent.class);
+
+    pings = new BasicEvent.Ping[instances];
+    patternPings = new PatternEvent[instances];
+    IntId pingBaseId = new IntId(-1);
+    for (int i = 0; i < instances; i++) {
+      pings[i] = new BasicEvent.Ping(pingBaseId, new IntId(i));
+      patternPings[i] = new PatternEvent(pings[i]);
+      //START -> WAIT_PATTERN_PING
+      basicPing.handle(pings[i]);
+    }
+  }
+
+  private int nextInstance() {
+    int i = next;
+    next = (i + 1 == instances) ? 0 : i + 1;
+    return i;
+  }
+
+  /**
+   * WAIT_PATTERN_PING -> WAIT_BASIC_PING -> WAIT_PATTERN_PING
+   */
+  @Benchmark
+  public void pongRound() {
+    int i = nextInstance();
+    patternPing.handle(pings[i], patternPings[i]);
+    basicPing.handle(pings[i]);
+  }
+}
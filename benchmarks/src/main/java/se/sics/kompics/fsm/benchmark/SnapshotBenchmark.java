@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.benchmark;
+
+import java.io.File;
+import java.util.Locale;
+import se.sics.kompics.Handler;
+import se.sics.kompics.fsm.FSMBuilder;
+import se.sics.kompics.fsm.FSMException;
+import se.sics.kompics.fsm.FSMSnapshot;
+import se.sics.kompics.fsm.MultiFSM;
+import se.sics.kompics.fsm.core.IntId;
+
+/**
+ * Time to snapshot a MultiFSM with the given number of live instances and to restore it into an empty one, for each
+ * number of decoding threads.
+ * <p>
+ * java -Xmx8g -cp benchmarks/target/benchmarks.jar se.sics.kompics.fsm.benchmark.SnapshotBenchmark
+ * [--instances 5000000] [--keys identifier,long] [--threads 1,4] [--file target/fsm.snapshot]
+ */
+public class SnapshotBenchmark {
+
+  private static MultiFSM multiFSM(DispatchFSM.Keys keys, int expectedInstances, BenchmarkProxy proxy)
+    throws FSMException {
+    DispatchFSM.ExternalState es = new DispatchFSM.ExternalState();
+    es.setProxy(proxy.componentProxy());
+    MultiFSM multiFSM = DispatchFSM.multifsm(BenchmarkSetup.fsmIdFactory(DispatchFSM.NAME), es,
+      FSMBuilder.multiFSMConfig().setExpectedInstances(expectedInstances), keys);
+    multiFSM.setupHandlers();
+    return multiFSM;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int instances = 5000000;
+    DispatchFSM.Keys[] keys = DispatchFSM.Keys.values();
+    int[] threads = new int[]{1, Runtime.getRuntime().availableProcessors()};
+    File file = new File("target/fsm.snapshot");
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      switch (args[i]) {
+        case "--instances":
+          instances = Integer.parseInt(args[i + 1]);
+          break;
+        case "--keys":
+          String[] k = args[i + 1].split(",");
+          keys = new DispatchFSM.Keys[k.length];
+          for (int j = 0; j < k.length; j++) {
+            keys[j] = DispatchFSM.Keys.valueOf(k[j].trim().toUpperCase(Locale.ROOT));
+          }
+          break;
+        case "--threads":
+          String[] t = args[i + 1].split(",");
+          threads = new int[t.length];
+          for (int j = 0; j < t.length; j++) {
+            threads[j] = Integer.parseInt(t[j].trim());
+          }
+          break;
+        case "--file":
+          file = new File(args[i + 1]);
+          break;
+        default:
+          throw new IllegalArgumentException("unknown option:" + args[i]);
+      }
+    }
+    file.getAbsoluteFile().getParentFile().mkdirs();
+    System.out.println("keys,instances,bytes,write_ms,threads,load_ms");
+    for (DispatchFSM.Keys k : keys) {
+      BenchmarkProxy proxy = BenchmarkProxy.instance();
+      MultiFSM source = multiFSM(k, instances, proxy);
+      Handler<DispatchEvent.Hit> hit = proxy.basicHandler(DispatchEvent.Hit.class);
+      for (int i = 0; i < instances; i++) {
+        hit.handle(new DispatchEvent.Hit(new IntId(i)));
+      }
+      long start = System.nanoTime();
+      FSMSnapshot.write(source, file, DispatchFSM.codec);
+      long writeMs = (System.nanoTime() - start) / 1000000;
+      source = null;
+      for (int t : threads) {
+        System.gc();
+        MultiFSM target = multiFSM(k, instances, BenchmarkProxy.instance());
+        start = System.nanoTime();
+        long loaded = FSMSnapshot.load(target, file, DispatchFSM.codec, t);
+        long loadMs = (System.nanoTime() - start) / 1000000;
+        if (loaded != instances || target.size() != instances) {
+          throw new IllegalStateException("restored:" + target.size() + " of:" + instances);
+        }
+        System.out.println(String.format(Locale.ROOT, "%s,%d,%d,%d,%d,%d", k, instances, file.length(), writeMs, t,
+          loadMs));
+      }
+    }
+    file.delete();
+  }
+}
@@ -23,13 +23,17 @@ import com.google.common.collect.Sets;
 import com.google.common.collect.Table;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import org.javatuples.Pair;
 import se.sics.kompics.fsm.handler.FSMBasicEventHandler;
+import se.sics.kompics.fsm.handler.FSMDeadLetterHandler;
+import se.sics.kompics.fsm.handler.FSMIdleHandler;
 import se.sics.kompics.fsm.handler.FSMPatternEventHandler;
 import se.sics.kompics.fsm.handler.FSMStateChangeHandler;
+import se.sics.kompics.fsm.handler.FSMTimeoutHandler;
 import se.sics.kompics.fsm.id.FSMIdentifierFactory;
 
 /**
@@ -83,9 +87,14 @@ public class FSMBuilder {
 
     public MultiFSM buildMultiFSM(final FSMachineDef fsmDef, OnFSMExceptionAction oexa, FSMExternalState es,
       FSMInternalStateBuilder builder, BaseIdExtractor fsmIdExtractor) throws FSMException {
+      return buildMultiFSM(fsmDef, oexa, es, builder, fsmIdExtractor, multiFSMConfig());
+    }
+
+    public MultiFSM buildMultiFSM(final FSMachineDef fsmDef, OnFSMExceptionAction oexa, FSMExternalState es,
+      FSMInternalStateBuilder builder, BaseIdExtractor fsmIdExtractor, MultiFSMConfig config) throws FSMException {
 
       MultiFSM multiFSM = new MultiFSM(fsmDef, oexa, fsmIdExtractor, es, builder, positiveBasicEvents, negativeBasicEvents,
-        positivePatternEvents, negativePatternEvents);
+        positivePatternEvents, negativePatternEvents, config);
       return multiFSM;
     }
 
@@ -94,10 +103,206 @@ public class FSMBuilder {
     }
   }
 
+  /**
+   * Runtime options of a MultiFSM, independent of the fsm definition.
+   */
+  public static class MultiFSMConfig {
+
+    FSMDiagnosticContext diagnosticContext = FSMDiagnosticContext.FULL;
+    int expectedInstances = 16;
+    long idleTimeout = 0;
+    FSMIdleHandler idleHandler = null;
+    long idleSweepPeriod = 0;
+    int idleSweepBatch = 10000;
+    long timerResolution = 10;
+    int timerSlots = 512;
+    FSMJournal journal = null;
+    FSMPassivationStore passivation = null;
+    long passivateAfter = 0;
+    FSMMetrics metrics = null;
+    int flightRecords = 1024;
+    int flightTimeSampling = 64;
+    FSMDeadLetterHandler deadLetterHandler = null;
+    long tombstoneWindow = 0;
+    int tombstoneKills = 0;
+    double tombstoneFpp = 0;
+    int pool = 0;
+
+    private MultiFSMConfig() {
+    }
+
+    /**
+     * Instances that receive no event for idleTimeout ms are killed. Needs a Timer port connected to the component
+     * of the MultiFSM.
+     */
+    public MultiFSMConfig setIdleTimeout(long idleTimeout) {
+      return setIdleTimeout(idleTimeout, null);
+    }
+
+    /**
+     * @param idleHandler called before an idle instance is killed, can be null
+     */
+    public MultiFSMConfig setIdleTimeout(long idleTimeout, FSMIdleHandler idleHandler) {
+      if (idleTimeout <= 0) {
+        throw new IllegalArgumentException("idle timeout:" + idleTimeout);
+      }
+      if (passivation != null) {
+        throw new IllegalArgumentException("idle expiry and passivation are exclusive");
+      }
+      this.idleTimeout = idleTimeout;
+      this.idleHandler = idleHandler;
+      return this;
+    }
+
+    /**
+     * Timer wheel backing the state timeouts of the definition - unused if no state declares one.
+     *
+     * @param resolution ms per tick - timeouts fire up to a tick late
+     * @param slots wheel size, rounded up to a power of 2. Timeouts longer than slots * resolution are revisited
+     * once per revolution
+     */
+    public MultiFSMConfig setTimerWheel(long resolution, int slots) {
+      if (resolution <= 0 || slots <= 0) {
+        throw new IllegalArgumentException("timer resolution:" + resolution + " slots:" + slots);
+      }
+      this.timerResolution = resolution;
+      this.timerSlots = slots;
+      return this;
+    }
+
+    /**
+     * @param period ms between sweeps - idle instances are expired between idleTimeout and idleTimeout + 2*period
+     * after their last event. Defaults to an eighth of the idle timeout, at least 10ms
+     * @param batch max instances examined per sweep, the rest is carried over to the next sweep
+     */
+    public MultiFSMConfig setIdleSweep(long period, int batch) {
+      if (period <= 0 || batch <= 0) {
+        throw new IllegalArgumentException("idle sweep period:" + period + " batch:" + batch);
+      }
+      this.idleSweepPeriod = period;
+      this.idleSweepBatch = batch;
+      return this;
+    }
+
+    /**
+     * sizes the instance map up front - it still grows past this, incrementally
+     */
+    public MultiFSMConfig setExpectedInstances(int expectedInstances) {
+      if (expectedInstances < 0) {
+        throw new IllegalArgumentException("expected instances:" + expectedInstances);
+      }
+      this.expectedInstances = expectedInstances;
+      return this;
+    }
+
+    /**
+     * Journals every event handled and every kill, for recovery with FSMJournal.recover. A journal serves a single
+     * MultiFSM.
+     */
+    public MultiFSMConfig setJournal(FSMJournal journal) {
+      this.journal = journal;
+      return this;
+    }
+
+    /**
+     * Instances that receive no event for passivateAfter ms are serialized into the store and dropped from the heap,
+     * to be rehydrated by their next event. Instances are not passivated while a state timeout runs. Exclusive with
+     * idle expiry - passivated instances do not expire. Needs a Timer port connected to the component of the
+     * MultiFSM.
+     */
+    public MultiFSMConfig setPassivation(FSMPassivationStore passivation, long passivateAfter) {
+      if (passivateAfter <= 0) {
+        throw new IllegalArgumentException("passivate after:" + passivateAfter);
+      }
+      if (idleTimeout > 0) {
+        throw new IllegalArgumentException("idle expiry and passivation are exclusive");
+      }
+      this.passivation = passivation;
+      this.passivateAfter = passivateAfter;
+      return this;
+    }
+
+    /**
+     * Records counters and handler latencies in metrics - shared by all the MultiFSMs of the definition.
+     */
+    public MultiFSMConfig setMetrics(FSMMetrics metrics) {
+      this.metrics = metrics;
+      return this;
+    }
+
+    /**
+     * The flight recorder keeps the last events handled - on by default, 1024 records, clock read every 64 events.
+     *
+     * @param records kept at least - 0 turns the recorder off
+     * @param timeSampling one in timeSampling records reads the clock and the handler latency
+     */
+    public MultiFSMConfig setFlightRecorder(int records, int timeSampling) {
+      if (records < 0 || records > 1 << 30 || timeSampling <= 0 || timeSampling > 1 << 30) {
+        throw new IllegalArgumentException("flight records:" + records + " time sampling:" + timeSampling);
+      }
+      this.flightRecords = records;
+      this.flightTimeSampling = timeSampling;
+      return this;
+    }
+
+    /**
+     * Events for an id with no instance create one only if START handles them - the others are dead letters, counted
+     * and passed to deadLetterHandler instead.
+     *
+     * @param deadLetterHandler can be null, dead letters are then only counted
+     */
+    public MultiFSMConfig setDeadLetterHandler(FSMDeadLetterHandler deadLetterHandler) {
+      this.deadLetterHandler = deadLetterHandler;
+      return this;
+    }
+
+    /**
+     * Remembers the ids of killed instances, so late or retransmitted events for them are dropped as dead letters
+     * instead of creating a fresh instance. Off by default - ids are then free to be reused right away.
+     *
+     * @param window ms a kill is remembered for, at least - up to twice as long
+     * @param expectedKills kills per window the filter is sized for - past it kills are remembered for less than the
+     * window
+     * @param fpp rate of first events of new instances wrongly dropped, with expectedKills kills per window
+     */
+    public MultiFSMConfig setTombstones(long window, int expectedKills, double fpp) {
+      if (window <= 0 || expectedKills <= 0 || !(fpp > 0 && fpp < 1)) {
+        throw new IllegalArgumentException("tombstone window:" + window + " expected kills:" + expectedKills
+          + " fpp:" + fpp);
+      }
+      this.tombstoneWindow = window;
+      this.tombstoneKills = expectedKills;
+      this.tombstoneFpp = fpp;
+      return this;
+    }
+
+    /**
+     * Keeps up to maxPooled killed machines for reuse by new instances, so create/kill churn does not allocate them.
+     * Internal states are reused as well if the builder is a FSMRecyclableStateBuilder - otherwise newState is still
+     * called per instance. Nothing may hold on to a killed instance or its internal state.
+     */
+    public MultiFSMConfig setPool(int maxPooled) {
+      if (maxPooled <= 0) {
+        throw new IllegalArgumentException("max pooled:" + maxPooled);
+      }
+      this.pool = maxPooled;
+      return this;
+    }
+
+    /**
+     * FULL by default. FULL puts the fsm strings in the slf4j MDC on every event, so allocation free dispatch needs
+     * OFF, or LAZY with the MultiFSM logger above debug.
+     */
+    public MultiFSMConfig setDiagnosticContext(FSMDiagnosticContext diagnosticContext) {
+      this.diagnosticContext = diagnosticContext;
+      return this;
+    }
+  }
+
   public static class StructuralDefinition {
 
     private final Table<FSMStateName, FSMStateName, Boolean> transitionTable = HashBasedTable.create();
-    private final Map<FSMStateName, FSMStateDef> states = new HashMap<>();
+    private final Map<FSMStateName, FSMStateDef> states = new LinkedHashMap<>();
 
     private StructuralDefinition() {
     }
@@ -114,7 +319,8 @@ public class FSMBuilder {
     }
 
     private void buildTransition(FSMStateName from, FSMStateName[] toStates, boolean toFinal,
-      Optional<FSMStateChangeHandler> onEntry, Optional<FSMStateChangeHandler> onExit)
+      Optional<FSMStateChangeHandler> onEntry, Optional<FSMStateChangeHandler> onExit,
+      long timeout, FSMTimeoutHandler timeoutHandler)
       throws FSMException {
 
       for (FSMStateName to : toStates) {
@@ -130,9 +336,13 @@ public class FSMBuilder {
       if (states.containsKey(from)) {
         throw new FSMException("state:" + from + "already defined");
       }
+      if (timeoutHandler != null && timeout <= 0) {
+        throw new FSMException("state:" + from + " timeout:" + timeout + " not positive");
+      }
       FSMStateDef stateDef = FSMStateDef.instance()
         .setOnEntry(onEntry)
-        .setOnExit(onExit);
+        .setOnExit(onExit)
+        .setTimeout(timeoutHandler == null ? 0 : timeout, timeoutHandler);
       states.put(from, stateDef);
     }
   }
@@ -146,6 +356,8 @@ public class FSMBuilder {
 
     private Optional<FSMStateChangeHandler> onEntry = Optional.empty();
     private Optional<FSMStateChangeHandler> onExit = Optional.empty();
+    private long timeout = 0;
+    private FSMTimeoutHandler timeoutHandler = null;
 
     private Transition(StructuralDefinition parent, FSMStateName from) {
       this.parent = parent;
@@ -162,6 +374,17 @@ public class FSMBuilder {
       return this;
     }
 
+    /**
+     * The handler is called if an instance stays in this state for duration ms, with the resolution of the timer
+     * wheel of the MultiFSM. The returned state has to be one of the next states. Needs a Timer port connected to the
+     * component of the MultiFSM.
+     */
+    public Transition timeout(long duration, FSMTimeoutHandler handler) {
+      this.timeout = duration;
+      this.timeoutHandler = handler;
+      return this;
+    }
+
     public Transition nextStates(FSMStateName... ids) {
       this.toStates = ids;
       return this;
@@ -176,17 +399,17 @@ public class FSMBuilder {
       if (toStates == null) {
         throw new FSMException("to states not registered");
       }
-      parent.buildTransition(from, toStates, toFinal, onEntry, onExit);
+      parent.buildTransition(from, toStates, toFinal, onEntry, onExit, timeout, timeoutHandler);
       return parent;
     }
   }
 
   public static class SemanticDefinition {
 
-    private final Map<Class, Set<Class>> negativeBasicEvents = new HashMap<>();
-    private final Map<Class, Set<Class>> positiveBasicEvents = new HashMap<>();
-    private final Map<Class, Set<Pair<Class, Class>>> positivePatternEvents = new HashMap<>();
-    private final Map<Class, Set<Pair<Class, Class>>> negativePatternEvents = new HashMap<>();
+    private final Map<Class, Set<Class>> negativeBasicEvents = new LinkedHashMap<>();
+    private final Map<Class, Set<Class>> positiveBasicEvents = new LinkedHashMap<>();
+    private final Map<Class, Set<Pair<Class, Class>>> positivePatternEvents = new LinkedHashMap<>();
+    private final Map<Class, Set<Pair<Class, Class>>> negativePatternEvents = new LinkedHashMap<>();
 
     private FSMBasicEventHandler defaultFallbackBasicEvent = FSMachine.DEFAULT_FALLABACK_BASIC_EVENTS;
     private FSMPatternEventHandler defaultFallbackPatternEvent = FSMachine.DEFAULT_FALLBACK_PATTERN_EVENTS;
@@ -222,44 +445,36 @@ public class FSMBuilder {
       Map<Class, FSMBasicEventHandler> basicFallback, 
       Map<Pair<Class, Class>, FSMPatternEventHandler> patternFallback) throws FSMException {
       if (pp) {
+        uniqueEvents(positiveBasicEvents, basicHandlers.keySet());
         positiveBasicEvents.put(portType, basicHandlers.keySet());
         for (Map.Entry<Class, Map<FSMStateName, FSMBasicEventHandler>> e : basicHandlers.entrySet()) {
-          if (positiveBasicEventHandlers.containsRow(e.getKey())) {
-            throw new FSMException("currently we do not allow same event in different ports(besides pos/neg");
-          }
           for (Map.Entry<FSMStateName, FSMBasicEventHandler> ee : e.getValue().entrySet()) {
             positiveBasicEventHandlers.put(e.getKey(), ee.getKey(), ee.getValue());
           }
         }
         positiveBasicFallbackHandlers.putAll(basicFallback);
         
+        uniqueEvents(positivePatternEvents, patternHandlers.keySet());
         positivePatternEvents.put(portType, patternHandlers.keySet());
         for (Map.Entry<Pair<Class, Class>, Map<FSMStateName, FSMPatternEventHandler>> e : patternHandlers.entrySet()) {
-          if (positivePatternEventHandlers.containsRow(e.getKey())) {
-            throw new FSMException("currently we do not allow same event in different ports(besides pos/neg");
-          }
           for (Map.Entry<FSMStateName, FSMPatternEventHandler> ee : e.getValue().entrySet()) {
             positivePatternEventHandlers.put(e.getKey(), ee.getKey(), ee.getValue());
           }
         }
         positivePatternFallback.putAll(patternFallback);
       } else {
+        uniqueEvents(negativeBasicEvents, basicHandlers.keySet());
         negativeBasicEvents.put(portType, basicHandlers.keySet());
         for (Map.Entry<Class, Map<FSMStateName, FSMBasicEventHandler>> e : basicHandlers.entrySet()) {
-          if (negativeBasicEventHandlers.containsRow(e.getKey())) {
-            throw new FSMException("currently we do not allow same event in different ports(besides pos/neg");
-          }
           for (Map.Entry<FSMStateName, FSMBasicEventHandler> ee : e.getValue().entrySet()) {
             negativeBasicEventHandlers.put(e.getKey(), ee.getKey(), ee.getValue());
           }
         }
         negativeBasicFallback.putAll(basicFallback);
         
+        uniqueEvents(negativePatternEvents, patternHandlers.keySet());
         negativePatternEvents.put(portType, patternHandlers.keySet());
         for (Map.Entry<Pair<Class, Class>, Map<FSMStateName, FSMPatternEventHandler>> e : patternHandlers.entrySet()) {
-          if (negativePatternEventHandlers.containsRow(e.getKey())) {
-            throw new FSMException("currently we do not allow same event in different ports(besides pos/neg");
-          }
           for (Map.Entry<FSMStateName, FSMPatternEventHandler> ee : e.getValue().entrySet()) {
             negativePatternEventHandlers.put(e.getKey(), ee.getKey(), ee.getValue());
           }
@@ -267,6 +482,17 @@ public class FSMBuilder {
         negativePatternFallback.putAll(patternFallback);
       }
     }
+
+    //checked on the events of the port, not on the handler tables - an event with only a fallback has no handler row
+    private static <E> void uniqueEvents(Map<Class, Set<E>> portEvents, Set<E> events) throws FSMException {
+      for (Set<E> other : portEvents.values()) {
+        for (E event : events) {
+          if (other.contains(event)) {
+            throw new FSMException("currently we do not allow same event in different ports(besides pos/neg");
+          }
+        }
+      }
+    }
   }
 
   public static class Port {
@@ -275,9 +501,10 @@ public class FSMBuilder {
     private final Class portType;
     private final boolean pp;
 
-    private final Map<Class, Map<FSMStateName, FSMBasicEventHandler>> basicHandlers = new HashMap<>();
+    private final Map<Class, Map<FSMStateName, FSMBasicEventHandler>> basicHandlers = new LinkedHashMap<>();
     private final Map<Class, FSMBasicEventHandler> basicFallback = new HashMap<>();
-    private final Map<Pair<Class, Class>, Map<FSMStateName, FSMPatternEventHandler>> patternHandlers = new HashMap<>();
+    private final Map<Pair<Class, Class>, Map<FSMStateName, FSMPatternEventHandler>> patternHandlers 
+      = new LinkedHashMap<>();
     private final Map<Pair<Class, Class>, FSMPatternEventHandler> patternFallback = new HashMap<>();
 
     public Port(SemanticDefinition parent, Class portType, boolean pp) {
@@ -428,6 +655,10 @@ public class FSMBuilder {
     return new SemanticDefinition();
   }
 
+  public static MultiFSMConfig multiFSMConfig() {
+    return new MultiFSMConfig();
+  }
+
   private static FSMachineDef fsmDef(FSMIdentifierFactory fsmIdFactory, String fsmName, StructuralDefinition m, SemanticDefinition h) throws FSMException {
     if (!m.transitionTable.containsRow(FSMBasicStateNames.START)) {
       throw new FSMException("START state not defined");
@@ -449,17 +680,39 @@ public class FSMBuilder {
       stateDef.getValue().setPositivePatternHandlers(h.positivePatternEventHandlers.column(stateDef.getKey()));
     }
 
+    //dense ids, in definition order, for the tables the definition compiles to
     FSMachineDef fsmDef = FSMachineDef.definition(fsmIdFactory, fsmName, m.states, m.transitionTable,
       h.defaultFallbackBasicEvent, h.defaultFallbackPatternEvent,
       h.positiveBasicFallbackHandlers, h.negativeBasicFallback,
-      h.positivePatternFallback, h.negativePatternFallback);
+      h.positivePatternFallback, h.negativePatternFallback,
+      eventIds(h.positiveBasicEvents), eventIds(h.negativeBasicEvents),
+      eventIds(h.positivePatternEvents), eventIds(h.negativePatternEvents));
 
     return fsmDef;
   }
 
+  private static <E> Map<E, Integer> eventIds(Map<Class, Set<E>> portEvents) {
+    Map<E, Integer> ids = new LinkedHashMap<>();
+    for (Set<E> events : portEvents.values()) {
+      for (E event : events) {
+        //same event on different ports of the same charge is rejected at definition - keep the first id regardless
+        if (!ids.containsKey(event)) {
+          ids.put(event, ids.size());
+        }
+      }
+    }
+    return ids;
+  }
+
   public static MultiFSM multiFSM(FSMIdentifierFactory fsmIdFactory, String fsmName, StructuralDefinition m, 
     SemanticDefinition h, FSMExternalState es,
     FSMInternalStateBuilder isb, OnFSMExceptionAction oexa, BaseIdExtractor fsmIdExtractor) throws FSMException {
+    return multiFSM(fsmIdFactory, fsmName, m, h, es, isb, oexa, fsmIdExtractor, multiFSMConfig());
+  }
+
+  public static MultiFSM multiFSM(FSMIdentifierFactory fsmIdFactory, String fsmName, StructuralDefinition m, 
+    SemanticDefinition h, FSMExternalState es, FSMInternalStateBuilder isb, OnFSMExceptionAction oexa, 
+    BaseIdExtractor fsmIdExtractor, MultiFSMConfig config) throws FSMException {
 
     FSMachineDef fsmDef = fsmDef(fsmIdFactory, fsmName, m, h);
 
@@ -468,7 +721,7 @@ public class FSMBuilder {
       .setNegativeBasicEvents(h.negativeBasicEvents)
       .setPositivePatternEvents(h.positivePatternEvents)
       .setNegativePatternEvents(h.negativePatternEvents)
-      .buildMultiFSM(fsmDef, oexa, es, isb, fsmIdExtractor);
+      .buildMultiFSM(fsmDef, oexa, es, isb, fsmIdExtractor, config);
     return multiFSM;
   }
 
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+/**
+ * How a MultiFSM populates the slf4j MDC (fsmName, fsmId, fsmState) around the events it handles.
+ */
+public enum FSMDiagnosticContext {
+  /**
+   * never populated
+   */
+  OFF,
+  /**
+   * populated for an event only if the MultiFSM logger is enabled for debug, or once an FSMException is raised,
+   * around the OnFSMExceptionAction. The info lines of FSMachine for unhandled events are logged without it - they
+   * carry the fsm id and state in the message instead
+   */
+  LAZY,
+  /**
+   * populated for every event
+   */
+  FULL
+}
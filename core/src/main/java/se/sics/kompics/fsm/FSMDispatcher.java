@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import se.sics.kompics.KompicsEvent;
+import se.sics.kompics.PatternExtractor;
+import se.sics.kompics.fsm.handler.FSMBasicEventHandler;
+import se.sics.kompics.fsm.handler.FSMPatternEventHandler;
+
+/**
+ * Base of the dispatchers generated by the fsm annotation processor from the FSM, OnEvent and OnPattern annotations.
+ * <p>
+ * Every handler of a generated definition is a numbered instance of the BasicHandler and PatternHandler subclasses
+ * generated inside its dispatcher - final and calling that one dispatcher - so the call from the adapter to
+ * handleBasic and handlePattern stays monomorphic however many definitions share the JVM. The generated handleBasic
+ * and handlePattern switch on the number and call the annotated methods directly, which the JIT can inline.
+ * <p>
+ * The state and event lookup is not generated: state ordinals and event ids are assigned by FSMBuilder when the
+ * definition is built, so the handlers still sit in the tables of FSMState. Its handler call site sees one adapter
+ * class per generated definition, next to the handler classes of definitions written against the builder - it is
+ * megamorphic as soon as more than two of them are in use.
+ */
+public abstract class FSMDispatcher {
+
+  protected abstract FSMStateName handleBasic(int handler, FSMStateName state, FSMExternalState es,
+    FSMInternalState is, KompicsEvent event) throws FSMException;
+
+  protected abstract FSMStateName handlePattern(int handler, FSMStateName state, FSMExternalState es,
+    FSMInternalState is, KompicsEvent payload, PatternExtractor container) throws FSMException;
+
+  /**
+   * Base of the basic handler adapter generated inside each dispatcher.
+   */
+  protected abstract static class BasicHandler
+    implements FSMBasicEventHandler<FSMExternalState, FSMInternalState, KompicsEvent> {
+
+    protected final int handler;
+
+    protected BasicHandler(int handler) {
+      this.handler = handler;
+    }
+
+    @Override
+    public String toString() {
+      return getClass().getEnclosingClass().getName() + "#basic" + handler;
+    }
+  }
+
+  /**
+   * Base of the pattern handler adapter generated inside each dispatcher.
+   */
+  protected abstract static class PatternHandler
+    implements FSMPatternEventHandler<FSMExternalState, FSMInternalState, KompicsEvent, PatternExtractor> {
+
+    protected final int handler;
+
+    protected PatternHandler(int handler) {
+      this.handler = handler;
+    }
+
+    @Override
+    public String toString() {
+      return getClass().getEnclosingClass().getName() + "#pattern" + handler;
+    }
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+/**
+ * When the records of an FSMJournal reach the disk.
+ */
+public enum FSMDurability {
+  /**
+   * handed to the OS when the journal buffer fills up or the sync interval passes, never forced - survives a crash of
+   * the process, not of the machine
+   */
+  NONE,
+  /**
+   * group commit - written and forced to disk when the journal buffer fills up or the sync interval passes. A crash
+   * loses at most the last interval
+   */
+  BATCH,
+  /**
+   * written and forced to disk with every record
+   */
+  SYNC
+}
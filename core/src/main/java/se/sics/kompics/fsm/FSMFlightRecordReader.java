@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Reads the dumps of FSMFlightRecorder. Run as a tool, prints the records of the dump files given as arguments, one
+ * per line:
+ * <pre>
+ * seq time fsmId from -event-> to outcome handler_ns
+ * </pre>
+ * A time prefixed by ~ was not read for the record, it is the last reading before it. Handler nanos are only known
+ * for the records with exact times.
+ */
+public class FSMFlightRecordReader {
+
+  public static class Record {
+
+    public final long seq;
+    //ns since the epoch
+    public final long time;
+    public final boolean exactTime;
+    public final String baseId;
+    public final String from;
+    public final String event;
+    //FINAL for a kill
+    public final String to;
+    public final String outcome;
+    //-1 if not measured
+    public final long handlerNanos;
+
+    Record(long seq, long time, boolean exactTime, String baseId, String from, String event, String to, 
+      String outcome, long handlerNanos) {
+      this.seq = seq;
+      this.time = time;
+      this.exactTime = exactTime;
+      this.baseId = baseId;
+      this.from = from;
+      this.event = event;
+      this.to = to;
+      this.outcome = outcome;
+      this.handlerNanos = handlerNanos;
+    }
+
+    @Override
+    public String toString() {
+      String date = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(time / 1000000));
+      String ns = String.format("%06d", time % 1000000);
+      return seq + " " + (exactTime ? "" : "~") + date + ns + " " + baseId + " " + from + " -" + event + "-> " + to
+        + " " + outcome + " " + (handlerNanos < 0 ? "-" : handlerNanos + "ns");
+    }
+  }
+
+  private static final String[] OUTCOMES = {"handled", "fallback", "unhandled"};
+
+  public final String fsmName;
+  public final List<Record> records;
+
+  private FSMFlightRecordReader(String fsmName, List<Record> records) {
+    this.fsmName = fsmName;
+    this.records = records;
+  }
+
+  public static FSMFlightRecordReader read(File file) throws IOException, FSMException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != FSMFlightRecorder.MAGIC) {
+        throw new FSMException("file:" + file + " is not an fsm flight record");
+      }
+      if (in.readInt() != FSMFlightRecorder.VERSION) {
+        throw new FSMException("flight record:" + file + " has an unknown version");
+      }
+      String fsmName = in.readUTF();
+      long epochNanos = in.readLong();
+      String[] states = readNames(in);
+      String[] events = readNames(in);
+      long seq = in.readLong();
+      int nrRecords = in.readInt();
+      List<Record> records = new ArrayList<>(nrRecords);
+      for (int i = 0; i < nrRecords; i++) {
+        long time = in.readLong();
+        String baseId = in.readUTF();
+        long code = in.readLong();
+        long nanos = in.readLong();
+        int from = (int) (code >>> 48);
+        int to = (int) (code >>> 32) & 0xFFFF;
+        int event = (int) code >>> 8;
+        records.add(new Record(seq + i, epochNanos + time, nanos >= 0, baseId, states[from], events[event],
+          to == FSMFlightRecorder.FINAL ? FSMBasicStateNames.FINAL.toString() : states[to],
+          OUTCOMES[(int) code & 0xFF], nanos));
+      }
+      return new FSMFlightRecordReader(fsmName, records);
+    }
+  }
+
+  private static String[] readNames(DataInputStream in) throws IOException {
+    String[] names = new String[in.readInt()];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = in.readUTF();
+    }
+    return names;
+  }
+
+  public static void main(String[] args) throws IOException, FSMException {
+    if (args.length == 0) {
+      System.err.println("usage: FSMFlightRecordReader dump...");
+      System.exit(1);
+    }
+    for (String arg : args) {
+      FSMFlightRecordReader dump = read(new File(arg));
+      System.out.println("# fsm:" + dump.fsmName + " records:" + dump.records.size() + " from:" + arg);
+      for (Record record : dump.records) {
+        System.out.println(record);
+      }
+    }
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import se.sics.kompics.util.Identifier;
+
+/**
+ * Always-on history of the last events handled by the instances of a MultiFSM: time, base id, state before, event,
+ * state after, outcome and handler nanos.
+ * <p>
+ * Records go into a ring of preallocated primitive arrays, written only by the thread of the component. A write is a
+ * handful of array stores and the lazySet of the write sequence - no locks, no allocation, no clock read. The clock is
+ * read only for the events whose latency is sampled - one in timeSampling - and the others are stamped with the last
+ * reading, so times are exact for sampled records and a lower bound for the rest.
+ * <p>
+ * dump can be called from any thread: it copies the ring and keeps the records not overwritten during the copy.
+ * Without a load fence (Java 7) this is best effort - a record written at the very moment of the copy can show mixed
+ * fields. The file is read back by FSMFlightRecordReader.
+ */
+public class FSMFlightRecorder {
+
+  static final int MAGIC = 0x46534d46;
+  static final int VERSION = 1;
+  //to state of a kill
+  static final int FINAL = 0xFFFF;
+  private static final int SLOT = 3;
+
+  private final String fsmName;
+  private final String[] states;
+  //the events of the definition, then the state timeout
+  private final String[] events;
+  private final int timeoutEvent;
+  private final int mask;
+  private final int samplingMask;
+  //wall clock at nanoTime zero, approximately
+  private final long epochNanos;
+
+  //per record, next to each other: time, handler nanos, code - from << 48 | to << 32 | event << 8 | outcome
+  private final long[] slots;
+  private final Object[] baseIds;
+  private final AtomicLong written = new AtomicLong(0);
+  private long seq = 0;
+  private long lastClock;
+  private int sampled = 0;
+
+  /**
+   * @param capacity records kept at least - the ring is the next power of 2, one slot is left out of dumps as it may be
+   * being written
+   * @param timeSampling one in timeSampling records reads the clock, rounded up to a power of 2
+   */
+  FSMFlightRecorder(FSMachineDef fsmDef, int capacity, int timeSampling) {
+    this.fsmName = fsmDef.fsmName;
+    this.states = fsmDef.stateNames();
+    this.events = new String[fsmDef.eventNames.length + 1];
+    System.arraycopy(fsmDef.eventNames, 0, events, 0, fsmDef.eventNames.length);
+    this.timeoutEvent = fsmDef.eventNames.length;
+    events[timeoutEvent] = "timeout";
+    int size = powerOf2(capacity + 1);
+    this.mask = size - 1;
+    this.samplingMask = powerOf2(timeSampling) - 1;
+    this.slots = new long[size * SLOT];
+    this.baseIds = new Object[size];
+    this.lastClock = System.nanoTime();
+    this.epochNanos = System.currentTimeMillis() * 1000000 - lastClock;
+  }
+
+  private static int powerOf2(int n) {
+    return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+  }
+
+  /**
+   * @return true if the clock is to be read for the next event
+   */
+  boolean sample() {
+    return (++sampled & samplingMask) == 0;
+  }
+
+  /**
+   * @param start clock at the start of the handler, 0 if not read
+   * @param handlerNanos -1 if not measured
+   */
+  void record(Identifier baseId, int from, int event, int to, int outcome, long start, long handlerNanos) {
+    if (start != 0) {
+      lastClock = start;
+    }
+    int i = (int) seq & mask;
+    int slot = i * SLOT;
+    slots[slot] = lastClock;
+    slots[slot + 1] = handlerNanos;
+    slots[slot + 2] = (long) from << 48 | (long) to << 32 | event << 8 | outcome;
+    baseIds[i] = baseId;
+    written.lazySet(++seq);
+  }
+
+  void timeout(Identifier baseId, int from, int to) {
+    record(baseId, from, timeoutEvent, to, FSMachine.HANDLED, 0, -1);
+  }
+
+  /**
+   * @return the most records a dump can hold
+   */
+  public int capacity() {
+    return mask;
+  }
+
+  /**
+   * @return events recorded since the start, including the ones overwritten
+   */
+  public long recorded() {
+    return written.get();
+  }
+
+  /**
+   * Writes the records still in the ring, oldest first.
+   *
+   * @return the number of records written
+   */
+  public int dump(File file) throws IOException {
+    int size = mask + 1;
+    long end = written.get();
+    long[] copy = slots.clone();
+    Object[] ids = baseIds.clone();
+    //slots written since end may have been overwritten while copying - as may the oldest ones up to the new end
+    long after = written.get();
+    long first = Math.max(0, Math.max(end - size, after - size + 1));
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(fsmName);
+      out.writeLong(epochNanos);
+      writeNames(out, states);
+      writeNames(out, events);
+      out.writeLong(first);
+      out.writeInt((int) (end - first));
+      for (long s = first; s < end; s++) {
+        int i = (int) s & mask;
+        out.writeLong(copy[i * SLOT]);
+        out.writeUTF(String.valueOf(ids[i]));
+        out.writeLong(copy[i * SLOT + 2]);
+        out.writeLong(copy[i * SLOT + 1]);
+      }
+    }
+    return (int) (end - first);
+  }
+
+  private static void writeNames(DataOutputStream out, String[] names) throws IOException {
+    out.writeInt(names.length);
+    for (String name : names) {
+      out.writeUTF(name);
+    }
+  }
+}
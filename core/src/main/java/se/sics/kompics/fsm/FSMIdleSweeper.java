@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Expires the instances of a MultiFSM that received no event for the idle timeout.
+ * <p>
+ * Time is counted in sweeps, driven by the FSMTicker of the MultiFSM. Dispatch only stamps the current sweep on the
+ * instance (lastTouched). Instances sit in a ring of buckets, one per tick, in intrusive lists and are
+ * only re-bucketed lazily: when the bucket they were put in comes up, an instance touched in the meantime is moved to
+ * the bucket of its actual expiry, the others are expired. Each tick examines at most maxBatch instances, the rest
+ * is carried over to the next ticks.
+ */
+class FSMIdleSweeper {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FSMIdleSweeper.class);
+
+  private final MultiFSM multiFSM;
+  private final long idleTicks;
+  private final int maxBatch;
+  private final FSMachine[] buckets;
+  //current tick
+  long now = 0;
+  //next tick whose bucket is to be swept
+  private long swept = 1;
+
+  FSMIdleSweeper(MultiFSM multiFSM, long idleTimeout, long period, int maxBatch) {
+    this.multiFSM = multiFSM;
+    this.idleTicks = (idleTimeout + period - 1) / period;
+    this.maxBatch = maxBatch;
+    //expiries are at most idleTicks + 1 ahead of now
+    this.buckets = new FSMachine[(int) idleTicks + 2];
+  }
+
+  private long expiry(long touched) {
+    return touched + idleTicks + 1;
+  }
+
+  private int bucket(long tick) {
+    return (int) (tick % buckets.length);
+  }
+
+  void add(FSMachine fsm) {
+    fsm.lastTouched = now;
+    link(fsm, bucket(expiry(now)));
+  }
+
+  void remove(FSMachine fsm) {
+    if (fsm.idleBucket >= 0) {
+      unlink(fsm);
+    }
+  }
+
+  void tick() {
+    now++;
+    int budget = maxBatch;
+    while (swept <= now) {
+      int b = bucket(swept);
+      FSMachine fsm = buckets[b];
+      while (fsm != null) {
+        if (budget == 0) {
+          LOG.debug("idle sweep batch full, carrying over from tick:{} to:{}", swept, now);
+          return;
+        }
+        budget--;
+        FSMachine next = fsm.idleNext;
+        unlink(fsm);
+        long expiresAt = expiry(fsm.lastTouched);
+        if (expiresAt <= now) {
+          multiFSM.expire(fsm);
+        } else {
+          int target = bucket(expiresAt);
+          //never back into the bucket being swept - only happens while carrying over, costs an early look
+          link(fsm, target == b ? bucket(swept + 1) : target);
+        }
+        fsm = next;
+      }
+      swept++;
+    }
+  }
+
+  private void link(FSMachine fsm, int b) {
+    FSMachine head = buckets[b];
+    fsm.idleBucket = b;
+    fsm.idlePrev = null;
+    fsm.idleNext = head;
+    if (head != null) {
+      head.idlePrev = fsm;
+    }
+    buckets[b] = fsm;
+  }
+
+  private void unlink(FSMachine fsm) {
+    if (fsm.idlePrev == null) {
+      buckets[fsm.idleBucket] = fsm.idleNext;
+    } else {
+      fsm.idlePrev.idleNext = fsm.idleNext;
+    }
+    if (fsm.idleNext != null) {
+      fsm.idleNext.idlePrev = fsm.idlePrev;
+    }
+    fsm.idleBucket = -1;
+    fsm.idlePrev = null;
+    fsm.idleNext = null;
+  }
+
+}
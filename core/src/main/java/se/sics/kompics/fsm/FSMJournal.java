@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sics.kompics.fsm.id.FSMIdentifier;
+import se.sics.kompics.util.Identifier;
+
+/**
+ * Write-ahead journal of a MultiFSM, in a directory of its own. Every event handled by an instance appends the
+ * outcome - the state it ended up in and its internal state - and every kill a tombstone. Recovery loads the latest
+ * snapshot and replays the journal on top of it. Records carry the outcome rather than the event, so replay does not
+ * run the handlers again and does not repeat what they triggered; replaying a record twice is harmless.
+ * <p>
+ * The journal is a sequence of append-only segments, each starting with the fsm name and its state names. A new
+ * segment is started when the current one reaches the segment size, on every restart and on every checkpoint. A
+ * checkpoint writes a snapshot and deletes the segments it covers.
+ * <p>
+ * Record: payload length, crc32 of the payload, payload - type, state ordinal, base id and internal state (the last
+ * two as encoded by the codec). Replay stops reading a segment at the first incomplete or corrupt record - the torn
+ * tail of a crash.
+ * <p>
+ * Not thread safe - used from the thread of the component of the MultiFSM.
+ */
+public class FSMJournal {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FSMJournal.class);
+  private static final int MAGIC = 0x46534d4a;
+  private static final int VERSION = 1;
+  private static final String SEGMENT_PREFIX = "journal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final byte UPDATE = 1;
+  private static final byte KILL = 2;
+
+  private final File dir;
+  private final FSMInternalStateCodec codec;
+  FSMDurability durability = FSMDurability.BATCH;
+  //ms
+  long syncInterval = 10;
+  private long segmentSize = 64 << 20;
+  private int bufferSize = 1 << 20;
+
+  private MultiFSM multiFSM;
+  //by ordinal
+  private FSMStateName[] states;
+  private long nextSegment;
+  private FileChannel segment;
+  private long segmentSeq = -1;
+  private long segmentBytes;
+  private ByteBuffer buffer;
+  private ByteBuffer record = ByteBuffer.allocate(256);
+  private final CRC32 crc = new CRC32();
+  //written to the channel but not forced
+  private boolean unsynced = false;
+  private long lastSync = System.nanoTime();
+  //null if not checkpointed periodically
+  private File snapshot;
+  long checkpointInterval;
+  private long lastCheckpoint = System.nanoTime();
+  private boolean replaying = false;
+
+  private FSMJournal(File dir, FSMInternalStateCodec codec, long nextSegment) {
+    this.dir = dir;
+    this.codec = codec;
+    this.nextSegment = nextSegment;
+  }
+
+  /**
+   * Appends go to a new segment, after the ones already in dir.
+   */
+  public static FSMJournal open(File dir, FSMInternalStateCodec codec) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("can't create journal dir:" + dir);
+    }
+    List<Long> segments = segments(dir);
+    return new FSMJournal(dir, codec, segments.isEmpty() ? 0 : segments.get(segments.size() - 1) + 1);
+  }
+
+  /**
+   * @param syncInterval ms - the longest records wait in the buffer (NONE, BATCH). Needs a Timer port connected to
+   * the component of the MultiFSM
+   */
+  public FSMJournal setDurability(FSMDurability durability, long syncInterval) {
+    if (syncInterval <= 0) {
+      throw new IllegalArgumentException("sync interval:" + syncInterval);
+    }
+    this.durability = durability;
+    this.syncInterval = syncInterval;
+    return this;
+  }
+
+  public FSMJournal setSegmentSize(long segmentSize) {
+    if (segmentSize <= 0) {
+      throw new IllegalArgumentException("segment size:" + segmentSize);
+    }
+    this.segmentSize = segmentSize;
+    return this;
+  }
+
+  /**
+   * @param bufferSize bytes collected before a write (NONE, BATCH)
+   */
+  public FSMJournal setBufferSize(int bufferSize) {
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("buffer size:" + bufferSize);
+    }
+    this.bufferSize = bufferSize;
+    return this;
+  }
+
+  /**
+   * @param checkpointInterval ms - the ticker of the MultiFSM writes the snapshot and compacts the journal this often.
+   * Needs a Timer port connected to the component of the MultiFSM
+   */
+  public FSMJournal setCheckpoint(File snapshot, long checkpointInterval) {
+    if (checkpointInterval <= 0) {
+      throw new IllegalArgumentException("checkpoint interval:" + checkpointInterval);
+    }
+    this.snapshot = snapshot;
+    this.checkpointInterval = checkpointInterval;
+    return this;
+  }
+
+  void attach(MultiFSM multiFSM) {
+    if (this.multiFSM != null) {
+      throw new IllegalStateException("journal:" + dir + " already used by another MultiFSM");
+    }
+    this.multiFSM = multiFSM;
+    this.states = new FSMStateName[multiFSM.fsmDef.states.size()];
+    for (FSMState state : multiFSM.fsmDef.states.values()) {
+      states[state.ordinal] = state.state;
+    }
+    this.buffer = ByteBuffer.allocateDirect(bufferSize);
+  }
+
+  private static List<Long> segments(File dir) {
+    List<Long> segments = new ArrayList<>();
+    String[] names = dir.list();
+    if (names != null) {
+      for (String name : names) {
+        if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+          segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+        }
+      }
+    }
+    Collections.sort(segments);
+    return segments;
+  }
+
+  private File segmentFile(long seq) {
+    return new File(dir, String.format("%s%020d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+  }
+
+  //****************************************************APPEND**********************************************************
+  void update(FSMachine fsm) throws FSMException {
+    if (!replaying) {
+      append(UPDATE, fsm.fsmId.baseId, fsm.currentState.ordinal, fsm.getFSMInternalState());
+    }
+  }
+
+  void kill(Identifier baseId) throws FSMException {
+    if (!replaying) {
+      append(KILL, baseId, -1, null);
+    }
+  }
+
+  private void append(byte type, Identifier baseId, int state, FSMInternalState is) throws FSMException {
+    try {
+      encode(type, baseId, state, is);
+      if (segment == null || segmentBytes >= segmentSize) {
+        roll();
+      }
+      int length = 8 + record.remaining();
+      if (buffer.remaining() < length) {
+        write();
+        sync();
+        if (buffer.capacity() < length) {
+          buffer = ByteBuffer.allocateDirect(length);
+        }
+      }
+      crc.reset();
+      crc.update(record.array(), 0, record.limit());
+      buffer.putInt(record.remaining()).putInt((int) crc.getValue()).put(record);
+      segmentBytes += length;
+      if (durability == FSMDurability.SYNC) {
+        write();
+        sync();
+      }
+    } catch (IOException ex) {
+      throw new FSMException("journal:" + dir + " append failed:" + ex);
+    }
+  }
+
+  private void encode(byte type, Identifier baseId, int state, FSMInternalState is) {
+    while (true) {
+      try {
+        record.clear();
+        record.put(type).putInt(state);
+        codec.encodeBaseId(baseId, record);
+        if (is != null) {
+          codec.encode(is, record);
+        }
+        record.flip();
+        return;
+      } catch (BufferOverflowException ex) {
+        record = ByteBuffer.allocate(record.capacity() << 1);
+      }
+    }
+  }
+
+  private void write() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      segment.write(buffer);
+    }
+    buffer.clear();
+    unsynced = true;
+  }
+
+  private void sync() throws IOException {
+    if (unsynced && durability != FSMDurability.NONE) {
+      segment.force(false);
+    }
+    unsynced = false;
+    lastSync = System.nanoTime();
+  }
+
+  /**
+   * Driven by the ticker of the MultiFSM - group commit of what gathered over the sync interval and the periodic
+   * checkpoint.
+   */
+  void tick() throws FSMException {
+    long now = System.nanoTime();
+    if (segment != null && now - lastSync >= syncInterval * 1000000) {
+      try {
+        if (buffer.position() > 0) {
+          write();
+        }
+        sync();
+      } catch (IOException ex) {
+        throw new FSMException("journal:" + dir + " sync failed:" + ex);
+      }
+    }
+    if (snapshot != null && now - lastCheckpoint >= checkpointInterval * 1000000) {
+      lastCheckpoint = now;
+      try {
+        checkpoint(snapshot);
+      } catch (IOException ex) {
+        throw new FSMException("journal:" + dir + " checkpoint failed:" + ex);
+      }
+    }
+  }
+
+  private void roll() throws IOException {
+    closeSegment();
+    segmentSeq = nextSegment++;
+    segment = new RandomAccessFile(segmentFile(segmentSeq), "rw").getChannel();
+    segment.truncate(0);
+    ByteBuffer header = header();
+    while (header.hasRemaining()) {
+      segment.write(header);
+    }
+    segmentBytes = header.limit();
+  }
+
+  private void closeSegment() throws IOException {
+    if (segment != null) {
+      if (buffer.position() > 0) {
+        write();
+      }
+      sync();
+      segment.close();
+      segment = null;
+    }
+  }
+
+  private ByteBuffer header() {
+    List<byte[]> names = new ArrayList<>();
+    names.add(multiFSM.fsmDef.fsmName.getBytes(StandardCharsets.UTF_8));
+    for (FSMStateName state : states) {
+      names.add(state.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    int size = 12;
+    for (byte[] name : names) {
+      size += 4 + name.length;
+    }
+    ByteBuffer header = ByteBuffer.allocate(size);
+    header.putInt(MAGIC).putInt(VERSION);
+    putBytes(header, names.get(0));
+    header.putInt(states.length);
+    for (int i = 1; i < names.size(); i++) {
+      putBytes(header, names.get(i));
+    }
+    header.flip();
+    return header;
+  }
+
+  private static void putBytes(ByteBuffer buf, byte[] bytes) {
+    buf.putInt(bytes.length).put(bytes);
+  }
+
+  private static String getString(ByteBuffer buf) {
+    byte[] bytes = new byte[buf.getInt()];
+    buf.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Writes and forces what is buffered and closes the current segment. The MultiFSMComp does it on tear down.
+   */
+  public void close() throws IOException {
+    closeSegment();
+  }
+
+  //****************************************************RECOVERY********************************************************
+  /**
+   * Loads the snapshot, if there is one, and replays the journal on top of it. Called before the component of the
+   * MultiFSM starts.
+   *
+   * @return the number of live instances recovered
+   */
+  public long recover(File snapshot, int threads) throws IOException, FSMException {
+    //what is recovered is already on disk - journaling it again would put stale records after newer ones
+    replaying = true;
+    long records = 0;
+    try {
+      if (snapshot.exists()) {
+        FSMSnapshot.load(multiFSM, snapshot, codec, threads);
+      }
+      for (long seq : segments(dir)) {
+        if (seq >= nextSegment) {
+          break;
+        }
+        records += replay(segmentFile(seq));
+      }
+    } finally {
+      replaying = false;
+    }
+    LOG.info("fsm:{} recovered {} instances - {} journal records", 
+      new Object[]{multiFSM.fsmDef.fsmName, multiFSM.size(), records});
+    return multiFSM.size();
+  }
+
+  private long replay(File file) throws IOException, FSMException {
+    ByteBuffer seg;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel ch = raf.getChannel()) {
+      seg = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+    }
+    if (seg.remaining() < 12 || seg.getInt() != MAGIC || seg.getInt() != VERSION) {
+      LOG.warn("journal segment:{} has no valid header - skipped", file);
+      return 0;
+    }
+    String fsmName = getString(seg);
+    if (!fsmName.equals(multiFSM.fsmDef.fsmName)) {
+      throw new FSMException("journal segment:" + file + " of fsm:" + fsmName + " can't be replayed in:"
+        + multiFSM.fsmDef.fsmName);
+    }
+    Map<String, FSMState> defStates = new HashMap<>();
+    for (FSMState state : multiFSM.fsmDef.states.values()) {
+      defStates.put(state.state.toString(), state);
+    }
+    FSMStateName[] states = new FSMStateName[seg.getInt()];
+    for (int i = 0; i < states.length; i++) {
+      String name = getString(seg);
+      FSMState state = defStates.get(name);
+      if (state == null) {
+        throw new FSMException("journal state:" + name + " not defined in fsm:" + fsmName);
+      }
+      states[i] = state.state;
+    }
+    byte[] payload = new byte[256];
+    long records = 0;
+    while (seg.remaining() >= 8) {
+      int length = seg.getInt();
+      int checksum = seg.getInt();
+      if (length <= 0 || length > seg.remaining()) {
+        LOG.warn("journal segment:{} ends with a torn record", file);
+        break;
+      }
+      if (payload.length < length) {
+        payload = new byte[length];
+      }
+      seg.get(payload, 0, length);
+      crc.reset();
+      crc.update(payload, 0, length);
+      if ((int) crc.getValue() != checksum) {
+        LOG.warn("journal segment:{} ends with a corrupt record", file);
+        break;
+      }
+      apply(ByteBuffer.wrap(payload, 0, length), states);
+      records++;
+    }
+    return records;
+  }
+
+  private void apply(ByteBuffer rec, FSMStateName[] states) throws FSMException {
+    byte type = rec.get();
+    int state = rec.getInt();
+    Identifier baseId = codec.decodeBaseId(rec);
+    //whatever the instance was, the record has the latest word on it
+    multiFSM.exportFSM(baseId);
+    if (type == UPDATE) {
+      FSMIdentifier fsmId = multiFSM.fsmDef.getFsmId(baseId);
+      multiFSM.importFSM(new FSMExport(fsmId, states[state], codec.decode(fsmId, rec)));
+    }
+  }
+
+  //****************************************************COMPACTION******************************************************
+  /**
+   * Writes a snapshot of the MultiFSM and deletes the journal segments it covers. Called from the thread of the
+   * component of the MultiFSM - the ticker does it when a checkpoint interval is set.
+   */
+  public void checkpoint(File snapshot) throws IOException, FSMException {
+    //the records of everything up to now are in the segments before the new one
+    closeSegment();
+    long covered = nextSegment;
+    File tmp = new File(snapshot.getPath() + ".tmp");
+    FSMSnapshot.write(multiFSM, tmp, codec);
+    Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    int deleted = 0;
+    for (long seq : segments(dir)) {
+      if (seq < covered && segmentFile(seq).delete()) {
+        deleted++;
+      }
+    }
+    LOG.info("fsm:{} checkpoint:{} deleted {} journal segments", 
+      new Object[]{multiFSM.fsmDef.fsmName, snapshot, deleted});
+  }
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and handler latency histograms of one fsm definition, over all the MultiFSMs built with it - e.g. the
+ * shards of a ShardedMultiFSMComp.
+ * <p>
+ * Each MultiFSM records into a stripe of its own, from the thread of its component, so recording is a plain
+ * increment published with lazySet - no locks, no contended cache lines. Reading sums the stripes and can run on any
+ * thread; it sees each counter with a short lag and the counters not as of one instant. Handler latency costs two
+ * clock reads and is only measured for one in latencySampling events.
+ * <p>
+ * Read through the getters (pull) or as an MXBean once registered.
+ */
+public class FSMMetrics implements FSMMetricsMXBean {
+
+  public static final String JMX_DOMAIN = "se.sics.kompics.fsm";
+  //latency buckets - the last one also holds anything above 2^38 ns
+  static final int BUCKETS = 40;
+  private static final int CREATED = 0;
+  private static final int KILLED = 1;
+  private static final int IMPORTED = 2;
+  private static final int EXPORTED = 3;
+  //counters of a stripe
+  private static final int OCCUPANCY = 0;
+  private static final int TRANSITIONS = 1;
+  private static final int OUTCOMES = 2;
+  private static final int LATENCY = 3;
+  private static final int LATENCY_SUM = 4;
+  private static final int DEAD_LETTERS = 5;
+  private static final int TOMBSTONED = 6;
+
+  private final String fsmName;
+  private int samplingMask = 15;
+  private final List<Stripe> stripes = new CopyOnWriteArrayList<>();
+  //dimensions, fixed by the first MultiFSM attached
+  private String[] states;
+  private String[] events;
+  private ObjectName objectName;
+
+  private FSMMetrics(String fsmName) {
+    this.fsmName = fsmName;
+  }
+
+  public static FSMMetrics instance(String fsmName) {
+    return new FSMMetrics(fsmName);
+  }
+
+  /**
+   * Applies to the MultiFSMs attached afterwards.
+   *
+   * @param every latency is measured for one in every events, rounded up to a power of 2. 1 measures all events.
+   * Defaults to 16
+   */
+  public FSMMetrics setLatencySampling(int every) {
+    if (every <= 0 || every > 1 << 30) {
+      throw new IllegalArgumentException("latency sampling:" + every);
+    }
+    int pow = every == 1 ? 1 : Integer.highestOneBit(every - 1) << 1;
+    this.samplingMask = pow - 1;
+    return this;
+  }
+
+  synchronized Stripe stripe(FSMachineDef fsmDef) {
+    if (!fsmName.equals(fsmDef.fsmName)) {
+      throw new IllegalStateException("metrics of fsm:" + fsmName + " can't be used by:" + fsmDef.fsmName);
+    }
+    String[] defStates = fsmDef.stateNames();
+    if (states == null) {
+      states = defStates;
+      events = fsmDef.eventNames;
+    } else if (!Arrays.equals(states, defStates) || !Arrays.equals(events, fsmDef.eventNames)) {
+      throw new IllegalStateException("metrics of fsm:" + fsmName + " used by definitions of different shape");
+    }
+    Stripe stripe = new Stripe(states.length, events.length, samplingMask);
+    stripes.add(stripe);
+    return stripe;
+  }
+
+  //*************************************************JMX****************************************************************
+  /**
+   * Registers with the platform MBean server as se.sics.kompics.fsm:type=FSMMetrics,name=fsmName
+   */
+  public synchronized void register() throws JMException {
+    if (objectName == null) {
+      ObjectName name = new ObjectName(JMX_DOMAIN + ":type=FSMMetrics,name=" + ObjectName.quote(fsmName));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+      objectName = name;
+    }
+  }
+
+  public synchronized void unregister() throws JMException {
+    if (objectName != null) {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      objectName = null;
+    }
+  }
+
+  //*************************************************PULL***************************************************************
+  @Override
+  public String getFsmName() {
+    return fsmName;
+  }
+
+  @Override
+  public long getInstances() {
+    return lifecycle(CREATED) + lifecycle(IMPORTED) - lifecycle(KILLED) - lifecycle(EXPORTED);
+  }
+
+  @Override
+  public long getCreations() {
+    return lifecycle(CREATED);
+  }
+
+  @Override
+  public long getKills() {
+    return lifecycle(KILLED);
+  }
+
+  @Override
+  public long getImports() {
+    return lifecycle(IMPORTED);
+  }
+
+  @Override
+  public long getExports() {
+    return lifecycle(EXPORTED);
+  }
+
+  private long lifecycle(int what) {
+    long sum = 0;
+    for (Stripe stripe : stripes) {
+      sum += stripe.lifecycle.get(what);
+    }
+    return sum;
+  }
+
+  @Override
+  public Map<String, Long> getOccupancy() {
+    Map<String, Long> occupancy = new LinkedHashMap<>();
+    if (states == null) {
+      return occupancy;
+    }
+    long[] sums = sum(states.length, OCCUPANCY);
+    for (int i = 0; i < states.length; i++) {
+      occupancy.put(states[i], sums[i]);
+    }
+    return occupancy;
+  }
+
+  @Override
+  public Map<String, Long> getTransitions() {
+    Map<String, Long> transitions = new LinkedHashMap<>();
+    if (states == null) {
+      return transitions;
+    }
+    int to = states.length + 1;
+    long[] sums = sum(states.length * to, TRANSITIONS);
+    for (int i = 0; i < sums.length; i++) {
+      if (sums[i] != 0) {
+        String next = i % to == states.length ? FSMBasicStateNames.FINAL.toString() : states[i % to];
+        transitions.put(states[i / to] + "->" + next, sums[i]);
+      }
+    }
+    return transitions;
+  }
+
+  @Override
+  public Map<String, Long> getHandled() {
+    return outcomes(FSMachine.HANDLED);
+  }
+
+  @Override
+  public Map<String, Long> getFallback() {
+    return outcomes(FSMachine.FALLBACK);
+  }
+
+  @Override
+  public Map<String, Long> getUnhandled() {
+    return outcomes(FSMachine.UNHANDLED);
+  }
+
+  @Override
+  public Map<String, Long> getDeadLetters() {
+    return perEvent(DEAD_LETTERS);
+  }
+
+  @Override
+  public Map<String, Long> getTombstoned() {
+    return perEvent(TOMBSTONED);
+  }
+
+  private Map<String, Long> perEvent(int counters) {
+    Map<String, Long> counts = new LinkedHashMap<>();
+    if (states == null) {
+      return counts;
+    }
+    long[] sums = sum(events.length, counters);
+    for (int event = 0; event < events.length; event++) {
+      if (sums[event] != 0) {
+        counts.put(events[event], sums[event]);
+      }
+    }
+    return counts;
+  }
+
+  private Map<String, Long> outcomes(int outcome) {
+    Map<String, Long> counts = new LinkedHashMap<>();
+    if (states == null) {
+      return counts;
+    }
+    long[] sums = sum(states.length * events.length * 3, OUTCOMES);
+    for (int state = 0; state < states.length; state++) {
+      for (int event = 0; event < events.length; event++) {
+        long count = sums[(state * events.length + event) * 3 + outcome];
+        if (count != 0) {
+          counts.put(states[state] + ":" + events[event], count);
+        }
+      }
+    }
+    return counts;
+  }
+
+  @Override
+  public Map<String, long[]> getLatencyHistograms() {
+    Map<String, long[]> histograms = new LinkedHashMap<>();
+    if (states == null) {
+      return histograms;
+    }
+    long[] sums = sum(events.length * BUCKETS, LATENCY);
+    for (int event = 0; event < events.length; event++) {
+      long[] histogram = new long[BUCKETS];
+      System.arraycopy(sums, event * BUCKETS, histogram, 0, BUCKETS);
+      if (count(histogram) > 0) {
+        histograms.put(events[event], histogram);
+      }
+    }
+    return histograms;
+  }
+
+  @Override
+  public Map<String, Double> getLatencyMeanNanos() {
+    Map<String, Double> means = new LinkedHashMap<>();
+    if (states == null) {
+      return means;
+    }
+    long[] sums = sum(events.length, LATENCY_SUM);
+    for (Map.Entry<String, long[]> e : getLatencyHistograms().entrySet()) {
+      int event = indexOf(e.getKey());
+      means.put(e.getKey(), (double) sums[event] / count(e.getValue()));
+    }
+    return means;
+  }
+
+  @Override
+  public Map<String, Long> getLatencyP99Nanos() {
+    Map<String, Long> p99 = new LinkedHashMap<>();
+    for (Map.Entry<String, long[]> e : getLatencyHistograms().entrySet()) {
+      long[] histogram = e.getValue();
+      long rank = (long) Math.ceil(count(histogram) * 0.99);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += histogram[i];
+        if (seen >= rank) {
+          p99.put(e.getKey(), i == 0 ? 0 : 1L << i);
+          break;
+        }
+      }
+    }
+    return p99;
+  }
+
+  private int indexOf(String event) {
+    for (int i = 0; i < events.length; i++) {
+      if (events[i].equals(event)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static long count(long[] histogram) {
+    long count = 0;
+    for (long c : histogram) {
+      count += c;
+    }
+    return count;
+  }
+
+  private long[] sum(int length, int counters) {
+    long[] sums = new long[length];
+    for (Stripe stripe : stripes) {
+      AtomicLongArray c = stripe.counters(counters);
+      for (int i = 0; i < length; i++) {
+        sums[i] += c.get(i);
+      }
+    }
+    return sums;
+  }
+
+  @Override
+  public String toString() {
+    return "<fsm:" + fsmName + ",instances:" + getInstances() + ",creations:" + getCreations() + ",kills:" + getKills()
+      + ">";
+  }
+
+  /**
+   * Counters of one MultiFSM, written only from the thread of its component.
+   */
+  static final class Stripe {
+
+    private final int nrStates;
+    private final int nrEvents;
+    private final int samplingMask;
+    private int sampled = 0;
+    final AtomicLongArray lifecycle = new AtomicLongArray(4);
+    //by state ordinal
+    final AtomicLongArray occupancy;
+    //from * (nrStates + 1) + to, to == nrStates for FINAL
+    final AtomicLongArray transitions;
+    //(state * nrEvents + event) * 3 + outcome
+    final AtomicLongArray outcomes;
+    //event * BUCKETS + bucket
+    final AtomicLongArray latency;
+    final AtomicLongArray latencySum;
+    //by event
+    final AtomicLongArray deadLetters;
+    final AtomicLongArray tombstoned;
+
+    Stripe(int nrStates, int nrEvents, int samplingMask) {
+      this.nrStates = nrStates;
+      this.nrEvents = nrEvents;
+      this.samplingMask = samplingMask;
+      this.occupancy = new AtomicLongArray(nrStates);
+      this.transitions = new AtomicLongArray(nrStates * (nrStates + 1));
+      this.outcomes = new AtomicLongArray(nrStates * nrEvents * 3);
+      this.latency = new AtomicLongArray(nrEvents * BUCKETS);
+      this.latencySum = new AtomicLongArray(nrEvents);
+      this.deadLetters = new AtomicLongArray(nrEvents);
+      this.tombstoned = new AtomicLongArray(nrEvents);
+    }
+
+    AtomicLongArray counters(int counters) {
+      switch (counters) {
+        case OCCUPANCY:
+          return occupancy;
+        case TRANSITIONS:
+          return transitions;
+        case OUTCOMES:
+          return outcomes;
+        case LATENCY:
+          return latency;
+        case DEAD_LETTERS:
+          return deadLetters;
+        case TOMBSTONED:
+          return tombstoned;
+        default:
+          return latencySum;
+      }
+    }
+
+    /**
+     * @return true if the latency of the next event is to be measured
+     */
+    boolean sample() {
+      return (++sampled & samplingMask) == 0;
+    }
+
+    private static void inc(AtomicLongArray counters, int i, long delta) {
+      counters.lazySet(i, counters.get(i) + delta);
+    }
+
+    void created(int state) {
+      inc(lifecycle, CREATED, 1);
+      inc(occupancy, state, 1);
+    }
+
+    void imported(int state) {
+      inc(lifecycle, IMPORTED, 1);
+      inc(occupancy, state, 1);
+    }
+
+    void killed(int state) {
+      inc(lifecycle, KILLED, 1);
+      inc(occupancy, state, -1);
+    }
+
+    void exported(int state) {
+      inc(lifecycle, EXPORTED, 1);
+      inc(occupancy, state, -1);
+    }
+
+    /**
+     * @param nanos handler latency, -1 if not sampled
+     */
+    void handled(int state, int event, int outcome, long nanos) {
+      inc(outcomes, (state * nrEvents + event) * 3 + outcome, 1);
+      if (nanos >= 0) {
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+        inc(latency, event * BUCKETS + bucket, 1);
+        inc(latencySum, event, nanos);
+      }
+    }
+
+    void deadLetter(int event) {
+      inc(deadLetters, event, 1);
+    }
+
+    void tombstoned(int event) {
+      inc(tombstoned, event, 1);
+    }
+
+    void transition(int from, int to) {
+      inc(transitions, from * (nrStates + 1) + to, 1);
+      inc(occupancy, from, -1);
+      inc(occupancy, to, 1);
+    }
+
+    /**
+     * The occupancy of the instance is dropped by killed.
+     */
+    void finalTransition(int from) {
+      inc(transitions, from * (nrStates + 1) + nrStates, 1);
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import java.util.Map;
+
+/**
+ * JMX view of the FSMMetrics of a definition. Maps are keyed by state (occupancy), by "from->to" (transitions), by
+ * "state:event" (handled, fallback, unhandled) or by event (latency). Events are named by their class, pattern events
+ * as "content@container", prefixed by + or - for the charge of the port. Zero counts are left out.
+ */
+public interface FSMMetricsMXBean {
+
+  public String getFsmName();
+
+  /**
+   * @return live and passivated instances
+   */
+  public long getInstances();
+
+  public long getCreations();
+
+  public long getKills();
+
+  public long getImports();
+
+  public long getExports();
+
+  public Map<String, Long> getOccupancy();
+
+  public Map<String, Long> getTransitions();
+
+  public Map<String, Long> getHandled();
+
+  public Map<String, Long> getFallback();
+
+  public Map<String, Long> getUnhandled();
+
+  /**
+   * @return per event, the events dropped as their id had no instance and START does not handle them, or the id is
+   * tombstoned
+   */
+  public Map<String, Long> getDeadLetters();
+
+  /**
+   * @return per event, the dead letters for ids of recently killed instances - included in getDeadLetters
+   */
+  public Map<String, Long> getTombstoned();
+
+  /**
+   * @return per event, the count of sampled handler latencies in [2^(i-1), 2^i) ns at index i
+   */
+  public Map<String, long[]> getLatencyHistograms();
+
+  public Map<String, Double> getLatencyMeanNanos();
+
+  /**
+   * @return per event, the upper bound of the histogram bucket holding the 99th percentile
+   */
+  public Map<String, Long> getLatencyP99Nanos();
+}
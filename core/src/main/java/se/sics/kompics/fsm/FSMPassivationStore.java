@@ -0,0 +1,526 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sics.kompics.fsm.id.FSMIdentifier;
+import se.sics.kompics.util.Identifier;
+
+/**
+ * Cold instances of a MultiFSM, serialized outside the heap - in direct buffers or in a memory-mapped scratch file.
+ * <p>
+ * Records - length, key hash, key length, base id, state ordinal, internal state (base id and internal state as
+ * encoded by the codec) - are appended to fixed size chunks. A rehydrated record is only marked dead; a chunk whose
+ * live bytes drop under a quarter is evacuated into the current chunk and reused. The index is an open addressing
+ * table of record references and key hashes in two primitive arrays, so a passivated instance costs 12 bytes of heap
+ * per slot. The table grows by rehashing at once - size it with setExpectedInstances.
+ * <p>
+ * The store is not durable - what it holds is lost on restart, snapshots and the journal cover passivated instances.
+ * A store serves a single MultiFSM. Not thread safe, the counters can be read from other threads.
+ */
+public class FSMPassivationStore {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FSMPassivationStore.class);
+  private static final int HEADER = 12;
+  private static final int MIN_CAPACITY = 1024;
+  private static final float LOAD_FACTOR = 0.7f;
+  //2^64 / golden ratio
+  private static final long PHI = 0x9E3779B97F4A7C15L;
+
+  private final FSMInternalStateCodec codec;
+  //null if off heap
+  private final File file;
+  private FileChannel channel;
+  private int chunkSize = 16 << 20;
+  private int expectedInstances = MIN_CAPACITY;
+  private MultiFSM multiFSM;
+  private FSMStateName[] states;
+
+  private final List<ByteBuffer> chunks = new ArrayList<>();
+  private int[] chunkEnd = new int[0];
+  private int[] chunkLive = new int[0];
+  private final List<Integer> freeChunks = new ArrayList<>();
+  private int current = -1;
+
+  //ref: (chunk + 1) << 32 | offset, 0 if the slot is empty
+  private long[] refs;
+  private int[] hashes;
+  private int mask;
+  private int shift;
+  private int resizeAt;
+  private int size = 0;
+
+  private ByteBuffer record = ByteBuffer.allocate(4096);
+
+  private volatile long passivations = 0;
+  private volatile long hits = 0;
+  private volatile long misses = 0;
+  private volatile long rehydrationNanos = 0;
+  private volatile long maxRehydrationNanos = 0;
+
+  private FSMPassivationStore(FSMInternalStateCodec codec, File file) {
+    this.codec = codec;
+    this.file = file;
+  }
+
+  /**
+   * @param codec of the internal state of the instances, also used for the base ids
+   */
+  public static FSMPassivationStore offHeap(FSMInternalStateCodec codec) {
+    return new FSMPassivationStore(codec, null);
+  }
+
+  /**
+   * @param file scratch file, truncated on first use and deleted on close
+   */
+  public static FSMPassivationStore mapped(File file, FSMInternalStateCodec codec) {
+    return new FSMPassivationStore(codec, file);
+  }
+
+  /**
+   * @param chunkSize bytes allocated or mapped at once - bounds the size of a single record
+   */
+  public FSMPassivationStore setChunkSize(int chunkSize) {
+    if (chunkSize < 1024) {
+      throw new IllegalArgumentException("chunk size:" + chunkSize);
+    }
+    this.chunkSize = chunkSize;
+    return this;
+  }
+
+  public FSMPassivationStore setExpectedInstances(int expectedInstances) {
+    if (expectedInstances < 0) {
+      throw new IllegalArgumentException("expected instances:" + expectedInstances);
+    }
+    this.expectedInstances = expectedInstances;
+    return this;
+  }
+
+  void attach(MultiFSM multiFSM) {
+    if (this.multiFSM != null) {
+      throw new IllegalStateException("passivation store already used by another MultiFSM");
+    }
+    this.multiFSM = multiFSM;
+    this.states = new FSMStateName[multiFSM.fsmDef.states.size()];
+    for (FSMState state : multiFSM.fsmDef.states.values()) {
+      states[state.ordinal] = state.state;
+    }
+    table(capacityFor(expectedInstances));
+  }
+
+  //*************************************************PASSIVATE**********************************************************
+  void passivate(FSMachine fsm) throws FSMException {
+    encode(fsm.fsmId.baseId, fsm.currentState.ordinal, fsm.getFSMInternalState());
+    int length = record.remaining();
+    if (length > chunkSize) {
+      throw new FSMException("fsm:" + fsm.fsmId + " record of:" + length + " bytes larger than chunk size");
+    }
+    long ref = append(record);
+    insert(ref, record.getInt(4));
+    passivations++;
+  }
+
+  private void encode(Identifier baseId, int state, FSMInternalState is) {
+    while (true) {
+      try {
+        record.clear();
+        record.position(HEADER);
+        codec.encodeBaseId(baseId, record);
+        int keyLength = record.position() - HEADER;
+        record.putInt(state);
+        codec.encode(is, record);
+        record.flip();
+        record.putInt(0, record.limit());
+        record.putInt(4, hash(record.array(), HEADER, keyLength));
+        record.putInt(8, keyLength);
+        return;
+      } catch (BufferOverflowException ex) {
+        record = ByteBuffer.allocate(record.capacity() << 1);
+      }
+    }
+  }
+
+  private void encodeKey(Identifier baseId) {
+    while (true) {
+      try {
+        record.clear();
+        codec.encodeBaseId(baseId, record);
+        record.flip();
+        return;
+      } catch (BufferOverflowException ex) {
+        record = ByteBuffer.allocate(record.capacity() << 1);
+      }
+    }
+  }
+
+  private long append(ByteBuffer rec) throws FSMException {
+    int length = rec.remaining();
+    if (current < 0 || chunkEnd[current] + length > chunkSize) {
+      current = chunk();
+    }
+    ByteBuffer chunk = chunks.get(current);
+    int offset = chunkEnd[current];
+    chunk.position(offset);
+    chunk.put(rec);
+    chunkEnd[current] = offset + length;
+    chunkLive[current] += length;
+    return ((long) (current + 1) << 32) | offset;
+  }
+
+  private int chunk() throws FSMException {
+    if (!freeChunks.isEmpty()) {
+      return freeChunks.remove(freeChunks.size() - 1);
+    }
+    int idx = chunks.size();
+    ByteBuffer chunk;
+    if (file == null) {
+      chunk = ByteBuffer.allocateDirect(chunkSize);
+    } else {
+      try {
+        if (channel == null) {
+          RandomAccessFile raf = new RandomAccessFile(file, "rw");
+          raf.setLength(0);
+          channel = raf.getChannel();
+        }
+        chunk = channel.map(FileChannel.MapMode.READ_WRITE, (long) idx * chunkSize, chunkSize);
+      } catch (IOException ex) {
+        throw new FSMException("passivation file:" + file + " " + ex.getMessage());
+      }
+    }
+    chunks.add(chunk);
+    chunkEnd = Arrays.copyOf(chunkEnd, idx + 1);
+    chunkLive = Arrays.copyOf(chunkLive, idx + 1);
+    LOG.debug("passivation store chunk:{} allocated", idx);
+    return idx;
+  }
+
+  //*************************************************REHYDRATE**********************************************************
+  /**
+   * @return the passivated instance, removed from the store, or null if there is none
+   */
+  FSMExport rehydrate(Identifier baseId) throws FSMException {
+    long start = System.nanoTime();
+    encodeKey(baseId);
+    int idx = indexOf(record, hash(record.array(), 0, record.limit()));
+    if (idx < 0) {
+      misses++;
+      return null;
+    }
+    long ref = refs[idx];
+    FSMExport export = decode(ref, baseId);
+    delete(idx);
+    release(ref);
+    long nanos = System.nanoTime() - start;
+    hits++;
+    rehydrationNanos += nanos;
+    if (nanos > maxRehydrationNanos) {
+      maxRehydrationNanos = nanos;
+    }
+    return export;
+  }
+
+  boolean contains(Identifier baseId) {
+    if (size == 0) {
+      return false;
+    }
+    encodeKey(baseId);
+    return indexOf(record, hash(record.array(), 0, record.limit())) >= 0;
+  }
+
+  /**
+   * @param baseId null to decode it from the record
+   */
+  private FSMExport decode(long ref, Identifier baseId) throws FSMException {
+    ByteBuffer rec = chunks.get((int) (ref >>> 32) - 1).duplicate();
+    int offset = (int) ref;
+    rec.limit(offset + rec.getInt(offset));
+    rec.position(offset + HEADER);
+    if (baseId == null) {
+      baseId = codec.decodeBaseId(rec);
+    } else {
+      rec.position(rec.position() + rec.getInt(offset + 8));
+    }
+    FSMIdentifier fsmId = multiFSM.fsmDef.getFsmId(baseId);
+    FSMStateName state = states[rec.getInt()];
+    return new FSMExport(fsmId, state, codec.decode(fsmId, rec));
+  }
+
+  private void release(long ref) throws FSMException {
+    int c = (int) (ref >>> 32) - 1;
+    ByteBuffer chunk = chunks.get(c);
+    int offset = (int) ref;
+    int length = chunk.getInt(offset);
+    chunk.putInt(offset, -length);
+    chunkLive[c] -= length;
+    if (c == current) {
+      if (chunkLive[c] == 0) {
+        chunkEnd[c] = 0;
+      }
+    } else if (chunkLive[c] == 0) {
+      free(c);
+    } else if (chunkLive[c] < chunkSize / 4) {
+      evacuate(c);
+    }
+  }
+
+  private void free(int c) {
+    chunkEnd[c] = 0;
+    chunkLive[c] = 0;
+    freeChunks.add(c);
+  }
+
+  /**
+   * Moves the live records of a sparse chunk to the current one, to reuse the chunk
+   */
+  private void evacuate(int c) throws FSMException {
+    ByteBuffer chunk = chunks.get(c);
+    int offset = 0;
+    int moved = 0;
+    while (offset < chunkEnd[c]) {
+      int length = chunk.getInt(offset);
+      if (length > 0) {
+        long from = ((long) (c + 1) << 32) | offset;
+        ByteBuffer rec = chunk.duplicate();
+        rec.limit(offset + length);
+        rec.position(offset);
+        //may take a free chunk, never c itself as it is not yet free
+        long to = append(rec);
+        refs[slotOf(from, chunk.getInt(offset + 4))] = to;
+        moved++;
+        offset += length;
+      } else {
+        offset -= length;
+      }
+    }
+    free(c);
+    LOG.debug("passivation store chunk:{} evacuated, moved:{} records", c, moved);
+  }
+
+  //***************************************************INDEX************************************************************
+  private static int capacityFor(int expectedSize) {
+    long needed = (long) Math.ceil(Math.max(expectedSize, 1) / (double) LOAD_FACTOR);
+    int capacity = MIN_CAPACITY;
+    while (capacity < needed) {
+      if (capacity == 1 << 30) {
+        throw new IllegalArgumentException("expected size:" + expectedSize + " too large");
+      }
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+
+  private void table(int capacity) {
+    refs = new long[capacity];
+    hashes = new int[capacity];
+    mask = capacity - 1;
+    shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    resizeAt = (int) (capacity * LOAD_FACTOR);
+  }
+
+  private int slot(int hash) {
+    return (int) ((hash * PHI) >>> shift);
+  }
+
+  private static int hash(byte[] key, int offset, int length) {
+    int h = 0x811c9dc5;
+    for (int i = offset; i < offset + length; i++) {
+      h = (h ^ key[i]) * 0x01000193;
+    }
+    return h;
+  }
+
+  /**
+   * @param key encoded base id, between position and limit
+   * @return slot of the key, -1 if absent
+   */
+  private int indexOf(ByteBuffer key, int hash) {
+    int idx = slot(hash);
+    long ref;
+    while ((ref = refs[idx]) != 0) {
+      if (hashes[idx] == hash && sameKey(ref, key)) {
+        return idx;
+      }
+      idx = (idx + 1) & mask;
+    }
+    return -1;
+  }
+
+  private boolean sameKey(long ref, ByteBuffer key) {
+    ByteBuffer chunk = chunks.get((int) (ref >>> 32) - 1);
+    int offset = (int) ref;
+    int length = chunk.getInt(offset + 8);
+    if (length != key.remaining()) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (chunk.get(offset + HEADER + i) != key.get(key.position() + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int slotOf(long ref, int hash) {
+    int idx = slot(hash);
+    while (refs[idx] != ref) {
+      idx = (idx + 1) & mask;
+    }
+    return idx;
+  }
+
+  //key known to be absent
+  private void insert(long ref, int hash) {
+    if (size >= resizeAt) {
+      grow();
+    }
+    place(ref, hash);
+    size++;
+  }
+
+  private void place(long ref, int hash) {
+    int idx = slot(hash);
+    while (refs[idx] != 0) {
+      idx = (idx + 1) & mask;
+    }
+    refs[idx] = ref;
+    hashes[idx] = hash;
+  }
+
+  private void grow() {
+    long[] oldRefs = refs;
+    int[] oldHashes = hashes;
+    table(refs.length << 1);
+    for (int i = 0; i < oldRefs.length; i++) {
+      if (oldRefs[i] != 0) {
+        place(oldRefs[i], oldHashes[i]);
+      }
+    }
+    LOG.debug("passivation store index grown to:{}", refs.length);
+  }
+
+  //backward shift deletion, as in LongObjectMap
+  private void delete(int free) {
+    int idx = free;
+    while (true) {
+      idx = (idx + 1) & mask;
+      long ref = refs[idx];
+      if (ref == 0) {
+        break;
+      }
+      int home = slot(hashes[idx]);
+      boolean movable = free <= idx ? (home <= free || home > idx) : (home <= free && home > idx);
+      if (movable) {
+        refs[free] = ref;
+        hashes[free] = hashes[idx];
+        free = idx;
+      }
+    }
+    refs[free] = 0;
+    hashes[free] = 0;
+    size--;
+  }
+
+  //*************************************************SNAPSHOT***********************************************************
+  int slots() {
+    return refs.length;
+  }
+
+  /**
+   * @return the instance passivated in slot, left in the store, or null if the slot is empty
+   */
+  FSMExport peek(int slot) throws FSMException {
+    return refs[slot] == 0 ? null : decode(refs[slot], null);
+  }
+
+  //**************************************************COUNTERS**********************************************************
+  /**
+   * @return instances currently passivated
+   */
+  public int size() {
+    return size;
+  }
+
+  public long passivations() {
+    return passivations;
+  }
+
+  /**
+   * @return events that found their instance passivated
+   */
+  public long hits() {
+    return hits;
+  }
+
+  /**
+   * @return events for an instance neither live nor passivated - a new instance is started
+   */
+  public long misses() {
+    return misses;
+  }
+
+  public long rehydrationNanos() {
+    return rehydrationNanos;
+  }
+
+  public long maxRehydrationNanos() {
+    return maxRehydrationNanos;
+  }
+
+  /**
+   * @return off heap or mapped bytes held
+   */
+  public long bytes() {
+    return (long) chunks.size() * chunkSize;
+  }
+
+  /**
+   * Drops the passivated instances.
+   */
+  public void close() throws IOException {
+    chunks.clear();
+    freeChunks.clear();
+    current = -1;
+    size = 0;
+    if (refs != null) {
+      Arrays.fill(refs, 0);
+    }
+    if (channel != null) {
+      channel.close();
+      channel = null;
+      if (!file.delete()) {
+        LOG.warn("could not delete passivation file:{}", file);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "<passivated:" + size + ",hits:" + hits + ",misses:" + misses + ",bytes:" + bytes() + ">";
+  }
+}
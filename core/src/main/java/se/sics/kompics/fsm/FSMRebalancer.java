@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import se.sics.kompics.KompicsEvent;
+import se.sics.kompics.util.Identifier;
+
+/**
+ * Routing state of a ShardedMultiFSMComp beyond its partitioner - instances moved away from the shard the
+ * partitioner picks, migrations in flight with the events held for them and the load seen by each shard since the
+ * last rebalance.
+ * <p>
+ * Load is sampled by keeping the base ids of the last SAMPLE events routed to each shard, so that the instances that
+ * are hot right now are the ones moved.
+ */
+class FSMRebalancer {
+
+  private static final int SAMPLE = 1024;
+
+  //instances living away from their partitioner shard - rebuilt from the shards on restart. A kill reported by the
+  //shard migrates the id back home, which drops the entry
+  private final Map<Identifier, Integer> relocated = new HashMap<>();
+  private final Map<Identifier, Migration> migrating = new HashMap<>();
+  private final long[] routed;
+  private final Identifier[][] recent;
+  private final int[] recentNext;
+
+  FSMRebalancer(int shards) {
+    routed = new long[shards];
+    recent = new Identifier[shards][SAMPLE];
+    recentNext = new int[shards];
+  }
+
+  /**
+   * @return the shard currently owning baseId
+   */
+  int owner(Identifier baseId, int home) {
+    if (relocated.isEmpty()) {
+      return home;
+    }
+    Integer shard = relocated.get(baseId);
+    return shard == null ? home : shard;
+  }
+
+  /**
+   * owner of an id an event is routed to, accounted as load of the shard
+   */
+  int route(Identifier baseId, int home) {
+    int shard = owner(baseId, home);
+    routed[shard]++;
+    recent[shard][recentNext[shard]] = baseId;
+    recentNext[shard] = (recentNext[shard] + 1) & (SAMPLE - 1);
+    return shard;
+  }
+
+  boolean migrating(Identifier baseId) {
+    return !migrating.isEmpty() && migrating.containsKey(baseId);
+  }
+
+  void hold(Identifier baseId, KompicsEvent event, Class portType, boolean positive) {
+    migrating.get(baseId).held.add(new Held(event, portType, positive));
+  }
+
+  /**
+   * @return null if baseId is already migrating
+   */
+  Migration start(Identifier baseId, int from, int to) {
+    if (migrating.containsKey(baseId)) {
+      return null;
+    }
+    Migration m = new Migration(baseId, from, to);
+    migrating.put(baseId, m);
+    return m;
+  }
+
+  Migration migration(Identifier baseId) {
+    return migrating.get(baseId);
+  }
+
+  /**
+   * baseId stays with the source of its migration
+   *
+   * @return the migration, with the events held meanwhile in arrival order
+   */
+  Migration abort(Identifier baseId) {
+    return migrating.remove(baseId);
+  }
+
+  /**
+   * baseId lives in shard, away from its partitioner shard - as recovered by the shard
+   */
+  void relocate(Identifier baseId, int shard) {
+    relocated.put(baseId, shard);
+  }
+
+  /**
+   * baseId is owned by the destination from now on
+   *
+   * @return the migration, with the events held meanwhile in arrival order
+   */
+  Migration finish(Identifier baseId, int home) {
+    Migration m = migrating.remove(baseId);
+    if (m.to == home) {
+      relocated.remove(baseId);
+    } else {
+      relocated.put(baseId, m.to);
+    }
+    return m;
+  }
+
+  /**
+   * Picks the hottest sampled instances of the busiest shard, enough to even out half of its excess load over the
+   * least busy shard. Load counters restart with every call.
+   *
+   * @return null if the shards are balanced within imbalance
+   */
+  Plan plan(int maxMoves, double imbalance) {
+    int hot = 0;
+    int cold = 0;
+    for (int i = 1; i < routed.length; i++) {
+      if (routed[i] > routed[hot]) {
+        hot = i;
+      }
+      if (routed[i] < routed[cold]) {
+        cold = i;
+      }
+    }
+    try {
+      if (routed[hot] == 0 || routed[hot] <= imbalance * routed[cold]) {
+        return null;
+      }
+      final Map<Identifier, Integer> counts = new HashMap<>();
+      int samples = 0;
+      for (Identifier baseId : recent[hot]) {
+        if (baseId != null && !migrating.containsKey(baseId)) {
+          Integer c = counts.get(baseId);
+          counts.put(baseId, c == null ? 1 : c + 1);
+          samples++;
+        }
+      }
+      List<Identifier> candidates = new ArrayList<>(counts.keySet());
+      Collections.sort(candidates, new Comparator<Identifier>() {
+        @Override
+        public int compare(Identifier o1, Identifier o2) {
+          return Integer.compare(counts.get(o2), counts.get(o1));
+        }
+      });
+      double eventsPerSample = (double) routed[hot] / Math.max(1, samples);
+      double excess = (routed[hot] - routed[cold]) / 2d;
+      double moved = 0;
+      List<Identifier> baseIds = new ArrayList<>();
+      for (Identifier baseId : candidates) {
+        if (baseIds.size() >= maxMoves || moved >= excess) {
+          break;
+        }
+        baseIds.add(baseId);
+        moved += counts.get(baseId) * eventsPerSample;
+      }
+      return new Plan(hot, cold, baseIds);
+    } finally {
+      Arrays.fill(routed, 0);
+      for (Identifier[] r : recent) {
+        Arrays.fill(r, null);
+      }
+    }
+  }
+
+  static class Migration {
+
+    final Identifier baseId;
+    final int from;
+    final int to;
+    final List<Held> held = new LinkedList<>();
+    //set once exported - kept to take the instance back if the import fails
+    FSMExport export;
+    boolean restoring = false;
+
+    Migration(Identifier baseId, int from, int to) {
+      this.baseId = baseId;
+      this.from = from;
+      this.to = to;
+    }
+  }
+
+  static class Held {
+
+    final KompicsEvent event;
+    final Class portType;
+    final boolean positive;
+
+    Held(KompicsEvent event, Class portType, boolean positive) {
+      this.event = event;
+      this.portType = portType;
+      this.positive = positive;
+    }
+  }
+
+  static class Plan {
+
+    final int from;
+    final int to;
+    final List<Identifier> baseIds;
+
+    Plan(int from, int to, List<Identifier> baseIds) {
+      this.from = from;
+      this.to = to;
+      this.baseIds = baseIds;
+    }
+  }
+}
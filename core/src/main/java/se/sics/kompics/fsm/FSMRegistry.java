@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import se.sics.kompics.KompicsEvent;
+import se.sics.kompics.fsm.util.IncrementalHashMap;
+import se.sics.kompics.fsm.util.LongObjectMap;
+import se.sics.kompics.util.Identifier;
+
+/**
+ * Live instances of a MultiFSM, by base id. Keyed on the Identifier objects, or on primitive longs when the MultiFSM
+ * is built with a LongBaseIdExtractor. Both maps grow incrementally, so that a resize does not stall a single event.
+ */
+abstract class FSMRegistry {
+
+  /**
+   * @return the live instance the event is routed to, null if there is none or the event has no base id
+   */
+  abstract FSMachine get(KompicsEvent event) throws FSMException;
+
+  abstract FSMachine get(Identifier baseId);
+
+  abstract void put(Identifier baseId, FSMachine fsm);
+
+  abstract FSMachine remove(Identifier baseId);
+
+  abstract int size();
+
+  abstract List<FSMachine> values();
+
+  static FSMRegistry instance(BaseIdExtractor fsmIdExtractor, int expectedInstances) {
+    if (fsmIdExtractor instanceof LongBaseIdExtractor) {
+      return new LongKeys((LongBaseIdExtractor) fsmIdExtractor, expectedInstances);
+    }
+    return new IdentifierKeys(fsmIdExtractor, expectedInstances);
+  }
+
+  static class IdentifierKeys extends FSMRegistry {
+
+    private final BaseIdExtractor fsmIdExtractor;
+    private final IncrementalHashMap<Identifier, FSMachine> fsms;
+
+    IdentifierKeys(BaseIdExtractor fsmIdExtractor, int expectedInstances) {
+      this.fsmIdExtractor = fsmIdExtractor;
+      this.fsms = new IncrementalHashMap<>(expectedInstances);
+    }
+
+    @Override
+    FSMachine get(KompicsEvent event) throws FSMException {
+      Optional<Identifier> baseId = fsmIdExtractor.fromEvent(event);
+      return baseId.isPresent() ? fsms.get(baseId.get()) : null;
+    }
+
+    @Override
+    FSMachine get(Identifier baseId) {
+      return fsms.get(baseId);
+    }
+
+    @Override
+    void put(Identifier baseId, FSMachine fsm) {
+      fsms.put(baseId, fsm);
+    }
+
+    @Override
+    FSMachine remove(Identifier baseId) {
+      return fsms.remove(baseId);
+    }
+
+    @Override
+    int size() {
+      return fsms.size();
+    }
+
+    @Override
+    List<FSMachine> values() {
+      return fsms.values(new ArrayList<FSMachine>(fsms.size()));
+    }
+  }
+
+  static class LongKeys extends FSMRegistry {
+
+    private final LongBaseIdExtractor fsmIdExtractor;
+    private final LongObjectMap<FSMachine> fsms;
+
+    LongKeys(LongBaseIdExtractor fsmIdExtractor, int expectedInstances) {
+      this.fsmIdExtractor = fsmIdExtractor;
+      this.fsms = new LongObjectMap<>(expectedInstances);
+    }
+
+    @Override
+    FSMachine get(KompicsEvent event) throws FSMException {
+      long key = fsmIdExtractor.keyFromEvent(event);
+      return key == LongBaseIdExtractor.NO_ID ? null : fsms.get(key);
+    }
+
+    @Override
+    FSMachine get(Identifier baseId) {
+      return fsms.get(fsmIdExtractor.key(baseId));
+    }
+
+    @Override
+    void put(Identifier baseId, FSMachine fsm) {
+      fsms.put(fsmIdExtractor.key(baseId), fsm);
+    }
+
+    @Override
+    FSMachine remove(Identifier baseId) {
+      return fsms.remove(fsmIdExtractor.key(baseId));
+    }
+
+    @Override
+    int size() {
+      return fsms.size();
+    }
+
+    @Override
+    List<FSMachine> values() {
+      return fsms.values(new ArrayList<FSMachine>(fsms.size()));
+    }
+  }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sics.kompics.fsm.id.FSMIdentifier;
+import se.sics.kompics.util.Identifier;
+
+/**
+ * Snapshot of all the live and passivated instances of a MultiFSM in a memory-mapped file, and the restore into an
+ * empty MultiFSM.
+ * <p>
+ * Layout - all ints and longs big endian:
+ * <pre>
+ * magic, version
+ * blocks of records - record: length, state index, base id, internal state (the last two as encoded by the codec)
+ * index - fsm name, state names, block offsets/lengths/record counts, number of instances
+ * index offset (long), magic
+ * </pre>
+ * Blocks are written through and read from mapped regions of the file, and decoded straight from them by separate
+ * threads. Only registering the decoded instances in the MultiFSM is sequential.
+ */
+public class FSMSnapshot {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FSMSnapshot.class);
+  private static final int MAGIC = 0x46534d53;
+  private static final int VERSION = 1;
+  private static final int HEADER = 8;
+  private static final int FOOTER = 12;
+  private static final int BLOCK_RECORDS = 1 << 16;
+  //mapped region written at once, records larger than this get a region of their own
+  private static final int WINDOW = 64 << 20;
+
+  private FSMSnapshot() {
+  }
+
+  /**
+   * Called from the thread of the component of the MultiFSM - e.g. from a handler.
+   *
+   * @return the number of instances written
+   */
+  public static long write(MultiFSM multiFSM, File file, FSMInternalStateCodec codec)
+    throws IOException, FSMException {
+    FSMachineDef fsmDef = multiFSM.fsmDef;
+    List<FSMStateName> states = new ArrayList<>(fsmDef.states.keySet());
+    Map<FSMStateName, Integer> stateIdx = new HashMap<>();
+    for (int i = 0; i < states.size(); i++) {
+      stateIdx.put(states.get(i), i);
+    }
+    List<FSMachine> fsms = multiFSM.instances();
+    List<long[]> blocks = new ArrayList<>();
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel ch = raf.getChannel()) {
+      raf.setLength(0);
+      ByteBuffer header = ByteBuffer.allocate(HEADER);
+      header.putInt(MAGIC).putInt(VERSION).flip();
+      ch.write(header, 0);
+
+      long pos = HEADER;
+      MappedByteBuffer window = ch.map(FileChannel.MapMode.READ_WRITE, pos, WINDOW);
+      long blockStart = pos;
+      int blockRecords = 0;
+      ByteBuffer record = ByteBuffer.allocate(4096);
+      FSMPassivationStore passivation = multiFSM.passivation();
+      int passivatedSlots = passivation == null ? 0 : passivation.slots();
+      long instances = 0;
+      //the live instances, then the passivated ones, decoded one at a time
+      for (int i = 0; i < fsms.size() + passivatedSlots; i++) {
+        if (i < fsms.size()) {
+          FSMachine fsm = fsms.get(i);
+          record = encode(codec, stateIdx.get(fsm.getState()), fsm.fsmId.baseId, fsm.getFSMInternalState(), record);
+        } else {
+          FSMExport export = passivation.peek(i - fsms.size());
+          if (export == null) {
+            continue;
+          }
+          record = encode(codec, stateIdx.get(export.state), export.fsmId.baseId, export.is, record);
+        }
+        instances++;
+        int length = 4 + record.remaining();
+        if (blockRecords == BLOCK_RECORDS || window.remaining() < length) {
+          blocks.add(new long[]{blockStart, pos - blockStart, blockRecords});
+          blockStart = pos;
+          blockRecords = 0;
+          if (window.remaining() < length) {
+            window.force();
+            window = ch.map(FileChannel.MapMode.READ_WRITE, pos, Math.max(WINDOW, length));
+          }
+        }
+        window.putInt(record.remaining());
+        window.put(record);
+        pos += length;
+        blockRecords++;
+      }
+      if (blockRecords > 0) {
+        blocks.add(new long[]{blockStart, pos - blockStart, blockRecords});
+      }
+      window.force();
+
+      ByteBuffer index = index(fsmDef.fsmName, states, blocks, instances, pos);
+      ch.write(index, pos);
+      ch.truncate(pos + index.limit());
+      ch.force(true);
+      LOG.info("fsm:{} snapshot of {} instances in {} blocks to:{}",
+        new Object[]{fsmDef.fsmName, instances, blocks.size(), file});
+      return instances;
+    }
+  }
+
+  private static ByteBuffer encode(FSMInternalStateCodec codec, int stateIdx, Identifier baseId, FSMInternalState is,
+    ByteBuffer record) {
+    while (true) {
+      try {
+        record.clear();
+        record.putInt(stateIdx);
+        codec.encodeBaseId(baseId, record);
+        codec.encode(is, record);
+        record.flip();
+        return record;
+      } catch (BufferOverflowException ex) {
+        record = ByteBuffer.allocate(record.capacity() << 1);
+      }
+    }
+  }
+
+  private static ByteBuffer index(String fsmName, List<FSMStateName> states, List<long[]> blocks, long instances,
+    long indexOffset) {
+    List<byte[]> names = new ArrayList<>();
+    int size = 4 + fsmName.getBytes(StandardCharsets.UTF_8).length + 4;
+    names.add(fsmName.getBytes(StandardCharsets.UTF_8));
+    for (FSMStateName state : states) {
+      byte[] name = state.toString().getBytes(StandardCharsets.UTF_8);
+      names.add(name);
+      size += 4 + name.length;
+    }
+    size += 4 + blocks.size() * 20 + 8 + FOOTER;
+    ByteBuffer index = ByteBuffer.allocate(size);
+    putBytes(index, names.get(0));
+    index.putInt(states.size());
+    for (int i = 1; i < names.size(); i++) {
+      putBytes(index, names.get(i));
+    }
+    index.putInt(blocks.size());
+    for (long[] block : blocks) {
+      index.putLong(block[0]).putInt((int) block[1]).putLong(block[2]);
+    }
+    index.putLong(instances);
+    //footer
+    index.putLong(indexOffset).putInt(MAGIC);
+    index.flip();
+    return index;
+  }
+
+  private static void putBytes(ByteBuffer buf, byte[] bytes) {
+    buf.putInt(bytes.length).put(bytes);
+  }
+
+  private static String getString(ByteBuffer buf) {
+    byte[] bytes = new byte[buf.getInt()];
+    buf.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Imports all instances of the snapshot. Called before the component of the MultiFSM starts or from its thread.
+   *
+   * @param threads decoding the blocks in parallel
+   * @return the number of instances restored
+   */
+  public static long load(final MultiFSM multiFSM, File file, final FSMInternalStateCodec codec, int threads)
+    throws IOException, FSMException {
+    final FSMachineDef fsmDef = multiFSM.fsmDef;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel ch = raf.getChannel()) {
+      long size = ch.size();
+      ByteBuffer header = ByteBuffer.allocate(HEADER);
+      ch.read(header, 0);
+      header.flip();
+      if (size < HEADER + FOOTER || header.getInt() != MAGIC) {
+        throw new FSMException("file:" + file + " is not an fsm snapshot");
+      }
+      if (header.getInt() != VERSION) {
+        throw new FSMException("snapshot:" + file + " has an unknown version");
+      }
+      ByteBuffer footer = ByteBuffer.allocate(FOOTER);
+      ch.read(footer, size - FOOTER);
+      footer.flip();
+      long indexOffset = footer.getLong();
+      if (footer.getInt() != MAGIC) {
+        throw new FSMException("snapshot:" + file + " is truncated");
+      }
+      ByteBuffer index = ByteBuffer.allocate((int) (size - FOOTER - indexOffset));
+      ch.read(index, indexOffset);
+      index.flip();
+
+      String fsmName = getString(index);
+      if (!fsmName.equals(fsmDef.fsmName)) {
+        throw new FSMException("snapshot of fsm:" + fsmName + " can't be loaded in:" + fsmDef.fsmName);
+      }
+      Map<String, FSMStateName> defStates = new HashMap<>();
+      for (FSMStateName state : fsmDef.states.keySet()) {
+        defStates.put(state.toString(), state);
+      }
+      final FSMStateName[] states = new FSMStateName[index.getInt()];
+      for (int i = 0; i < states.length; i++) {
+        String name = getString(index);
+        states[i] = defStates.get(name);
+        if (states[i] == null) {
+          throw new FSMException("snapshot state:" + name + " not defined in fsm:" + fsmDef.fsmName);
+        }
+      }
+      int nrBlocks = index.getInt();
+      ExecutorService decoders = Executors.newFixedThreadPool(Math.max(1, threads));
+      try {
+        List<Future<FSMExport[]>> decoded = new ArrayList<>(nrBlocks);
+        for (int i = 0; i < nrBlocks; i++) {
+          long offset = index.getLong();
+          int length = index.getInt();
+          final int records = (int) index.getLong();
+          final MappedByteBuffer block = ch.map(FileChannel.MapMode.READ_ONLY, offset, length);
+          decoded.add(decoders.submit(new Callable<FSMExport[]>() {
+            @Override
+            public FSMExport[] call() throws FSMException {
+              return decode(fsmDef, codec, states, block, records);
+            }
+          }));
+        }
+        long instances = 0;
+        //blocks are registered in order while the later ones are still being decoded
+        for (Future<FSMExport[]> f : decoded) {
+          for (FSMExport export : get(f)) {
+            multiFSM.importFSM(export);
+            instances++;
+          }
+        }
+        LOG.info("fsm:{} restored {} instances in {} blocks from:{}",
+          new Object[]{fsmDef.fsmName, instances, nrBlocks, file});
+        return instances;
+      } finally {
+        decoders.shutdownNow();
+      }
+    }
+  }
+
+  private static FSMExport[] decode(FSMachineDef fsmDef, FSMInternalStateCodec codec, FSMStateName[] states,
+    ByteBuffer block, int records) throws FSMException {
+    FSMExport[] exports = new FSMExport[records];
+    for (int i = 0; i < records; i++) {
+      int length = block.getInt();
+      int end = block.position() + length;
+      ByteBuffer record = block.duplicate();
+      record.limit(end);
+      FSMStateName state = states[record.getInt()];
+      Identifier baseId = codec.decodeBaseId(record);
+      FSMIdentifier fsmId = fsmDef.getFsmId(baseId);
+      exports[i] = new FSMExport(fsmId, state, codec.decode(fsmId, record));
+      block.position(end);
+    }
+    return exports;
+  }
+
+  private static FSMExport[] get(Future<FSMExport[]> f) throws FSMException {
+    try {
+      return f.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new FSMException("interrupted restoring snapshot");
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof FSMException) {
+        throw (FSMException) ex.getCause();
+      }
+      throw new RuntimeException(ex.getCause());
+    }
+  }
+}
@@ -18,108 +18,140 @@
  */
 package se.sics.kompics.fsm;
 
-import java.util.Map;
 import java.util.Optional;
-import org.javatuples.Pair;
 import se.sics.kompics.KompicsEvent;
 import se.sics.kompics.PatternExtractor;
 import se.sics.kompics.fsm.handler.FSMBasicEventHandler;
 import se.sics.kompics.fsm.handler.FSMPatternEventHandler;
 import se.sics.kompics.fsm.handler.FSMStateChangeHandler;
+import se.sics.kompics.fsm.handler.FSMTimeoutHandler;
 
 /**
  * @author Alex Ormenisan <aaor@kth.se>
  */
 public class FSMState {
   
-  private final FSMStateName state;
+  final FSMStateName state;
+  //dense index of the state within its definition
+  final int ordinal;
   private final Optional<FSMStateChangeHandler> onEntry;
   private final Optional<FSMStateChangeHandler> onExit;
-  private final FSMExternalState es;
-  private final FSMInternalState is;
+  //ms, 0 if the state has no timeout
+  final long timeout;
+  private final FSMTimeoutHandler timeoutHandler;
   
-  private final Map<Class, FSMBasicEventHandler> positiveBasicHandlers;
-  private final Map<Class, FSMBasicEventHandler> negativeBasicHandlers;
+  //indexed by the event ids compiled by the definition - null where this state has no handler for the event
+  private final FSMBasicEventHandler[] positiveBasicHandlers;
+  private final FSMBasicEventHandler[] negativeBasicHandlers;
   
-  private final Map<Pair<Class, Class>, FSMPatternEventHandler> positivePatternHandlers;
-  private final Map<Pair<Class, Class>, FSMPatternEventHandler> negativePatternHandlers;
+  private final FSMPatternEventHandler[] positivePatternHandlers;
+  private final FSMPatternEventHandler[] negativePatternHandlers;
   
-  public FSMState(FSMStateName state, Optional<FSMStateChangeHandler> onEntry, Optional<FSMStateChangeHandler> onExit,
-    FSMExternalState es, FSMInternalState is,
-    Map<Class, FSMBasicEventHandler> positiveBasicHandlers, Map<Class, FSMBasicEventHandler> negativeBasicHandlers,
-    Map<Pair<Class, Class>, FSMPatternEventHandler> positivePatternHandlers, 
-    Map<Pair<Class, Class>, FSMPatternEventHandler> negativePatternHandlers) {
+  /**
+   * States are shared by all machines of a definition - the external and internal state of the machine being driven
+   * are passed in on each call.
+   */
+  public FSMState(FSMStateName state, int ordinal, 
+    Optional<FSMStateChangeHandler> onEntry, Optional<FSMStateChangeHandler> onExit,
+    long timeout, FSMTimeoutHandler timeoutHandler,
+    FSMBasicEventHandler[] positiveBasicHandlers, FSMBasicEventHandler[] negativeBasicHandlers,
+    FSMPatternEventHandler[] positivePatternHandlers, FSMPatternEventHandler[] negativePatternHandlers) {
     this.state = state;
+    this.ordinal = ordinal;
     this.onEntry = onEntry;
     this.onExit = onExit;
-    this.es = es;
-    this.is = is;
+    this.timeout = timeout;
+    this.timeoutHandler = timeoutHandler;
     this.positiveBasicHandlers = positiveBasicHandlers;
     this.negativeBasicHandlers = negativeBasicHandlers;
     this.positivePatternHandlers = positivePatternHandlers;
     this.negativePatternHandlers = negativePatternHandlers;
   }
   
-  public void onEntry(FSMStateName from) {
+  public void onEntry(FSMStateName from, FSMExternalState es, FSMInternalState is) {
     if (onEntry.isPresent()) {
       onEntry.get().handle(from, state, es, is);
     }
   }
   
-  public void onExit(FSMStateName to) {
+  public void onExit(FSMStateName to, FSMExternalState es, FSMInternalState is) {
     if (onExit.isPresent()) {
       onExit.get().handle(state, to, es, is);
     }
   }
   
-  public Optional<FSMStateName> handlePositive(KompicsEvent event) throws FSMException {
-    FSMBasicEventHandler handler = positiveBasicHandlers.get(event.getClass());
+  public FSMStateName handlePositive(int eventId, FSMExternalState es, FSMInternalState is, 
+    KompicsEvent event) throws FSMException {
+    FSMBasicEventHandler handler = positiveBasicHandlers[eventId];
     if (handler == null) {
-      return Optional.empty();
+      return null;
     }
-    FSMStateName next = handler.handle(state, es, is, event);
-    return Optional.of(next);
+    return checked(handler.handle(state, es, is, event), handler);
   }
   
-  public Optional<FSMStateName> handleNegative(KompicsEvent event) throws FSMException {
-    FSMBasicEventHandler handler = negativeBasicHandlers.get(event.getClass());
+  public FSMStateName handleNegative(int eventId, FSMExternalState es, FSMInternalState is, 
+    KompicsEvent event) throws FSMException {
+    FSMBasicEventHandler handler = negativeBasicHandlers[eventId];
     if (handler == null) {
-      return Optional.empty();
+      return null;
     }
-    FSMStateName next = handler.handle(state, es, is, event);
-    return Optional.of(next);
+    return checked(handler.handle(state, es, is, event), handler);
   }
   
-  public Optional<FSMStateName> handlePositive(KompicsEvent payload, PatternExtractor<Class, KompicsEvent> container)
-    throws FSMException {
-    FSMPatternEventHandler handler = positivePatternHandlers.get(Pair.with(payload.getClass(), container.getClass()));
+  public FSMStateName handlePositive(int eventId, FSMExternalState es, FSMInternalState is, 
+    KompicsEvent payload, PatternExtractor<Class, KompicsEvent> container) throws FSMException {
+    FSMPatternEventHandler handler = positivePatternHandlers[eventId];
     if (handler == null) {
-      return Optional.empty();
+      return null;
     }
-    FSMStateName next = handler.handle(state, es, is, payload, container);
-    return Optional.of(next);
+    return checked(handler.handle(state, es, is, payload, container), handler);
   }
   
-  public Optional<FSMStateName> handleNegative(KompicsEvent payload, PatternExtractor<Class, KompicsEvent> container)
-    throws FSMException {
-    FSMPatternEventHandler handler = negativePatternHandlers.get(Pair.with(payload.getClass(), container.getClass()));
+  public FSMStateName handleNegative(int eventId, FSMExternalState es, FSMInternalState is, 
+    KompicsEvent payload, PatternExtractor<Class, KompicsEvent> container) throws FSMException {
+    FSMPatternEventHandler handler = negativePatternHandlers[eventId];
     if (handler == null) {
-      return Optional.empty();
+      return null;
     }
-    FSMStateName next = handler.handle(state, es, is, payload, container);
-    return Optional.of(next);
+    return checked(handler.handle(state, es, is, payload, container), handler);
   }
   
-  public FSMStateName fallback(KompicsEvent event, FSMBasicEventHandler fallback) throws FSMException {
-    return fallback.handle(state, es, is, event);
+  /**
+   * @param kind FSMachineDef.POSITIVE_BASIC, NEGATIVE_BASIC, POSITIVE_PATTERN or NEGATIVE_PATTERN
+   * @return true if this state has a handler of its own - not a fallback - for the event
+   */
+  boolean handles(int kind, int eventId) {
+    switch (kind) {
+      case FSMachineDef.POSITIVE_BASIC:
+        return positiveBasicHandlers[eventId] != null;
+      case FSMachineDef.NEGATIVE_BASIC:
+        return negativeBasicHandlers[eventId] != null;
+      case FSMachineDef.POSITIVE_PATTERN:
+        return positivePatternHandlers[eventId] != null;
+      default:
+        return negativePatternHandlers[eventId] != null;
+    }
+  }
+  
+  public FSMStateName fallback(FSMExternalState es, FSMInternalState is, KompicsEvent event, 
+    FSMBasicEventHandler fallback) throws FSMException {
+    return checked(fallback.handle(state, es, is, event), fallback);
   }
 
-  public FSMStateName fallback(KompicsEvent payload, PatternExtractor<Class, KompicsEvent> container, FSMPatternEventHandler fallback) throws FSMException {
-    return fallback.handle(state, es, is, payload, container);
+  public FSMStateName fallback(FSMExternalState es, FSMInternalState is, KompicsEvent payload, 
+    PatternExtractor<Class, KompicsEvent> container, FSMPatternEventHandler fallback) throws FSMException {
+    return checked(fallback.handle(state, es, is, payload, container), fallback);
   }
   
-  //*********************************************TESTING_HELPERS********************************************************
-  public FSMInternalState getFSMInternalState() {
-    return is;
+  public FSMStateName handleTimeout(FSMExternalState es, FSMInternalState is) throws FSMException {
+    return checked(timeoutHandler.handle(state, es, is), timeoutHandler);
+  }
+  
+  //null is reserved for "no handler in this state"
+  private FSMStateName checked(FSMStateName next, Object handler) throws FSMException {
+    if (next == null) {
+      throw new FSMException("handler:" + handler + " in state:" + state + " returned no next state");
+    }
+    return next;
   }
 }
@@ -24,6 +24,7 @@ import org.javatuples.Pair;
 import se.sics.kompics.fsm.handler.FSMBasicEventHandler;
 import se.sics.kompics.fsm.handler.FSMPatternEventHandler;
 import se.sics.kompics.fsm.handler.FSMStateChangeHandler;
+import se.sics.kompics.fsm.handler.FSMTimeoutHandler;
 
 /**
  * @author Alex Ormenisan <aaor@kth.se>
@@ -32,6 +33,8 @@ public class FSMStateDef {
   
   private Optional<FSMStateChangeHandler> onEntry;
   private Optional<FSMStateChangeHandler> onExit;
+  private long timeout = 0;
+  private FSMTimeoutHandler timeoutHandler;
   
   private Map<Class, FSMBasicEventHandler> positiveBasicHandlers;
   private Map<Class, FSMBasicEventHandler> negativeBasicHandlers;
@@ -51,6 +54,12 @@ public class FSMStateDef {
     return this;
   }
 
+  public FSMStateDef setTimeout(long timeout, FSMTimeoutHandler handler) {
+    this.timeout = timeout;
+    this.timeoutHandler = handler;
+    return this;
+  }
+
   public FSMStateDef setPositiveBasicHandlers(Map<Class, FSMBasicEventHandler> positiveHandlers) {
     this.positiveBasicHandlers = positiveHandlers;
     return this;
@@ -71,12 +80,48 @@ public class FSMStateDef {
     return this;
   }
   
+  Map<Class, FSMBasicEventHandler> positiveBasicHandlers() {
+    return positiveBasicHandlers;
+  }
+
+  Map<Class, FSMBasicEventHandler> negativeBasicHandlers() {
+    return negativeBasicHandlers;
+  }
+
+  Map<Pair<Class, Class>, FSMPatternEventHandler> positivePatternHandlers() {
+    return positivePatternHandlers;
+  }
+
+  Map<Pair<Class, Class>, FSMPatternEventHandler> negativePatternHandlers() {
+    return negativePatternHandlers;
+  }
+  
   public static FSMStateDef instance() {
     return new FSMStateDef();
   }
   
-  protected FSMState build(FSMStateName state, FSMExternalState es, FSMInternalState is) throws FSMException {
-    return new FSMState(state, onEntry, onExit, es, is,
-      positiveBasicHandlers, negativeBasicHandlers, positivePatternHandlers, negativePatternHandlers);
+  protected FSMState build(FSMStateName state, int ordinal, 
+    Map<Class, Integer> positiveBasicIds, Map<Class, Integer> negativeBasicIds,
+    Map<Pair<Class, Class>, Integer> positivePatternIds, Map<Pair<Class, Class>, Integer> negativePatternIds) 
+    throws FSMException {
+    return new FSMState(state, ordinal, onEntry, onExit, timeout, timeoutHandler,
+      index(positiveBasicHandlers, positiveBasicIds, new FSMBasicEventHandler[positiveBasicIds.size()]), 
+      index(negativeBasicHandlers, negativeBasicIds, new FSMBasicEventHandler[negativeBasicIds.size()]), 
+      index(positivePatternHandlers, positivePatternIds, new FSMPatternEventHandler[positivePatternIds.size()]), 
+      index(negativePatternHandlers, negativePatternIds, new FSMPatternEventHandler[negativePatternIds.size()]));
+  }
+  
+  private static <E, H> H[] index(Map<E, H> handlers, Map<E, Integer> eventIds, H[] table) throws FSMException {
+    if (handlers == null) {
+      return table;
+    }
+    for (Map.Entry<E, H> e : handlers.entrySet()) {
+      Integer eventId = eventIds.get(e.getKey());
+      if (eventId == null) {
+        throw new FSMException("event:" + e.getKey() + " has a handler, but no id");
+      }
+      table[eventId] = e.getValue();
+    }
+    return table;
   }
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import java.util.UUID;
+import se.sics.kompics.ComponentProxy;
+import se.sics.kompics.Handler;
+import se.sics.kompics.Port;
+import se.sics.kompics.Start;
+import se.sics.kompics.Stop;
+import se.sics.kompics.timer.CancelPeriodicTimeout;
+import se.sics.kompics.timer.SchedulePeriodicTimeout;
+import se.sics.kompics.timer.Timeout;
+import se.sics.kompics.timer.Timer;
+
+/**
+ * The one periodic timeout of a MultiFSM, driving its state timeouts and idle expiry. Scheduled on the Timer port of
+ * the component when the component starts and cancelled when it stops.
+ */
+class FSMTicker {
+
+  private final MultiFSM multiFSM;
+  private final long period;
+
+  private ComponentProxy proxy;
+  private Port<Timer> timer;
+  private UUID tickId;
+
+  FSMTicker(MultiFSM multiFSM, long period) {
+    this.multiFSM = multiFSM;
+    this.period = period;
+  }
+
+  void setup(ComponentProxy proxy, Port<Timer> timer) {
+    this.proxy = proxy;
+    this.timer = timer;
+    proxy.subscribe(handleStart, proxy.getControlPort());
+    proxy.subscribe(handleStop, proxy.getControlPort());
+    proxy.subscribe(handleTick, timer);
+  }
+
+  Handler handleStart = new Handler<Start>() {
+    @Override
+    public void handle(Start event) {
+      SchedulePeriodicTimeout spt = new SchedulePeriodicTimeout(period, period);
+      Tick tick = new Tick(spt);
+      spt.setTimeoutEvent(tick);
+      tickId = tick.getTimeoutId();
+      proxy.trigger(spt, timer);
+    }
+  };
+
+  Handler handleStop = new Handler<Stop>() {
+    @Override
+    public void handle(Stop event) {
+      if (tickId != null) {
+        proxy.trigger(new CancelPeriodicTimeout(tickId), timer);
+        tickId = null;
+      }
+    }
+  };
+
+  Handler handleTick = new Handler<Tick>() {
+    @Override
+    public void handle(Tick event) {
+      //other MultiFSMs of the component share the timer port
+      if (event.getTimeoutId().equals(tickId)) {
+        multiFSM.tick();
+      }
+    }
+  };
+
+  static class Tick extends Timeout {
+
+    Tick(SchedulePeriodicTimeout spt) {
+      super(spt);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+/**
+ * Hashed timing wheel holding the state timeouts of all the instances of a MultiFSM.
+ * <p>
+ * Time is counted in ticks of the FSMTicker, one tick per resolution. An instance is armed in the slot of its
+ * deadline tick, in an intrusive list, so arming and cancelling are O(1) and need no timer event per instance.
+ * Deadlines further away than the wheel size share slots with nearer ones and are skipped until their turn comes.
+ */
+class FSMTimerWheel {
+
+  private final MultiFSM multiFSM;
+  private final long resolution;
+  private final FSMachine[] slots;
+  private final int mask;
+  //current tick
+  private long now = 0;
+
+  FSMTimerWheel(MultiFSM multiFSM, long resolution, int slots) {
+    this.multiFSM = multiFSM;
+    this.resolution = resolution;
+    int size = 1;
+    while (size < slots) {
+      size <<= 1;
+    }
+    this.slots = new FSMachine[size];
+    this.mask = size - 1;
+  }
+
+  void arm(FSMachine fsm, long duration) {
+    long ticks = (duration + resolution - 1) / resolution;
+    fsm.timerDeadline = now + Math.max(1, ticks);
+    link(fsm, (int) (fsm.timerDeadline & mask));
+  }
+
+  void cancel(FSMachine fsm) {
+    if (fsm.timerSlot >= 0) {
+      unlink(fsm);
+    }
+  }
+
+  void tick() {
+    now++;
+    FSMachine fsm = slots[(int) (now & mask)];
+    while (fsm != null) {
+      //the timeout handler only re-arms or kills the fired instance, the rest of the slot is untouched
+      FSMachine next = fsm.timerNext;
+      if (fsm.timerDeadline <= now) {
+        unlink(fsm);
+        multiFSM.stateTimeout(fsm);
+      }
+      fsm = next;
+    }
+  }
+
+  private void link(FSMachine fsm, int slot) {
+    FSMachine head = slots[slot];
+    fsm.timerSlot = slot;
+    fsm.timerPrev = null;
+    fsm.timerNext = head;
+    if (head != null) {
+      head.timerPrev = fsm;
+    }
+    slots[slot] = fsm;
+  }
+
+  private void unlink(FSMachine fsm) {
+    if (fsm.timerPrev == null) {
+      slots[fsm.timerSlot] = fsm.timerNext;
+    } else {
+      fsm.timerPrev.timerNext = fsm.timerNext;
+    }
+    if (fsm.timerNext != null) {
+      fsm.timerNext.timerPrev = fsm.timerPrev;
+    }
+    fsm.timerSlot = -1;
+    fsm.timerPrev = null;
+    fsm.timerNext = null;
+  }
+}
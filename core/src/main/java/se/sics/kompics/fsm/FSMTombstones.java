@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import java.util.Arrays;
+import se.sics.kompics.util.Identifier;
+
+/**
+ * Ids of the instances of a MultiFSM killed within the last window, so late events for them do not create a fresh
+ * instance.
+ * <p>
+ * Two generations of a Bloom filter: kills go into the current one and both are checked. When the current one has
+ * seen a window or its expected kills, whichever comes first, the previous one is dropped and the current one takes
+ * its place. A kill is remembered for one to two windows - less if more kills than expected finish within a window -
+ * and memory stays fixed no matter how many instances finished before. False positives drop the first event of a
+ * new instance at the configured rate; there are no false negatives within the window.
+ */
+class FSMTombstones {
+
+  private final long window;
+  private final int expectedKills;
+  private final int hashes;
+  private final int mask;
+  private long[] current;
+  private long[] previous;
+  private int kills = 0;
+  private long rotated;
+
+  FSMTombstones(long window, int expectedKills, double fpp) {
+    this.window = window;
+    this.expectedKills = expectedKills;
+    //optimal size and hash count for expectedKills at fpp - size rounded up to a power of 2
+    double bits = -expectedKills * Math.log(fpp) / (Math.log(2) * Math.log(2));
+    int size = 64;
+    while (size < bits && size < 1 << 30) {
+      size <<= 1;
+    }
+    this.mask = size - 1;
+    this.hashes = Math.max(1, (int) Math.round(bits / expectedKills * Math.log(2)));
+    this.current = new long[size >>> 6];
+    this.previous = new long[size >>> 6];
+    this.rotated = System.currentTimeMillis();
+  }
+
+  void add(Identifier baseId) {
+    rotate(System.currentTimeMillis());
+    if (kills == expectedKills) {
+      rotate();
+    }
+    kills++;
+    long h = hash(baseId);
+    int h1 = (int) h;
+    int h2 = (int) (h >>> 32) | 1;
+    for (int i = 0; i < hashes; i++) {
+      int bit = (h1 + i * h2) & mask;
+      current[bit >>> 6] |= 1L << bit;
+    }
+  }
+
+  boolean contains(Identifier baseId) {
+    rotate(System.currentTimeMillis());
+    long h = hash(baseId);
+    int h1 = (int) h;
+    int h2 = (int) (h >>> 32) | 1;
+    return contains(current, h1, h2) || contains(previous, h1, h2);
+  }
+
+  private boolean contains(long[] filter, int h1, int h2) {
+    for (int i = 0; i < hashes; i++) {
+      int bit = (h1 + i * h2) & mask;
+      if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void rotate(long now) {
+    if (now - rotated >= window) {
+      rotate();
+      //nothing killed within the last window
+      if (now - rotated >= 2 * window) {
+        rotate();
+      }
+      rotated = now;
+    }
+  }
+
+  private void rotate() {
+    long[] filter = previous;
+    previous = current;
+    Arrays.fill(filter, 0);
+    current = filter;
+    kills = 0;
+  }
+
+  //ids hash poorly - small ints - so the hash code is spread over 64 bits, one half per hash function
+  private static long hash(Identifier baseId) {
+    long h = baseId.hashCode();
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hook for profilers - e.g. the Java Flight Recorder events of the jfr module. A MultiFSM calls a tracer only when
+ * one is found on the class path with ServiceLoader and enabled() - otherwise tracing costs a null check.
+ */
+public abstract class FSMTracer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FSMTracer.class);
+  //null if there is no tracer, or it can't run on this jvm
+  static final FSMTracer INSTANCE = load();
+
+  private static FSMTracer load() {
+    try {
+      Iterator<FSMTracer> it = ServiceLoader.load(FSMTracer.class).iterator();
+      if (it.hasNext()) {
+        FSMTracer tracer = it.next();
+        LOG.info("fsm tracer:{}", tracer.getClass().getName());
+        return tracer;
+      }
+    } catch (ServiceConfigurationError | LinkageError ex) {
+      LOG.info("fsm tracer not available:{}", ex.toString());
+    }
+    return null;
+  }
+
+  /**
+   * Called before every event - must be cheap.
+   *
+   * @return true if something is listening
+   */
+  public abstract boolean enabled();
+
+  /**
+   * @return a token passed on to handled, or null if the handler is not traced
+   */
+  public abstract Object handlerStart();
+
+  /**
+   * @param token of handlerStart, null if the handler is not traced
+   * @param to FINAL if the handler killed the instance
+   * @param outcome FSMachine.HANDLED, FALLBACK or UNHANDLED
+   */
+  public abstract void handled(Object token, String fsmName, FSMachine fsm, FSMStateName from, Class eventType,
+    int outcome, FSMStateName to);
+
+  public abstract void created(String fsmName, FSMachine fsm);
+
+  /**
+   * @param to FINAL if the timeout killed the instance
+   */
+  public abstract void timeout(String fsmName, FSMachine fsm, FSMStateName from, FSMStateName to);
+
+  public abstract void killed(String fsmName, FSMachine fsm);
+}
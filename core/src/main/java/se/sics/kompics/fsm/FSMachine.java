@@ -18,10 +18,6 @@
  */
 package se.sics.kompics.fsm;
 
-import com.google.common.collect.Table;
-import java.util.Map;
-import java.util.Optional;
-import org.javatuples.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.sics.kompics.KompicsEvent;
@@ -36,152 +32,189 @@ import se.sics.kompics.fsm.id.FSMIdentifier;
 public class FSMachine {
 
   private final static Logger LOG = LoggerFactory.getLogger(FSMachine.class);
+  //outcome of handling an event
+  public static final int HANDLED = 0;
+  public static final int FALLBACK = 1;
+  public static final int UNHANDLED = 2;
 
-  public final FSMIdentifier fsmId;
+  //reassigned only when a pooled machine is reused, see reuse
+  public FSMIdentifier fsmId;
+  //shared by all machines of the definition
+  private final FSMachineDef fsmDef;
   private final FSMOnKillAction oka;
-  Pair<FSMStateName, FSMState> currentState;
-  private final Map<FSMStateName, FSMState> states;
-  private final Table<FSMStateName, FSMStateName, Boolean> transitionTable;
-  private final FSMBasicEventHandler defaultFallbackBasicEvents;
-  private final FSMPatternEventHandler defaultFallbackPatternEvents;
-  private final Map<Class, FSMBasicEventHandler> fallbackPositiveBasicEvents;
-  private final Map<Class, FSMBasicEventHandler> fallbackNegativeBasicEvents;
-  private final Map<Pair<Class, Class>, FSMPatternEventHandler> fallbackPositivePatternEvents;
-  private final Map<Pair<Class, Class>, FSMPatternEventHandler> fallbackNegativePatternEvents;
-
-  public FSMachine(FSMIdentifier fsmId, FSMOnKillAction oka, Map<FSMStateName, FSMState> states,
-    Table<FSMStateName, FSMStateName, Boolean> transitionTable,
-    FSMBasicEventHandler defaultFallbackBasicEvents, FSMPatternEventHandler defaultFallbackPatternEvents,
-    Map<Class, FSMBasicEventHandler> fallbackPositiveBasicEvents,
-    Map<Class, FSMBasicEventHandler> fallbackNegativeBasicEvents,
-    Map<Pair<Class, Class>, FSMPatternEventHandler> fallbackPositivePatternEvents,
-    Map<Pair<Class, Class>, FSMPatternEventHandler> fallbackNegativePatternEvents) {
+  private final FSMExternalState es;
+  //per machine
+  FSMInternalState is;
+  FSMState currentState;
+  //rendered once, for the diagnostic context
+  private String fsmIdString;
+  //registered in the MultiFSM
+  boolean live;
+  //idle expiry, maintained by the FSMIdleSweeper of the MultiFSM
+  long lastTouched;
+  int idleBucket = -1;
+  FSMachine idlePrev;
+  FSMachine idleNext;
+  //state timeout, maintained by the FSMTimerWheel of the MultiFSM
+  long timerDeadline;
+  int timerSlot = -1;
+  FSMachine timerPrev;
+  FSMachine timerNext;
+
+  public FSMachine(FSMIdentifier fsmId, FSMachineDef fsmDef, FSMOnKillAction oka, FSMExternalState es,
+    FSMInternalState is) {
+    this(fsmId, fsmDef, oka, es, is, fsmDef.start);
+  }
+
+  FSMachine(FSMIdentifier fsmId, FSMachineDef fsmDef, FSMOnKillAction oka, FSMExternalState es,
+    FSMInternalState is, FSMState currentState) {
     this.fsmId = fsmId;
+    this.fsmDef = fsmDef;
     this.oka = oka;
-    this.states = states;
-    this.transitionTable = transitionTable;
-    this.defaultFallbackBasicEvents = defaultFallbackBasicEvents;
-    this.defaultFallbackPatternEvents = defaultFallbackPatternEvents;
-    this.currentState = Pair.with((FSMStateName) FSMBasicStateNames.START, states.get(FSMBasicStateNames.START));
-    this.fallbackPositiveBasicEvents = fallbackPositiveBasicEvents;
-    this.fallbackNegativeBasicEvents = fallbackNegativeBasicEvents;
-    this.fallbackPositivePatternEvents = fallbackPositivePatternEvents;
-    this.fallbackNegativePatternEvents = fallbackNegativePatternEvents;
+    this.es = es;
+    this.is = is;
+    this.currentState = currentState;
   }
 
-  public void handlePositive(KompicsEvent event) throws FSMException {
+  /**
+   * Turns a killed machine, taken from the pool of its MultiFSM, into a new instance in START.
+   */
+  void reuse(FSMIdentifier fsmId, FSMInternalState is) {
+    this.fsmId = fsmId;
+    this.is = is;
+    this.currentState = fsmDef.start;
+    this.fsmIdString = null;
+  }
+
+  /**
+   * @return HANDLED, FALLBACK or UNHANDLED
+   */
+  public int handlePositive(int eventId, KompicsEvent event) throws FSMException {
     LOG.trace("handle event:{}", event);
-    Optional<FSMStateName> next = currentState.getValue1().handlePositive(event);
-    boolean fb = false;
-    if (!next.isPresent()) {
-      FSMBasicEventHandler fallback = fallbackPositiveBasicEvents.get(event.getClass());
-      if (fallback == null) {
-        if (defaultFallbackBasicEvents == null) {
-          LOG.info("not handling positive port event:{}", event);
-          return;
-        }
-        fallback = defaultFallbackBasicEvents;
-      }
-      next = Optional.of(currentState.getValue1().fallback(event, fallback));
-      fb = true;
+    FSMStateName next = currentState.handlePositive(eventId, es, is, event);
+    if (next != null) {
+      handle(next, event, false);
+      return HANDLED;
     }
-    handle(next.get(), event, fb);
+    FSMBasicEventHandler fallback = fsmDef.positiveBasicFallback[eventId];
+    if (fallback == null) {
+      LOG.info("fsm:{} state:{} not handling positive port event:{}", new Object[]{fsmId, currentState.state, event});
+      return UNHANDLED;
+    }
+    handle(currentState.fallback(es, is, event, fallback), event, true);
+    return FALLBACK;
   }
 
-  public void handleNegative(KompicsEvent event) throws FSMException {
+  /**
+   * @return HANDLED, FALLBACK or UNHANDLED
+   */
+  public int handleNegative(int eventId, KompicsEvent event) throws FSMException {
     LOG.trace("handle event:{}", event);
-    Optional<FSMStateName> next = currentState.getValue1().handleNegative(event);
-    boolean fb = false;
-    if (!next.isPresent()) {
-      FSMBasicEventHandler fallback = fallbackNegativeBasicEvents.get(event.getClass());
-      if (fallback == null) {
-        if (defaultFallbackBasicEvents == null) {
-          LOG.info("not handling negative port event:{}", event);
-          return;
-        }
-        fallback = defaultFallbackBasicEvents;
-      }
-      next = Optional.of(currentState.getValue1().fallback(event, fallback));
-      fb = true;
+    FSMStateName next = currentState.handleNegative(eventId, es, is, event);
+    if (next != null) {
+      handle(next, event, false);
+      return HANDLED;
     }
-    handle(next.get(), event, fb);
+    FSMBasicEventHandler fallback = fsmDef.negativeBasicFallback[eventId];
+    if (fallback == null) {
+      LOG.info("fsm:{} state:{} not handling negative port event:{}", new Object[]{fsmId, currentState.state, event});
+      return UNHANDLED;
+    }
+    handle(currentState.fallback(es, is, event, fallback), event, true);
+    return FALLBACK;
   }
 
   private void handle(FSMStateName next, KompicsEvent event, boolean fallback) throws FSMException {
-    if(fallback && currentState.getValue0().equals(next)) {
+    if(fallback && currentState.state.equals(next)) {
       return;
     }
     if (FSMBasicStateNames.FINAL.equals(next)) {
       oka.kill(fsmId);
       return;
     }
-    //we can't check at definition the sanity or completion of transition table
-    if (!transitionTable.contains(currentState.getValue0(), next)) {
-      throw new FSMException("transition from:" + currentState.getValue0() + " to:" + next + " not defined");
-    }
+    FSMState nextState = transition(next);
     LOG.trace("event:{} resulted in transition to state:{}", event, next);
-    //we check at definition that both from and to states of a transition are registered
-    currentState = Pair.with(next, states.get(next));
+    currentState = nextState;
   }
 
-  public void handlePositive(KompicsEvent payload, PatternExtractor container) throws
-    FSMException {
+  /**
+   * @return HANDLED, FALLBACK or UNHANDLED
+   */
+  public int handlePositive(int eventId, KompicsEvent payload, PatternExtractor container) throws FSMException {
     LOG.trace("handle container:{}", container);
-    Optional<FSMStateName> next = currentState.getValue1().handlePositive(payload, container);
-    boolean fb = false;
-    if (!next.isPresent()) {
-      FSMPatternEventHandler fallback 
-        = fallbackPositivePatternEvents.get(Pair.with(payload.getClass(), container.getClass()));
-      if (fallback == null) {
-        if (defaultFallbackPatternEvents == null) {
-          LOG.info("not handling positive container:{}", container);
-          return;
-        }
-        fallback = defaultFallbackPatternEvents;
-      }
-      next = Optional.of(currentState.getValue1().fallback(payload, container, fallback));
-      fb = true;
+    FSMStateName next = currentState.handlePositive(eventId, es, is, payload, container);
+    if (next != null) {
+      handle(next, payload, container, false);
+      return HANDLED;
+    }
+    FSMPatternEventHandler fallback = fsmDef.positivePatternFallback[eventId];
+    if (fallback == null) {
+      LOG.info("fsm:{} state:{} not handling positive container:{}",
+        new Object[]{fsmId, currentState.state, container});
+      return UNHANDLED;
     }
-    handle(next.get(), payload, container, fb);
+    handle(currentState.fallback(es, is, payload, container, fallback), payload, container, true);
+    return FALLBACK;
   }
 
-  public void handleNegative(KompicsEvent payload, PatternExtractor container) throws
-    FSMException {
+  /**
+   * @return HANDLED, FALLBACK or UNHANDLED
+   */
+  public int handleNegative(int eventId, KompicsEvent payload, PatternExtractor container) throws FSMException {
     LOG.trace("handle container:{}", container);
-    Optional<FSMStateName> next = currentState.getValue1().handleNegative(payload, container);
-    boolean fb = false;
-    if (!next.isPresent()) {
-      FSMPatternEventHandler fallback 
-        = fallbackNegativePatternEvents.get(Pair.with(payload.getClass(), container.getClass()));
-      if (fallback == null) {
-        if (defaultFallbackPatternEvents == null) {
-          LOG.info("not handling negative container:{}", container);
-          return;
-        }
-        fallback = defaultFallbackPatternEvents;
-      }
-      next = Optional.of(currentState.getValue1().fallback(payload, container, fallback));
-      fb = true;
+    FSMStateName next = currentState.handleNegative(eventId, es, is, payload, container);
+    if (next != null) {
+      handle(next, payload, container, false);
+      return HANDLED;
+    }
+    FSMPatternEventHandler fallback = fsmDef.negativePatternFallback[eventId];
+    if (fallback == null) {
+      LOG.info("fsm:{} state:{} not handling negative container:{}",
+        new Object[]{fsmId, currentState.state, container});
+      return UNHANDLED;
     }
-    handle(next.get(), payload, container, fb);
+    handle(currentState.fallback(es, is, payload, container, fallback), payload, container, true);
+    return FALLBACK;
   }
 
   private void handle(FSMStateName next, KompicsEvent payload, PatternExtractor<Class, KompicsEvent> container, 
     boolean fallback) throws FSMException {
-    if(fallback && currentState.getValue0().equals(next)) {
+    if(fallback && currentState.state.equals(next)) {
       return;
     }
     if (FSMBasicStateNames.FINAL.equals(next)) {
       oka.kill(fsmId);
       return;
     }
+    FSMState nextState = transition(next);
+    LOG.trace("container:{} resulted in transition to state:{}", container, next);
+    currentState = nextState;
+  }
+
+  /**
+   * @return false if the timeout handler killed the machine
+   */
+  boolean handleTimeout() throws FSMException {
+    FSMStateName next = currentState.handleTimeout(es, is);
+    LOG.trace("timeout in state:{}", currentState.state);
+    if (FSMBasicStateNames.FINAL.equals(next)) {
+      oka.kill(fsmId);
+      return false;
+    }
+    FSMState nextState = transition(next);
+    LOG.trace("timeout resulted in transition to state:{}", next);
+    currentState = nextState;
+    return true;
+  }
+
+  private FSMState transition(FSMStateName next) throws FSMException {
+    //staying in the same state is the common case and needs no lookup
+    FSMState nextState = (next == currentState.state) ? currentState : fsmDef.states.get(next);
     //we can't check at definition the sanity or completion of transition table
-    if (!transitionTable.contains(currentState.getValue0(), next)) {
-      throw new FSMException("transition from:" + currentState.getValue0() + " to:" + next + " not defined");
+    if (nextState == null || !fsmDef.transition(currentState.ordinal, nextState.ordinal)) {
+      throw new FSMException("transition from:" + currentState.state + " to:" + next + " not defined");
     }
-    LOG.trace("container:{} resulted in transition to state:{}", container, next);
-    //we check at definition that both from and to states of a transition are registered
-    currentState = Pair.with(next, states.get(next));
+    return nextState;
   }
 
   static FSMBasicEventHandler DEFAULT_FALLABACK_BASIC_EVENTS
@@ -189,7 +222,7 @@ public class FSMachine {
       @Override
       public FSMStateName handle(FSMStateName state, FSMExternalState es, FSMInternalState is, FSMEvent event)
       throws FSMException {
-        LOG.info("not handling event:{}", event);
+        LOG.info("fsm:{} state:{} not handling event:{}", new Object[]{is.getFSMId(), state, event});
         return state;
       }
     };
@@ -199,17 +232,24 @@ public class FSMachine {
       @Override
       public FSMStateName handle(FSMStateName state, FSMExternalState es, FSMInternalState is, FSMEvent payload,
         PatternExtractor<Class, FSMEvent> container) throws FSMException {
-        LOG.info("not handling container:{}", container);
+        LOG.info("fsm:{} state:{} not handling container:{}", new Object[]{is.getFSMId(), state, container});
         return state;
       }
     };
 
   public FSMStateName getState() {
-    return currentState.getValue0();
+    return currentState.state;
+  }
+
+  String fsmIdString() {
+    if (fsmIdString == null) {
+      fsmIdString = fsmId.toString();
+    }
+    return fsmIdString;
   }
 
   //*********************************************TESTING_HELPERS********************************************************
   public FSMInternalState getFSMInternalState() {
-    return currentState.getValue1().getFSMInternalState();
+    return is;
   }
 }
@@ -19,8 +19,13 @@
 package se.sics.kompics.fsm;
 
 import com.google.common.collect.Table;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.javatuples.Pair;
 import se.sics.kompics.fsm.handler.FSMBasicEventHandler;
 import se.sics.kompics.fsm.handler.FSMPatternEventHandler;
@@ -33,17 +38,37 @@ import se.sics.kompics.util.Identifier;
  */
 public class FSMachineDef {
 
-  private final FSMIdentifierFactory fsmIdFactory;
+  //event kinds, in the order of their ranges in the index of all events
+  static final int POSITIVE_BASIC = 0;
+  static final int NEGATIVE_BASIC = 1;
+  static final int POSITIVE_PATTERN = 2;
+  static final int NEGATIVE_PATTERN = 3;
+
+  final FSMIdentifierFactory fsmIdFactory;
   final Identifier fsmDefId;
   final String fsmName;
-  private final Map<FSMStateName, FSMStateDef> stateDefs;
-  private final Table<FSMStateName, FSMStateName, Boolean> transitionTable;
-  private final FSMBasicEventHandler fallbackEventHandler;
-  private final FSMPatternEventHandler fallbackMsgHandler;
-  private final Map<Class, FSMBasicEventHandler> fallbackPositiveBasicEvents;
-  private final Map<Class, FSMBasicEventHandler> fallbackNegativeBasicEvents;
-  private final Map<Pair<Class, Class>, FSMPatternEventHandler>  fallbackPositivePatternEvents;
-  private final Map<Pair<Class, Class>, FSMPatternEventHandler>  fallbackNegativePatternEvents;
+  //states hold no per machine data, so they are built once and shared by all machines of this definition
+  final Map<FSMStateName, FSMState> states;
+  final FSMState start;
+  //dense event ids - one id space per port charge and event kind
+  final Map<Class, Integer> positiveBasicIds;
+  final Map<Class, Integer> negativeBasicIds;
+  final Map<Pair<Class, Class>, Integer> positivePatternIds;
+  final Map<Pair<Class, Class>, Integer> negativePatternIds;
+  //all events in one index space - by kind, then by id - and their names: class, or content@container for pattern
+  //events, prefixed by the charge of the port
+  private final int[] eventOffsets = new int[4];
+  final String[] eventNames;
+  //by event index - true for the events START handles, the only ones that create an instance for an unknown id
+  private final boolean[] admitted;
+  //transitions[from.ordinal * nrStates + to.ordinal] as a bit matrix
+  private final int nrStates;
+  private final long[] transitions;
+  //fallback per event id, with the default fallback already resolved - null where the event is not handled
+  final FSMBasicEventHandler[] positiveBasicFallback;
+  final FSMBasicEventHandler[] negativeBasicFallback;
+  final FSMPatternEventHandler[] positivePatternFallback;
+  final FSMPatternEventHandler[] negativePatternFallback;
 
   private FSMachineDef(FSMIdentifierFactory fsmIdFactory, String fsmName, Map<FSMStateName, FSMStateDef> stateDefs,
     Table<FSMStateName, FSMStateName, Boolean> transitionTable, 
@@ -51,7 +76,9 @@ public class FSMachineDef {
     Map<Class, FSMBasicEventHandler> fallbackPositiveBasicEvents, 
     Map<Class, FSMBasicEventHandler> fallbackNegativeBasicEvents,
     Map<Pair<Class, Class>, FSMPatternEventHandler>  fallbackPositivePatternEvents, 
-    Map<Pair<Class, Class>, FSMPatternEventHandler>  fallbackNegativePatternEvents) {
+    Map<Pair<Class, Class>, FSMPatternEventHandler>  fallbackNegativePatternEvents,
+    Map<Class, Integer> positiveBasicIds, Map<Class, Integer> negativeBasicIds,
+    Map<Pair<Class, Class>, Integer> positivePatternIds, Map<Pair<Class, Class>, Integer> negativePatternIds) {
     this.fsmIdFactory = fsmIdFactory;
     this.fsmName = fsmName;
     try {
@@ -59,27 +86,154 @@ public class FSMachineDef {
     } catch (FSMException ex) {
       throw new RuntimeException(ex);
     }
-    this.stateDefs = stateDefs;
-    this.transitionTable = transitionTable;
-    this.fallbackEventHandler = defaultFallbackBasicEvent;
-    this.fallbackMsgHandler = defaultFallbackPatternEvent;
-    this.fallbackPositiveBasicEvents = fallbackPositiveBasicEvents;
-    this.fallbackNegativeBasicEvents = fallbackNegativeBasicEvents;
-    this.fallbackPositivePatternEvents = fallbackPositivePatternEvents;
-    this.fallbackNegativePatternEvents = fallbackNegativePatternEvents;
+    this.positiveBasicIds = positiveBasicIds;
+    this.negativeBasicIds = negativeBasicIds;
+    this.positivePatternIds = positivePatternIds;
+    this.negativePatternIds = negativePatternIds;
+    List<String> names = new ArrayList<>();
+    eventOffsets[POSITIVE_BASIC] = basicEventNames(names, "+", positiveBasicIds);
+    eventOffsets[NEGATIVE_BASIC] = basicEventNames(names, "-", negativeBasicIds);
+    eventOffsets[POSITIVE_PATTERN] = patternEventNames(names, "+", positivePatternIds);
+    eventOffsets[NEGATIVE_PATTERN] = patternEventNames(names, "-", negativePatternIds);
+    this.eventNames = names.toArray(new String[names.size()]);
+
+    Map<FSMStateName, Integer> ordinals = new HashMap<>();
+    for (FSMStateName state : stateDefs.keySet()) {
+      ordinals.put(state, ordinals.size());
+    }
+    this.states = new HashMap<>();
+    try {
+      for (Map.Entry<FSMStateName, FSMStateDef> e : stateDefs.entrySet()) {
+        states.put(e.getKey(), e.getValue().build(e.getKey(), ordinals.get(e.getKey()),
+          positiveBasicIds, negativeBasicIds, positivePatternIds, negativePatternIds));
+      }
+    } catch (FSMException ex) {
+      throw new RuntimeException(ex);
+    }
+    this.admitted = new boolean[eventNames.length];
+    this.start = states.get(FSMBasicStateNames.START);
+    if (start != null) {
+      admit(POSITIVE_BASIC, positiveBasicIds.size());
+      admit(NEGATIVE_BASIC, negativeBasicIds.size());
+      admit(POSITIVE_PATTERN, positivePatternIds.size());
+      admit(NEGATIVE_PATTERN, negativePatternIds.size());
+    }
+    this.nrStates = ordinals.size();
+    this.transitions = new long[(nrStates * nrStates + 63) / 64];
+    for (Table.Cell<FSMStateName, FSMStateName, Boolean> t : transitionTable.cellSet()) {
+      Integer from = ordinals.get(t.getRowKey());
+      Integer to = ordinals.get(t.getColumnKey());
+      //FINAL is not a state, transitions to it are checked before the table
+      if (from != null && to != null) {
+        int bit = from * nrStates + to;
+        transitions[bit >>> 6] |= 1L << bit;
+      }
+    }
+
+    this.positiveBasicFallback = fallbacks(fallbackPositiveBasicEvents, defaultFallbackBasicEvent, positiveBasicIds,
+      new FSMBasicEventHandler[positiveBasicIds.size()]);
+    this.negativeBasicFallback = fallbacks(fallbackNegativeBasicEvents, defaultFallbackBasicEvent, negativeBasicIds,
+      new FSMBasicEventHandler[negativeBasicIds.size()]);
+    this.positivePatternFallback = fallbacks(fallbackPositivePatternEvents, defaultFallbackPatternEvent, 
+      positivePatternIds, new FSMPatternEventHandler[positivePatternIds.size()]);
+    this.negativePatternFallback = fallbacks(fallbackNegativePatternEvents, defaultFallbackPatternEvent, 
+      negativePatternIds, new FSMPatternEventHandler[negativePatternIds.size()]);
+  }
+
+  private void admit(int kind, int nrEvents) {
+    for (int eventId = 0; eventId < nrEvents; eventId++) {
+      admitted[eventIndex(kind, eventId)] = start.handles(kind, eventId);
+    }
+  }
+
+  private static <E, H> H[] fallbacks(Map<E, H> fallbacks, H defaultFallback, Map<E, Integer> eventIds, H[] table) {
+    for (Map.Entry<E, Integer> e : eventIds.entrySet()) {
+      H fallback = fallbacks.get(e.getKey());
+      table[e.getValue()] = fallback == null ? defaultFallback : fallback;
+    }
+    return table;
+  }
+
+  private static int basicEventNames(List<String> names, String charge, Map<Class, Integer> ids) {
+    int offset = names.size();
+    String[] byId = new String[ids.size()];
+    for (Map.Entry<Class, Integer> e : ids.entrySet()) {
+      byId[e.getValue()] = charge + e.getKey().getSimpleName();
+    }
+    names.addAll(Arrays.asList(byId));
+    return offset;
+  }
+
+  private static int patternEventNames(List<String> names, String charge, Map<Pair<Class, Class>, Integer> ids) {
+    int offset = names.size();
+    String[] byId = new String[ids.size()];
+    for (Map.Entry<Pair<Class, Class>, Integer> e : ids.entrySet()) {
+      byId[e.getValue()] = charge + e.getKey().getValue0().getSimpleName() + "@"
+        + e.getKey().getValue1().getSimpleName();
+    }
+    names.addAll(Arrays.asList(byId));
+    return offset;
+  }
+
+  /**
+   * @return the index of the event among all events of the definition
+   */
+  int eventIndex(int kind, int eventId) {
+    return eventOffsets[kind] + eventId;
+  }
+
+  /**
+   * @param event index of the event among all events of the definition
+   * @return true if the event creates an instance when its id has none
+   */
+  boolean admits(int event) {
+    return admitted[event];
+  }
+
+  /**
+   * @return state names by ordinal
+   */
+  String[] stateNames() {
+    String[] names = new String[states.size()];
+    for (FSMState state : states.values()) {
+      names[state.ordinal] = state.state.toString();
+    }
+    return names;
+  }
+
+  boolean transition(int from, int to) {
+    int bit = from * nrStates + to;
+    return (transitions[bit >>> 6] & (1L << bit)) != 0;
   }
 
   public FSMachine build(Identifier baseId, FSMOnKillAction oka, FSMExternalState es, FSMInternalState is)
     throws FSMException {
+    return instance(fsmIdFactory.getFSMId(fsmDefId, baseId), oka, es, is);
+  }
 
-    Map<FSMStateName, FSMState> states = new HashMap<>();
-    for (Map.Entry<FSMStateName, FSMStateDef> e : stateDefs.entrySet()) {
-      FSMState state = e.getValue().build(e.getKey(), es, is);
-      states.put(e.getKey(), state);
-    }
+  FSMachine instance(FSMIdentifier fsmId, FSMOnKillAction oka, FSMExternalState es, FSMInternalState is) {
+    return new FSMachine(fsmId, this, oka, es, is);
+  }
 
-    return new FSMachine(fsmIdFactory.getFSMId(fsmDefId, baseId), oka, states, transitionTable, fallbackEventHandler, fallbackMsgHandler,
-      fallbackPositiveBasicEvents,fallbackNegativeBasicEvents, fallbackPositivePatternEvents, fallbackNegativePatternEvents);
+  FSMachine instance(FSMIdentifier fsmId, FSMOnKillAction oka, FSMExternalState es, FSMInternalState is,
+    FSMState state) {
+    return new FSMachine(fsmId, this, oka, es, is, state);
+  }
+  
+  public static FSMachineDef definition(FSMIdentifierFactory fsmIdFactory, String fsmName, 
+    Map<FSMStateName, FSMStateDef> stateDefs, Table<FSMStateName, FSMStateName, Boolean> transitionTable, 
+    FSMBasicEventHandler defaultFallbackBasicEvent, FSMPatternEventHandler defaultFallbackPatternEvent,
+    Map<Class, FSMBasicEventHandler> fallbackPositiveBasicEvents, 
+    Map<Class, FSMBasicEventHandler> fallbackNegativeBasicEvents,
+    Map<Pair<Class, Class>, FSMPatternEventHandler> fallbackPositivePatternEvents, 
+    Map<Pair<Class, Class>, FSMPatternEventHandler> fallbackNegativePatternEvents,
+    Map<Class, Integer> positiveBasicIds, Map<Class, Integer> negativeBasicIds,
+    Map<Pair<Class, Class>, Integer> positivePatternIds, Map<Pair<Class, Class>, Integer> negativePatternIds) {
+    return new FSMachineDef(fsmIdFactory, fsmName, stateDefs, transitionTable, 
+      defaultFallbackBasicEvent, defaultFallbackPatternEvent,
+      fallbackPositiveBasicEvents, fallbackNegativeBasicEvents, 
+      fallbackPositivePatternEvents, fallbackNegativePatternEvents,
+      positiveBasicIds, negativeBasicIds, positivePatternIds, negativePatternIds);
   }
   
   public static FSMachineDef definition(FSMIdentifierFactory fsmIdFactory, String fsmName, 
@@ -89,10 +243,21 @@ public class FSMachineDef {
     Map<Class, FSMBasicEventHandler> fallbackNegativeBasicEvents,
     Map<Pair<Class, Class>, FSMPatternEventHandler> fallbackPositivePatternEvents, 
     Map<Pair<Class, Class>, FSMPatternEventHandler>  fallbackNegativePatternEvents) {
+    Map<Class, Integer> positiveBasicIds = eventIds(fallbackPositiveBasicEvents.keySet());
+    Map<Class, Integer> negativeBasicIds = eventIds(fallbackNegativeBasicEvents.keySet());
+    Map<Pair<Class, Class>, Integer> positivePatternIds = eventIds(fallbackPositivePatternEvents.keySet());
+    Map<Pair<Class, Class>, Integer> negativePatternIds = eventIds(fallbackNegativePatternEvents.keySet());
+    for (FSMStateDef stateDef : stateDefs.values()) {
+      eventIds(positiveBasicIds, stateDef.positiveBasicHandlers());
+      eventIds(negativeBasicIds, stateDef.negativeBasicHandlers());
+      eventIds(positivePatternIds, stateDef.positivePatternHandlers());
+      eventIds(negativePatternIds, stateDef.negativePatternHandlers());
+    }
     return new FSMachineDef(fsmIdFactory, fsmName, stateDefs, transitionTable, 
       defaultFallbackBasicEvent, defaultFallbackPatternEvent,
       fallbackPositiveBasicEvents, fallbackNegativeBasicEvents, 
-      fallbackPositivePatternEvents, fallbackNegativePatternEvents);
+      fallbackPositivePatternEvents, fallbackNegativePatternEvents,
+      positiveBasicIds, negativeBasicIds, positivePatternIds, negativePatternIds);
   }
   
   public static FSMachineDef definition(FSMIdentifierFactory fsmIdFactory, String fsmName,  
@@ -101,13 +266,48 @@ public class FSMachineDef {
     Map<Class, FSMBasicEventHandler> fallbackNegativeBasicEvents,
     Map<Pair<Class, Class>, FSMPatternEventHandler>  fallbackPositivePatternEvents, 
     Map<Pair<Class, Class>, FSMPatternEventHandler>  fallbackNegativePatternEvents) {
-    return new FSMachineDef(fsmIdFactory, fsmName, stateDefs, transitionTable, 
+    return definition(fsmIdFactory, fsmName, stateDefs, transitionTable, 
       FSMachine.DEFAULT_FALLABACK_BASIC_EVENTS, FSMachine.DEFAULT_FALLBACK_PATTERN_EVENTS,
       fallbackPositiveBasicEvents, fallbackNegativeBasicEvents, 
       fallbackPositivePatternEvents, fallbackNegativePatternEvents);
   }
   
+  private static <E> Map<E, Integer> eventIds(Set<E> events) {
+    Map<E, Integer> ids = new LinkedHashMap<>();
+    for (E event : events) {
+      ids.put(event, ids.size());
+    }
+    return ids;
+  }
+  
+  private static <E> void eventIds(Map<E, Integer> ids, Map<E, ?> handlers) {
+    if (handlers == null) {
+      return;
+    }
+    for (E event : handlers.keySet()) {
+      if (!ids.containsKey(event)) {
+        ids.put(event, ids.size());
+      }
+    }
+  }
+  
   public FSMIdentifier getFsmId(Identifier baseId) {
     return fsmIdFactory.getFSMId(fsmDefId, baseId);
   }
+  
+  int positiveBasicEventId(Class eventType) {
+    return positiveBasicIds.get(eventType);
+  }
+  
+  int negativeBasicEventId(Class eventType) {
+    return negativeBasicIds.get(eventType);
+  }
+  
+  int positivePatternEventId(Class contentType, Class containerType) {
+    return positivePatternIds.get(Pair.with(contentType, containerType));
+  }
+  
+  int negativePatternEventId(Class contentType, Class containerType) {
+    return negativePatternIds.get(Pair.with(contentType, containerType));
+  }
 }
@@ -18,7 +18,7 @@
  */
 package se.sics.kompics.fsm;
 
-import java.util.HashMap;
+import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -33,7 +33,11 @@ import se.sics.kompics.ComponentProxy;
 import se.sics.kompics.Handler;
 import se.sics.kompics.KompicsEvent;
 import se.sics.kompics.PatternExtractor;
+import se.sics.kompics.Port;
+import se.sics.kompics.fsm.handler.FSMDeadLetterHandler;
+import se.sics.kompics.fsm.handler.FSMIdleHandler;
 import se.sics.kompics.fsm.id.FSMIdentifier;
+import se.sics.kompics.timer.Timer;
 import se.sics.kompics.util.Identifier;
 
 /**
@@ -46,138 +50,649 @@ public class MultiFSM {
   private static final String FSM_ID = "fsmId";
   private static final String FSM_STATE = "fsmState";
 
-  private final FSMachineDef fsmDef;
-  private final OnFSMExceptionAction oexa;
-  private final BaseIdExtractor fsmIdExtractor;
-  private final Map<FSMIdentifier, FSMachine> fsms = new HashMap<>();
+  final FSMachineDef fsmDef;
+  final OnFSMExceptionAction oexa;
+  final BaseIdExtractor fsmIdExtractor;
+  //keyed by base id so that routing an event to a live instance does not build an FSMIdentifier
+  private final FSMRegistry fsms;
   private final FSMExternalState es;
   private final FSMInternalStateBuilder isb;
-  private final Map<Class, Set<Class>> positiveBasicEvents;
-  private final Map<Class, Set<Class>> negativeBasicEvents;
-  private final Map<Class, Set<Pair<Class, Class>>> positivePatternEvents;
-  private final Map<Class, Set<Pair<Class, Class>>> negativePatternEvents;
+  final Map<Class, Set<Class>> positiveBasicEvents;
+  final Map<Class, Set<Class>> negativeBasicEvents;
+  final Map<Class, Set<Pair<Class, Class>>> positivePatternEvents;
+  final Map<Class, Set<Pair<Class, Class>>> negativePatternEvents;
+  private final FSMDiagnosticContext diagnosticContext;
+  //null if instances do not expire when idle
+  private final FSMIdleSweeper idleSweeper;
+  private final FSMIdleHandler idleHandler;
+  //null if no state of the definition declares a timeout
+  private final FSMTimerWheel timers;
+  //null if neither state timeouts nor idle expiry are used
+  private final FSMTicker ticker;
+  //null if not journaled
+  private final FSMJournal journal;
+  //null if idle instances are not passivated
+  private final FSMPassivationStore passivation;
+  //null if not measured
+  private final FSMMetrics.Stripe metrics;
+  //null if turned off
+  private final FSMFlightRecorder recorder;
+  //null if there is no tracer on the class path
+  private final FSMTracer tracer = FSMTracer.INSTANCE;
+  //token of a traced handler whose latency the tracer does not measure
+  private static final Object UNTIMED = new Object();
+  //null if dead letters are only counted
+  private final FSMDeadLetterHandler deadLetterHandler;
+  private long deadLetters = 0;
+  //null if ids of killed instances are not remembered
+  private final FSMTombstones tombstones;
+  private long tombstoned = 0;
+  //killed machines kept for reuse - null if not pooled
+  private final FSMachine[] pool;
+  private int pooled = 0;
+  //null if internal states are not recycled
+  private final FSMRecyclableStateBuilder recyclable;
+  //set by the MultiFSMComp of a shard, told of the kills of instances living away from their partitioner shard
+  FSMOnKillAction killListener = null;
+  //ticker ticks per timer wheel tick and per idle sweep
+  private final int ticksPerWheel;
+  private int sinceWheel = 0;
+  private final int ticksPerSweep;
+  private int sinceSweep = 0;
 
   private final FSMOnKillAction oka = new FSMOnKillAction() {
     @Override
     public void kill(FSMIdentifier fsmId) {
-      MDC.put(FSM_NAME, fsmDef.fsmName);
-      MDC.put(FSM_ID, fsmId.toString());
+      boolean context = diagnosticContext == FSMDiagnosticContext.FULL
+        || (diagnosticContext == FSMDiagnosticContext.LAZY && LOG.isInfoEnabled());
+      if (context) {
+        MDC.put(FSM_NAME, fsmDef.fsmName);
+        MDC.put(FSM_ID, fsmId.toString());
+      }
       try {
         LOG.info("removing fsm");
-        fsms.remove(fsmId);
+        FSMachine fsm = unregister(fsmId.baseId);
+        if (fsm != null) {
+          if (metrics != null) {
+            metrics.killed(fsm.currentState.ordinal);
+          }
+          if (tracer != null && tracer.enabled()) {
+            tracer.killed(fsmDef.fsmName, fsm);
+          }
+          if (journal != null) {
+            journal.kill(fsmId.baseId);
+          }
+          if (tombstones != null) {
+            tombstones.add(fsmId.baseId);
+          }
+          if (pool != null) {
+            release(fsm);
+          }
+          if (killListener != null) {
+            killListener.kill(fsmId);
+          }
+        }
+      } catch (FSMException ex) {
+        oexa.handle(ex);
       } finally {
-        MDC.remove(FSM_NAME);
-        MDC.remove(FSM_ID);
+        if (context) {
+          MDC.remove(FSM_NAME);
+          MDC.remove(FSM_ID);
+        }
       }
     }
   };
 
-  private Optional<FSMachine> getFSM(KompicsEvent event) throws FSMException {
+  /**
+   * @param eventIdx index of the event among all events of the definition
+   * @return the instance the event is routed to (created if START handles the event) or null if the event carries no
+   * base id or is a dead letter
+   */
+  private FSMachine getFSM(KompicsEvent event, int eventIdx) throws FSMException {
+    FSMachine fsm = fsms.get(event);
+    if (fsm != null) {
+      if (idleSweeper != null) {
+        fsm.lastTouched = idleSweeper.now;
+      }
+      return fsm;
+    }
     Optional<Identifier> baseId = fsmIdExtractor.fromEvent(event);
     if (!baseId.isPresent()) {
       LOG.warn("not handling event:{}", event);
-      return Optional.empty();
+      return null;
+    }
+    if (passivation != null) {
+      fsm = rehydrate(baseId.get());
+      if (fsm != null) {
+        return fsm;
+      }
+    }
+    if (!fsmDef.admits(eventIdx)) {
+      deadLetter(baseId.get(), event, eventIdx);
+      return null;
+    }
+    if (tombstones != null && tombstones.contains(baseId.get())) {
+      tombstoned++;
+      if (metrics != null) {
+        metrics.tombstoned(eventIdx);
+      }
+      deadLetter(baseId.get(), event, eventIdx);
+      return null;
     }
     FSMIdentifier fsmId = fsmDef.getFsmId(baseId.get());
-    FSMachine fsm = fsms.get(fsmId);
-    if (fsm == null) {
-      fsm = fsmDef.build(fsmId.baseId, oka, es, isb.newState(fsmId));
-      fsms.put(fsmId, fsm);
+    fsm = pooled > 0 ? reuse(fsmId) : fsmDef.instance(fsmId, oka, es, isb.newState(fsmId));
+    register(fsm);
+    if (metrics != null) {
+      metrics.created(fsm.currentState.ordinal);
+    }
+    if (tracer != null && tracer.enabled()) {
+      tracer.created(fsmDef.fsmName, fsm);
+    }
+    return fsm;
+  }
+
+  /**
+   * Pools a killed machine, with its internal state if the builder takes it back. The machine is only reused by the
+   * next instance created, after the handler that killed it returned.
+   */
+  private void release(FSMachine fsm) {
+    if (pooled == pool.length) {
+      return;
+    }
+    if (recyclable == null || !recyclable.recycle(fsm.is)) {
+      fsm.is = null;
+    }
+    pool[pooled++] = fsm;
+  }
+
+  private FSMachine reuse(FSMIdentifier fsmId) {
+    FSMachine fsm = pool[--pooled];
+    pool[pooled] = null;
+    fsm.reuse(fsmId, fsm.is == null ? isb.newState(fsmId) : recyclable.reset(fsm.is, fsmId));
+    return fsm;
+  }
+
+  private void deadLetter(Identifier baseId, KompicsEvent event, int eventIdx) throws FSMException {
+    deadLetters++;
+    if (metrics != null) {
+      metrics.deadLetter(eventIdx);
+    }
+    LOG.debug("dead letter:{} for fsm:{}", event, baseId);
+    if (deadLetterHandler != null) {
+      deadLetterHandler.handle(baseId, event, es);
+    }
+  }
+
+  /**
+   * @return the instance, live or rehydrated, or null if there is none
+   */
+  private FSMachine lookup(Identifier baseId) throws FSMException {
+    FSMachine fsm = fsms.get(baseId);
+    if (fsm == null && passivation != null) {
+      fsm = rehydrate(baseId);
+    }
+    return fsm;
+  }
+
+  private FSMachine rehydrate(Identifier baseId) throws FSMException {
+    FSMExport export = passivation.rehydrate(baseId);
+    if (export == null) {
+      return null;
+    }
+    LOG.trace("rehydrated fsm:{}", export.fsmId);
+    FSMachine fsm = fsmDef.instance(export.fsmId, oka, es, export.is, fsmDef.states.get(export.state));
+    register(fsm);
+    return fsm;
+  }
+
+  /**
+   * Idle instances are kept on the heap while their state timeout runs.
+   */
+  private void passivate(FSMachine fsm) {
+    if (fsm.timerSlot >= 0) {
+      idleSweeper.add(fsm);
+      return;
+    }
+    try {
+      passivation.passivate(fsm);
+      unregister(fsm.fsmId.baseId);
+      LOG.trace("passivated fsm:{}", fsm.fsmId);
+    } catch (FSMException ex) {
+      idleSweeper.add(fsm);
+      handleException(ex, fsm, false);
+    }
+  }
+
+  private void register(FSMachine fsm) {
+    fsms.put(fsm.fsmId.baseId, fsm);
+    fsm.live = true;
+    if (idleSweeper != null) {
+      idleSweeper.add(fsm);
+    }
+    if (timers != null && fsm.currentState.timeout > 0) {
+      timers.arm(fsm, fsm.currentState.timeout);
+    }
+  }
+
+  private FSMachine unregister(Identifier baseId) {
+    FSMachine fsm = fsms.remove(baseId);
+    if (fsm != null) {
+      fsm.live = false;
+      if (idleSweeper != null) {
+        idleSweeper.remove(fsm);
+      }
+      if (timers != null) {
+        timers.cancel(fsm);
+      }
+    }
+    return fsm;
+  }
+
+  /**
+   * Takes a live instance out of this MultiFSM without killing it, so that it can be imported in another MultiFSM of
+   * the same definition. The running state timeout and idle time of the instance are dropped. A passivated instance
+   * is rehydrated to be exported.
+   *
+   * @return null if there is no live instance for baseId
+   */
+  public FSMExport exportFSM(Identifier baseId) throws FSMException {
+    if (lookup(baseId) == null) {
+      return null;
+    }
+    if (journal != null) {
+      journal.kill(baseId);
+    }
+    FSMachine fsm = unregister(baseId);
+    if (metrics != null) {
+      metrics.exported(fsm.currentState.ordinal);
+    }
+    LOG.debug("exporting fsm:{}", fsm.fsmId);
+    return new FSMExport(fsm.fsmId, fsm.getState(), fsm.getFSMInternalState());
+  }
+
+  /**
+   * Continues an exported instance in its state, as if entering it - the state timeout starts over.
+   */
+  public void importFSM(FSMExport export) throws FSMException {
+    if (!fsmDef.fsmDefId.equals(export.fsmId.fsmDefId)) {
+      throw new FSMException("fsm:" + export.fsmId + " is not an instance of:" + fsmDef.fsmName);
+    }
+    if (fsms.get(export.fsmId.baseId) != null
+      || (passivation != null && passivation.contains(export.fsmId.baseId))) {
+      throw new FSMException("fsm:" + export.fsmId + " is already live");
+    }
+    FSMState state = fsmDef.states.get(export.state);
+    if (state == null) {
+      throw new FSMException("fsm:" + export.fsmId + " state:" + export.state + " not defined");
+    }
+    LOG.debug("importing fsm:{}", export.fsmId);
+    FSMachine fsm = fsmDef.instance(export.fsmId, oka, es, export.is, state);
+    //journaled first - an import that fails leaves nothing behind, the exporter can take the instance back
+    if (journal != null) {
+      journal.update(fsm);
+    }
+    register(fsm);
+    if (metrics != null) {
+      metrics.imported(state.ordinal);
+    }
+  }
+
+  /**
+   * @return the clock at the start of the handler, if its latency is sampled by the metrics or the recorder, or 0
+   */
+  private long start() {
+    //both sampling counters advance
+    boolean sample = (metrics != null && metrics.sample()) | (recorder != null && recorder.sample());
+    return sample ? System.nanoTime() : 0;
+  }
+
+  /**
+   * @return null if the handler is not traced
+   */
+  private Object traceStart() {
+    if (tracer == null || !tracer.enabled()) {
+      return null;
+    }
+    Object token = tracer.handlerStart();
+    return token == null ? UNTIMED : token;
+  }
+
+  /**
+   * The handler event ends as soon as the instance handled the event - the bookkeeping of dispatched is not part of
+   * it.
+   */
+  private void traced(Object trace, FSMachine fsm, FSMState before, KompicsEvent event, int outcome) {
+    tracer.handled(trace == UNTIMED ? null : trace, fsmDef.fsmName, fsm, before.state, event.getClass(), outcome,
+      fsm.live ? fsm.getState() : FSMBasicStateNames.FINAL);
+  }
+
+  /**
+   * @param event index of the event among all events of the definition
+   * @param start of the handler, 0 if its latency is not measured
+   */
+  private void dispatched(FSMachine fsm, FSMState before, int event, int outcome, long start) throws FSMException {
+    long nanos = start == 0 ? -1 : System.nanoTime() - start;
+    if (metrics != null) {
+      metrics.handled(before.ordinal, event, outcome, nanos);
+      transitioned(fsm, before);
+    }
+    if (recorder != null) {
+      int to = fsm.live ? fsm.currentState.ordinal : FSMFlightRecorder.FINAL;
+      recorder.record(fsm.fsmId.baseId, before.ordinal, event, to, outcome, start, nanos);
+    }
+    if (!fsm.live) {
+      return;
+    }
+    if (timers != null) {
+      rearm(fsm, before);
+    }
+    //an unhandled event changed neither the state nor the internal state
+    if (journal != null && outcome != FSMachine.UNHANDLED) {
+      journal.update(fsm);
+    }
+  }
+
+  private void transitioned(FSMachine fsm, FSMState before) {
+    if (!fsm.live) {
+      metrics.finalTransition(before.ordinal);
+    } else if (fsm.currentState != before) {
+      metrics.transition(before.ordinal, fsm.currentState.ordinal);
+    }
+  }
+
+  /**
+   * The timeout of a state is armed on entering it and cancelled on leaving it. Staying in the same state keeps the
+   * running timeout.
+   */
+  private void rearm(FSMachine fsm, FSMState before) {
+    if (fsm.currentState != before) {
+      timers.cancel(fsm);
+      if (fsm.currentState.timeout > 0) {
+        timers.arm(fsm, fsm.currentState.timeout);
+      }
+    }
+  }
+
+  void tick() {
+    if (timers != null && ++sinceWheel >= ticksPerWheel) {
+      sinceWheel = 0;
+      timers.tick();
+    }
+    if (journal != null) {
+      try {
+        journal.tick();
+      } catch (FSMException ex) {
+        handleException(ex, null, false);
+      }
+    }
+    if (idleSweeper != null && ++sinceSweep >= ticksPerSweep) {
+      sinceSweep = 0;
+      idleSweeper.tick();
+    }
+  }
+
+  /**
+   * Flushes the journal, if any - the records still buffered would be lost otherwise.
+   */
+  void close() {
+    if (journal != null) {
+      try {
+        journal.close();
+      } catch (IOException ex) {
+        LOG.error("fsm:{} journal close failed:{}", fsmDef.fsmName, ex);
+      }
+    }
+  }
+
+  void stateTimeout(FSMachine fsm) {
+    boolean context = eagerContext();
+    if (context) {
+      putContext(fsm);
+    }
+    try {
+      LOG.debug("state timeout");
+      //firing the timeout re-enters the state it leads to, even if it is the same one
+      FSMState before = fsm.currentState;
+      boolean live = fsm.handleTimeout();
+      if (metrics != null) {
+        transitioned(fsm, before);
+      }
+      if (recorder != null) {
+        recorder.timeout(fsm.fsmId.baseId, before.ordinal, live ? fsm.currentState.ordinal : FSMFlightRecorder.FINAL);
+      }
+      if (tracer != null && tracer.enabled()) {
+        tracer.timeout(fsmDef.fsmName, fsm, before.state, live ? fsm.getState() : FSMBasicStateNames.FINAL);
+      }
+      if (live) {
+        if (fsm.currentState.timeout > 0) {
+          timers.arm(fsm, fsm.currentState.timeout);
+        }
+        if (journal != null) {
+          journal.update(fsm);
+        }
+      }
+    } catch (FSMException ex) {
+      handleException(ex, fsm, context);
+    } finally {
+      if (context) {
+        clearContext();
+      }
+    }
+  }
+
+  void expire(FSMachine fsm) {
+    if (passivation != null) {
+      passivate(fsm);
+      return;
+    }
+    boolean context = eagerContext();
+    if (context) {
+      putContext(fsm);
+    }
+    try {
+      LOG.debug("idle fsm expired");
+      if (idleHandler != null) {
+        idleHandler.handle(fsm.getState(), es, fsm.getFSMInternalState());
+      }
+    } catch (FSMException ex) {
+      handleException(ex, fsm, context);
+    } finally {
+      if (context) {
+        clearContext();
+      }
+    }
+    oka.kill(fsm.fsmId);
+  }
+
+  /**
+   * @return true if the diagnostic context is populated up front for this event - the fsm name is already set
+   */
+  private boolean eagerContext() {
+    if (diagnosticContext == FSMDiagnosticContext.FULL
+      || (diagnosticContext == FSMDiagnosticContext.LAZY && LOG.isDebugEnabled())) {
+      MDC.put(FSM_NAME, fsmDef.fsmName);
+      return true;
+    }
+    return false;
+  }
+
+  private void putContext(FSMachine fsm) {
+    MDC.put(FSM_ID, fsm.fsmIdString());
+    MDC.put(FSM_STATE, fsm.getState().toString());
+  }
+
+  private void clearContext() {
+    MDC.remove(FSM_NAME);
+    MDC.remove(FSM_ID);
+    MDC.remove(FSM_STATE);
+  }
+
+  private void handleException(FSMException ex, FSMachine fsm, boolean context) {
+    if (context || diagnosticContext == FSMDiagnosticContext.OFF) {
+      oexa.handle(ex);
+      return;
+    }
+    MDC.put(FSM_NAME, fsmDef.fsmName);
+    if (fsm != null) {
+      putContext(fsm);
+    }
+    try {
+      oexa.handle(ex);
+    } finally {
+      clearContext();
+    }
+  }
+
+  /**
+   * Routes a basic event of a positive port to its instance - called by the handler of this MultiFSM, or by the
+   * MultiFSMHost it is hosted in.
+   */
+  void onPositiveBasic(int eventId, int eventIdx, KompicsEvent event) {
+    boolean context = eagerContext();
+    FSMachine fsm = null;
+    try {
+      fsm = getFSM(event, eventIdx);
+      if (fsm != null) {
+        if (context) {
+          putContext(fsm);
+        }
+        FSMState before = fsm.currentState;
+        long start = start();
+        Object trace = traceStart();
+        int outcome = fsm.handlePositive(eventId, event);
+        if (trace != null) {
+          traced(trace, fsm, before, event, outcome);
+        }
+        dispatched(fsm, before, eventIdx, outcome, start);
+      }
+    } catch (FSMException ex) {
+      handleException(ex, fsm, context);
+    } finally {
+      if (context) {
+        clearContext();
+      }
+    }
+  }
+
+  void onNegativeBasic(int eventId, int eventIdx, KompicsEvent event) {
+    boolean context = eagerContext();
+    FSMachine fsm = null;
+    try {
+      fsm = getFSM(event, eventIdx);
+      if (fsm != null) {
+        if (context) {
+          putContext(fsm);
+        }
+        FSMState before = fsm.currentState;
+        long start = start();
+        Object trace = traceStart();
+        int outcome = fsm.handleNegative(eventId, event);
+        if (trace != null) {
+          traced(trace, fsm, before, event, outcome);
+        }
+        dispatched(fsm, before, eventIdx, outcome, start);
+      }
+    } catch (FSMException ex) {
+      handleException(ex, fsm, context);
+    } finally {
+      if (context) {
+        clearContext();
+      }
     }
-    return Optional.of(fsm);
   }
 
-  private <E extends FSMEvent> Handler<E> basicEventOnPositivePort(Class<E> eventType) {
+  void onPositivePattern(int eventId, int eventIdx, KompicsEvent payload, PatternExtractor container) {
+    boolean context = eagerContext();
+    FSMachine fsm = null;
+    try {
+      fsm = getFSM(container, eventIdx);
+      if (fsm != null) {
+        if (context) {
+          putContext(fsm);
+        }
+        FSMState before = fsm.currentState;
+        long start = start();
+        Object trace = traceStart();
+        int outcome = fsm.handlePositive(eventId, payload, container);
+        if (trace != null) {
+          traced(trace, fsm, before, payload, outcome);
+        }
+        dispatched(fsm, before, eventIdx, outcome, start);
+      }
+    } catch (FSMException ex) {
+      handleException(ex, fsm, context);
+    } finally {
+      if (context) {
+        clearContext();
+      }
+    }
+  }
 
+  void onNegativePattern(int eventId, int eventIdx, KompicsEvent payload, PatternExtractor container) {
+    boolean context = eagerContext();
+    FSMachine fsm = null;
+    try {
+      fsm = getFSM(payload, eventIdx);
+      if (fsm != null) {
+        if (context) {
+          putContext(fsm);
+        }
+        FSMState before = fsm.currentState;
+        long start = start();
+        Object trace = traceStart();
+        int outcome = fsm.handleNegative(eventId, payload, container);
+        if (trace != null) {
+          traced(trace, fsm, before, payload, outcome);
+        }
+        dispatched(fsm, before, eventIdx, outcome, start);
+      }
+    } catch (FSMException ex) {
+      handleException(ex, fsm, context);
+    } finally {
+      if (context) {
+        clearContext();
+      }
+    }
+  }
+
+  <E extends FSMEvent> Handler<E> basicEventOnPositivePort(Class<E> eventType, final int eventId) {
+    final int eventIdx = fsmDef.eventIndex(FSMachineDef.POSITIVE_BASIC, eventId);
     return new Handler<E>(eventType) {
       @Override
       public void handle(E event) {
-        MDC.put(FSM_NAME, fsmDef.fsmName);
-        try {
-          Optional<FSMachine> fsm = getFSM(event);
-          if (fsm.isPresent()) {
-            MDC.put(FSM_ID, fsm.get().fsmId.toString());
-            MDC.put(FSM_STATE, fsm.get().currentState.getValue0().toString());
-            fsm.get().handlePositive(event);
-          }
-        } catch (FSMException ex) {
-          oexa.handle(ex);
-        } finally {
-          MDC.remove(FSM_NAME);
-          MDC.remove(FSM_ID);
-          MDC.remove(FSM_STATE);
-        }
+        onPositiveBasic(eventId, eventIdx, event);
       }
     };
   }
 
-  private <E extends FSMEvent> Handler<E> basicEventOnNegativePort(Class<E> eventType) {
+  <E extends FSMEvent> Handler<E> basicEventOnNegativePort(Class<E> eventType, final int eventId) {
+    final int eventIdx = fsmDef.eventIndex(FSMachineDef.NEGATIVE_BASIC, eventId);
     return new Handler<E>(eventType) {
       @Override
       public void handle(E event) {
-        try {
-          MDC.put(FSM_NAME, fsmDef.fsmName);
-          Optional<FSMachine> fsm = getFSM(event);
-          if (fsm.isPresent()) {
-            MDC.put(FSM_ID, fsm.get().fsmId.toString());
-            MDC.put(FSM_STATE, fsm.get().currentState.getValue0().toString());
-            fsm.get().handleNegative(event);
-          }
-        } catch (FSMException ex) {
-          oexa.handle(ex);
-        } finally {
-          MDC.remove(FSM_NAME);
-          MDC.remove(FSM_ID);
-          MDC.remove(FSM_STATE);
-        }
+        onNegativeBasic(eventId, eventIdx, event);
       }
     };
   }
 
-  private <P extends KompicsEvent, C extends PatternExtractor<Class<Object>, P>> 
-  ClassMatchedHandler patternEventOnPositivePort(Class contentType, Class<C> containerType) {
+  <P extends KompicsEvent, C extends PatternExtractor<Class<Object>, P>> 
+  ClassMatchedHandler patternEventOnPositivePort(Class contentType, Class<C> containerType, final int eventId) {
+    final int eventIdx = fsmDef.eventIndex(FSMachineDef.POSITIVE_PATTERN, eventId);
     return new ClassMatchedHandler<P, C>(containerType, contentType) {
       @Override
       public void handle(P payload, C container) {
-        MDC.put(FSM_NAME, fsmDef.fsmName);
-        try {
-          
-          Optional<FSMachine> fsm = getFSM(container);
-          if (fsm.isPresent()) {
-            MDC.put(FSM_ID, fsm.get().fsmId.toString());
-            MDC.put(FSM_STATE, fsm.get().currentState.getValue0().toString());
-            fsm.get().handlePositive(payload, container);
-          }
-        } catch (FSMException ex) {
-          oexa.handle(ex);
-        } finally {
-          MDC.remove(FSM_NAME);
-          MDC.remove(FSM_ID);
-          MDC.remove(FSM_STATE);
-        }
+        onPositivePattern(eventId, eventIdx, payload, container);
       }
     };
   }
 
-  private <P extends FSMEvent, C extends PatternExtractor<Class<Object>, P>> ClassMatchedHandler patternEventOnNegativePort(Class contentType, Class<C> containerType) {
+  <P extends FSMEvent, C extends PatternExtractor<Class<Object>, P>> 
+  ClassMatchedHandler patternEventOnNegativePort(Class contentType, Class<C> containerType, final int eventId) {
+    final int eventIdx = fsmDef.eventIndex(FSMachineDef.NEGATIVE_PATTERN, eventId);
     return new ClassMatchedHandler<P, C>(containerType, contentType) {
       @Override
       public void handle(P payload, C container) {
-        MDC.put(FSM_NAME, fsmDef.fsmName);
-        try {
-          Optional<FSMachine> fsm = getFSM(payload);
-          if (fsm.isPresent()) {
-            MDC.put(FSM_ID, fsm.get().fsmId.toString());
-            MDC.put(FSM_STATE, fsm.get().currentState.getValue0().toString());
-            fsm.get().handleNegative(payload, container);
-          }
-        } catch (FSMException ex) {
-          oexa.handle(ex);
-        } finally {
-          MDC.remove(FSM_NAME);
-          MDC.remove(FSM_ID);
-          MDC.remove(FSM_STATE);
-        }
+        onNegativePattern(eventId, eventIdx, payload, container);
       }
     };
   }
@@ -187,15 +702,91 @@ public class MultiFSM {
     FSMExternalState es, FSMInternalStateBuilder isb,
     Map<Class, Set<Class>> positiveBasicEvents, Map<Class, Set<Class>> negativeBasicEvents,
     Map<Class, Set<Pair<Class,Class>>> positivePatternEvents, Map<Class, Set<Pair<Class, Class>>> negativePatternEvents) {
+    this(fsmDef, oexa, fsmIdExtractor, es, isb, positiveBasicEvents, negativeBasicEvents, positivePatternEvents,
+      negativePatternEvents, FSMBuilder.multiFSMConfig());
+  }
+
+  public MultiFSM(FSMachineDef fsmDef, OnFSMExceptionAction oexa, BaseIdExtractor fsmIdExtractor,
+    FSMExternalState es, FSMInternalStateBuilder isb,
+    Map<Class, Set<Class>> positiveBasicEvents, Map<Class, Set<Class>> negativeBasicEvents,
+    Map<Class, Set<Pair<Class,Class>>> positivePatternEvents, Map<Class, Set<Pair<Class, Class>>> negativePatternEvents,
+    FSMBuilder.MultiFSMConfig config) {
     this.fsmDef = fsmDef;
     this.oexa = oexa;
     this.fsmIdExtractor = fsmIdExtractor;
+    this.fsms = FSMRegistry.instance(fsmIdExtractor, config.expectedInstances);
     this.es = es;
     this.isb = isb;
     this.positiveBasicEvents = positiveBasicEvents;
     this.negativeBasicEvents = negativeBasicEvents;
     this.positivePatternEvents = positivePatternEvents;
     this.negativePatternEvents = negativePatternEvents;
+    this.diagnosticContext = config.diagnosticContext;
+    this.idleHandler = config.idleHandler;
+    this.deadLetterHandler = config.deadLetterHandler;
+    this.pool = config.pool > 0 ? new FSMachine[config.pool] : null;
+    this.recyclable = pool != null && isb instanceof FSMRecyclableStateBuilder ? (FSMRecyclableStateBuilder) isb : null;
+    this.tombstones = config.tombstoneWindow > 0
+      ? new FSMTombstones(config.tombstoneWindow, config.tombstoneKills, config.tombstoneFpp) : null;
+    this.passivation = config.passivation;
+    this.metrics = config.metrics == null ? null : config.metrics.stripe(fsmDef);
+    this.recorder = config.flightRecords > 0
+      ? new FSMFlightRecorder(fsmDef, config.flightRecords, config.flightTimeSampling) : null;
+    //passivation takes the place of idle expiry - the two are exclusive
+    long idleTimeout = passivation != null ? config.passivateAfter : config.idleTimeout;
+    //state timeouts, idle sweeps and the journal share one periodic timeout, ticking at the finest of their periods
+    long wheelPeriod = hasStateTimeouts(fsmDef) ? config.timerResolution : 0;
+    long sweepPeriod = idleTimeout <= 0 ? 0
+      : config.idleSweepPeriod > 0 ? config.idleSweepPeriod : Math.max(10, idleTimeout / 8);
+    long syncPeriod = config.journal != null && config.journal.durability != FSMDurability.SYNC
+      ? config.journal.syncInterval : 0;
+    long checkpointPeriod = config.journal != null ? config.journal.checkpointInterval : 0;
+    long tickPeriod = finest(finest(wheelPeriod, sweepPeriod), finest(syncPeriod, checkpointPeriod));
+    if (wheelPeriod > 0) {
+      this.ticksPerWheel = (int) Math.max(1, wheelPeriod / tickPeriod);
+      this.timers = new FSMTimerWheel(this, ticksPerWheel * tickPeriod, config.timerSlots);
+    } else {
+      this.ticksPerWheel = 1;
+      this.timers = null;
+    }
+    if (sweepPeriod > 0) {
+      this.ticksPerSweep = (int) Math.max(1, sweepPeriod / tickPeriod);
+      this.idleSweeper = new FSMIdleSweeper(this, idleTimeout, ticksPerSweep * tickPeriod, config.idleSweepBatch);
+    } else {
+      this.ticksPerSweep = 1;
+      this.idleSweeper = null;
+    }
+    if (passivation != null) {
+      passivation.attach(this);
+    }
+    this.journal = config.journal;
+    if (journal != null) {
+      journal.attach(this);
+    }
+    this.ticker = tickPeriod > 0 ? new FSMTicker(this, tickPeriod) : null;
+  }
+
+  /**
+   * @return the smaller of the two periods, 0 standing for none
+   */
+  private static long finest(long period1, long period2) {
+    return period1 == 0 ? period2 : period2 == 0 ? period1 : Math.min(period1, period2);
+  }
+
+  private static boolean hasStateTimeouts(FSMachineDef fsmDef) {
+    for (FSMState state : fsmDef.states.values()) {
+      if (state.timeout > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return true if the MultiFSM subscribes to a Timer port
+   */
+  boolean usesTimer() {
+    return ticker != null;
   }
 
   void setProxy(ComponentProxy proxy) {
@@ -207,6 +798,40 @@ public class MultiFSM {
     Pair<List, List> patternEvents = preparePatternEvents();
     GenericSetup.handledEvents(LOG, es.getProxy(), basicEvents.getValue0(), basicEvents.getValue1(),
       patternEvents.getValue0(), patternEvents.getValue1());
+    setupTicker();
+  }
+
+  private void setupTicker() {
+    if (ticker != null) {
+      setupTicker(timerPort(es.getProxy(), handlesTimer()));
+    }
+  }
+
+  /**
+   * Subscribes the timeout of the ticker, the one handler of this MultiFSM a MultiFSMHost does not share.
+   */
+  void setupTicker(Port<Timer> timer) {
+    if (ticker != null) {
+      ticker.setup(es.getProxy(), timer);
+    }
+  }
+
+  /**
+   * @return true if the definition handles events of a Timer port - the handler setup requires it then
+   */
+  boolean handlesTimer() {
+    return positiveBasicEvents.containsKey(Timer.class) || positivePatternEvents.containsKey(Timer.class);
+  }
+
+  /**
+   * @param required true if the component already requires the Timer port
+   */
+  static Port<Timer> timerPort(ComponentProxy proxy, boolean required) {
+    return required ? proxy.getNegative(Timer.class).getPair() : proxy.requires(Timer.class);
+  }
+
+  ComponentProxy proxy() {
+    return es.getProxy();
   }
 
   private Pair<List, List> prepareBasicEvents() {
@@ -216,14 +841,14 @@ public class MultiFSM {
     for (Map.Entry<Class, Set<Class>> e : positiveBasicEvents.entrySet()) {
       List<Handler> events = new LinkedList<>();
       for (Class c : e.getValue()) {
-        events.add(basicEventOnPositivePort(c));
+        events.add(basicEventOnPositivePort(c, fsmDef.positiveBasicEventId(c)));
       }
       pPorts.add(Pair.with(e.getKey(), events));
     }
     for (Map.Entry<Class, Set<Class>> e : negativeBasicEvents.entrySet()) {
       List<Handler> events = new LinkedList<>();
       for (Class c : e.getValue()) {
-        events.add(basicEventOnNegativePort(c));
+        events.add(basicEventOnNegativePort(c, fsmDef.negativeBasicEventId(c)));
       }
       nPorts.add(Pair.with(e.getKey(), events));
     }
@@ -236,43 +861,93 @@ public class MultiFSM {
     for (Map.Entry<Class, Set<Pair<Class, Class>>> e : positivePatternEvents.entrySet()) {
       List<ClassMatchedHandler> events = new LinkedList<>();
       for (Pair<Class, Class> c : e.getValue()) {
-        events.add(patternEventOnPositivePort(c.getValue0(), c.getValue1()));
+        events.add(patternEventOnPositivePort(c.getValue0(), c.getValue1(), 
+          fsmDef.positivePatternEventId(c.getValue0(), c.getValue1())));
       }
       pPorts.add(Pair.with(e.getKey(), events));
     }
     for (Map.Entry<Class, Set<Pair<Class, Class>>> e : negativePatternEvents.entrySet()) {
       List<ClassMatchedHandler> events = new LinkedList<>();
       for (Pair<Class, Class> c : e.getValue()) {
-        events.add(patternEventOnNegativePort(c.getValue0(), c.getValue1()));
+        events.add(patternEventOnNegativePort(c.getValue0(), c.getValue1(), 
+          fsmDef.negativePatternEventId(c.getValue0(), c.getValue1())));
       }
       nPorts.add(Pair.with(e.getKey(), events));
     }
     return Pair.with(pPorts, nPorts);
   }
 
+  /**
+   * @return true if the instance is live or passivated
+   */
   public boolean activeFSM(Identifier baseId) {
-    FSMIdentifier fsmId = fsmDef.getFsmId(baseId);
-    return fsms.containsKey(fsmId);
+    return fsms.get(baseId) != null || (passivation != null && passivation.contains(baseId));
   }
   
   public FSMStateName getFSMState(Identifier baseId) {
-    FSMIdentifier fsmId = fsmDef.getFsmId(baseId);
-    FSMachine fsm = fsms.get(fsmId);
+    FSMachine fsm = rehydrated(baseId);
     return fsm.getState();
   }
 
+  //errors go to the OnFSMExceptionAction, as for the kill of an instance
+  private FSMachine rehydrated(Identifier baseId) {
+    try {
+      return lookup(baseId);
+    } catch (FSMException ex) {
+      oexa.handle(ex);
+      return null;
+    }
+  }
+
+  /**
+   * @return the instances live on the heap - not the passivated ones
+   */
+  List<FSMachine> instances() {
+    return fsms.values();
+  }
+
+  /**
+   * @return null if turned off in the config
+   */
+  public FSMFlightRecorder flightRecorder() {
+    return recorder;
+  }
+
+  /**
+   * @return null if idle instances are not passivated
+   */
+  FSMPassivationStore passivation() {
+    return passivation;
+  }
+
   public boolean isEmpty() {
-    return fsms.isEmpty();
+    return size() == 0;
+  }
+
+  /**
+   * @return events dropped as their id had no instance and START does not handle them, or the id is tombstoned
+   */
+  public long deadLetters() {
+    return deadLetters;
+  }
+
+  /**
+   * @return dead letters for ids of recently killed instances - 0 unless tombstones are configured
+   */
+  public long tombstoned() {
+    return tombstoned;
   }
 
+  /**
+   * @return live and passivated instances
+   */
   public int size() {
-    return fsms.size();
+    return passivation == null ? fsms.size() : fsms.size() + passivation.size();
   }
   
   //*********************************************TESTING_HELPERS********************************************************
   public FSMInternalState getFSMInternalState(Identifier baseId) {
-    FSMIdentifier fsmId = fsmDef.getFsmId(baseId);
-    FSMachine fsm = fsms.get(fsmId);
+    FSMachine fsm = rehydrated(baseId);
     return fsm.getFSMInternalState();
   }
 }
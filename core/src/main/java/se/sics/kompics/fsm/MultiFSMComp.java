@@ -18,11 +18,18 @@
  */
 package se.sics.kompics.fsm;
 
+import java.util.ArrayList;
+import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.sics.kompics.ComponentDefinition;
 import se.sics.kompics.Handler;
+import se.sics.kompics.Negative;
 import se.sics.kompics.Start;
+import se.sics.kompics.fsm.event.FSMMigration;
+import se.sics.kompics.fsm.id.FSMIdentifier;
+import se.sics.kompics.fsm.id.FSMPartitioner;
+import se.sics.kompics.util.Identifier;
 
 /**
  * @author Alex Ormenisan <aaor@kth.se>
@@ -33,12 +40,32 @@ public class MultiFSMComp extends ComponentDefinition {
   private String logPrefix = "";
 
   private final MultiFSM fsm;
+  private final Negative<FSMMigrationPort> migrationPort = provides(FSMMigrationPort.class);
+  //shard of a ShardedMultiFSMComp - null partitioner otherwise
+  private final FSMPartitioner partitioner;
+  private final int shard;
+  private final int shards;
   
   public MultiFSMComp(Init init) {
     fsm = init.fsm;
     fsm.setProxy(proxy);
+    partitioner = init.partitioner;
+    shard = init.shard;
+    shards = init.shards;
+    if (partitioner != null) {
+      fsm.killListener = new FSMOnKillAction() {
+        @Override
+        public void kill(FSMIdentifier fsmId) {
+          if (!home(fsmId.baseId)) {
+            trigger(new FSMMigration.Killed(fsmId.baseId), migrationPort);
+          }
+        }
+      };
+    }
 
     subscribe(handleStart, control);
+    subscribe(handleExport, migrationPort);
+    subscribe(handleImport, migrationPort);
     fsm.setupHandlers();
   }
 
@@ -46,21 +73,77 @@ public class MultiFSMComp extends ComponentDefinition {
     @Override
     public void handle(Start event) {
       LOG.info("{}starting...", logPrefix);
+      if (partitioner != null) {
+        List<Identifier> strangers = new ArrayList<>();
+        for (FSMachine instance : fsm.instances()) {
+          if (!home(instance.fsmId.baseId)) {
+            strangers.add(instance.fsmId.baseId);
+          }
+        }
+        trigger(new FSMMigration.Recovered(strangers), migrationPort);
+      }
     }
   };
+
+  private boolean home(Identifier baseId) {
+    return partitioner.partition(fsm.fsmDef.fsmDefId, baseId, shards) == shard;
+  }
   
+  Handler handleExport = new Handler<FSMMigration.Export>() {
+    @Override
+    public void handle(FSMMigration.Export req) {
+      FSMExport export;
+      try {
+        export = fsm.exportFSM(req.baseId);
+      } catch (FSMException ex) {
+        fsm.oexa.handle(ex);
+        trigger(new FSMMigration.Exported(req.baseId, null, true), migrationPort);
+        return;
+      }
+      trigger(new FSMMigration.Exported(req.baseId, export), migrationPort);
+    }
+  };
+
+  Handler handleImport = new Handler<FSMMigration.Import>() {
+    @Override
+    public void handle(FSMMigration.Import req) {
+      try {
+        fsm.importFSM(req.export);
+      } catch (FSMException ex) {
+        fsm.oexa.handle(ex);
+        trigger(new FSMMigration.Imported(req.export.fsmId.baseId, true), migrationPort);
+        return;
+      }
+      trigger(new FSMMigration.Imported(req.export.fsmId.baseId), migrationPort);
+    }
+  };
+
   @Override
   public void tearDown() {
     //TODO Alex - maybe introduce a CLEANUP message to properly clean things before tear down;
     LOG.warn("{}multi fsm tear down is iffy at best atm - externaly stop all machines");
+    fsm.close();
   }
 
   public static class Init extends se.sics.kompics.Init<MultiFSMComp> {
 
     public final MultiFSM fsm;
+    final FSMPartitioner partitioner;
+    final int shard;
+    final int shards;
     
     public Init(MultiFSM fsm) {
+      this(fsm, null, 0, 1);
+    }
+
+    /**
+     * A shard of a ShardedMultiFSMComp - reports the instances it holds away from their partitioner shard.
+     */
+    Init(MultiFSM fsm, FSMPartitioner partitioner, int shard, int shards) {
       this.fsm = fsm;
+      this.partitioner = partitioner;
+      this.shard = shard;
+      this.shards = shards;
     }
   }
 }
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.javatuples.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sics.kompics.ClassMatchedHandler;
+import se.sics.kompics.ComponentProxy;
+import se.sics.kompics.Handler;
+import se.sics.kompics.KompicsEvent;
+import se.sics.kompics.PatternExtractor;
+import se.sics.kompics.Port;
+import se.sics.kompics.timer.Timer;
+
+/**
+ * Sets up the handlers of several MultiFSMs of one component together, instead of each with its own setupHandlers.
+ * <p>
+ * A MultiFSM subscribes one handler per event it handles, so an event handled by n definitions has n handlers, each
+ * delivered by Kompics on its own. The host subscribes once per port and event, and its handler walks a route table
+ * built at setup - the MultiFSMs handling the event with the event id each compiled for it - calling each in hosting
+ * order. Each definition still routes the event to its own instance, with its own base id extractor. Events handled by
+ * a single definition get the handler of that MultiFSM, as with setupHandlers.
+ */
+public class MultiFSMHost {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MultiFSMHost.class);
+
+  private final List<MultiFSM> hosted = new ArrayList<>();
+  private boolean setup = false;
+
+  /**
+   * @param multiFSM a MultiFSM of the component of the host, whose setupHandlers is not called
+   */
+  public MultiFSMHost host(MultiFSM multiFSM) {
+    if (setup) {
+      throw new IllegalStateException("handlers already set up");
+    }
+    if (hosted.contains(multiFSM)) {
+      throw new IllegalArgumentException("fsm:" + multiFSM.fsmDef.fsmName + " already hosted");
+    }
+    hosted.add(multiFSM);
+    return this;
+  }
+
+  public void setupHandlers() {
+    if (setup) {
+      throw new IllegalStateException("handlers already set up");
+    }
+    if (hosted.isEmpty()) {
+      throw new IllegalStateException("no hosted fsm");
+    }
+    ComponentProxy proxy = hosted.get(0).proxy();
+    for (MultiFSM multiFSM : hosted) {
+      if (multiFSM.proxy() != proxy) {
+        throw new IllegalStateException("fsm:" + multiFSM.fsmDef.fsmName + " belongs to another component");
+      }
+    }
+    //by port, then by event - in the order of first subscription
+    Map<Class, Map<Object, List<MultiFSM>>> positiveBasic = new LinkedHashMap<>();
+    Map<Class, Map<Object, List<MultiFSM>>> negativeBasic = new LinkedHashMap<>();
+    Map<Class, Map<Object, List<MultiFSM>>> positivePattern = new LinkedHashMap<>();
+    Map<Class, Map<Object, List<MultiFSM>>> negativePattern = new LinkedHashMap<>();
+    for (MultiFSM multiFSM : hosted) {
+      route(positiveBasic, multiFSM.positiveBasicEvents, multiFSM);
+      route(negativeBasic, multiFSM.negativeBasicEvents, multiFSM);
+      route(positivePattern, multiFSM.positivePatternEvents, multiFSM);
+      route(negativePattern, multiFSM.negativePatternEvents, multiFSM);
+    }
+    GenericSetup.handledEvents(LOG, proxy,
+      handlers(FSMachineDef.POSITIVE_BASIC, positiveBasic), handlers(FSMachineDef.NEGATIVE_BASIC, negativeBasic),
+      handlers(FSMachineDef.POSITIVE_PATTERN, positivePattern), 
+      handlers(FSMachineDef.NEGATIVE_PATTERN, negativePattern));
+    //one Timer port for all tickers, required by the handler setup if a definition handles its events
+    boolean usesTimer = false;
+    boolean handlesTimer = false;
+    for (MultiFSM multiFSM : hosted) {
+      usesTimer = usesTimer || multiFSM.usesTimer();
+      handlesTimer = handlesTimer || multiFSM.handlesTimer();
+    }
+    if (usesTimer) {
+      Port<Timer> timer = MultiFSM.timerPort(proxy, handlesTimer);
+      for (MultiFSM multiFSM : hosted) {
+        multiFSM.setupTicker(timer);
+      }
+    }
+    setup = true;
+  }
+
+  private static <E> void route(Map<Class, Map<Object, List<MultiFSM>>> routes, Map<Class, Set<E>> events,
+    MultiFSM multiFSM) {
+    for (Map.Entry<Class, Set<E>> e : events.entrySet()) {
+      Map<Object, List<MultiFSM>> portRoutes = routes.get(e.getKey());
+      if (portRoutes == null) {
+        portRoutes = new LinkedHashMap<>();
+        routes.put(e.getKey(), portRoutes);
+      }
+      for (E event : e.getValue()) {
+        List<MultiFSM> eventRoutes = portRoutes.get(event);
+        if (eventRoutes == null) {
+          eventRoutes = new ArrayList<>();
+          portRoutes.put(event, eventRoutes);
+        }
+        eventRoutes.add(multiFSM);
+      }
+    }
+  }
+
+  private static List handlers(int kind, Map<Class, Map<Object, List<MultiFSM>>> routes) {
+    List ports = new ArrayList<>();
+    for (Map.Entry<Class, Map<Object, List<MultiFSM>>> p : routes.entrySet()) {
+      List handlers = new ArrayList<>();
+      for (Map.Entry<Object, List<MultiFSM>> e : p.getValue().entrySet()) {
+        handlers.add(handler(kind, e.getKey(), e.getValue()));
+      }
+      ports.add(Pair.with(p.getKey(), handlers));
+    }
+    return ports;
+  }
+
+  private static Object handler(int kind, Object event, List<MultiFSM> routes) {
+    if (routes.size() == 1) {
+      MultiFSM multiFSM = routes.get(0);
+      switch (kind) {
+        case FSMachineDef.POSITIVE_BASIC:
+          return multiFSM.basicEventOnPositivePort((Class) event, eventId(kind, event, multiFSM));
+        case FSMachineDef.NEGATIVE_BASIC:
+          return multiFSM.basicEventOnNegativePort((Class) event, eventId(kind, event, multiFSM));
+        case FSMachineDef.POSITIVE_PATTERN:
+          return multiFSM.patternEventOnPositivePort(((Pair<Class, Class>) event).getValue0(),
+            ((Pair<Class, Class>) event).getValue1(), eventId(kind, event, multiFSM));
+        default:
+          return multiFSM.patternEventOnNegativePort(((Pair<Class, Class>) event).getValue0(),
+            ((Pair<Class, Class>) event).getValue1(), eventId(kind, event, multiFSM));
+      }
+    }
+    Routes r = new Routes(kind, event, routes);
+    switch (kind) {
+      case FSMachineDef.POSITIVE_BASIC:
+        return positiveBasic((Class) event, r);
+      case FSMachineDef.NEGATIVE_BASIC:
+        return negativeBasic((Class) event, r);
+      case FSMachineDef.POSITIVE_PATTERN:
+        return positivePattern(((Pair<Class, Class>) event).getValue0(), ((Pair<Class, Class>) event).getValue1(), r);
+      default:
+        return negativePattern(((Pair<Class, Class>) event).getValue0(), ((Pair<Class, Class>) event).getValue1(), r);
+    }
+  }
+
+  private static int eventId(int kind, Object event, MultiFSM multiFSM) {
+    switch (kind) {
+      case FSMachineDef.POSITIVE_BASIC:
+        return multiFSM.fsmDef.positiveBasicEventId((Class) event);
+      case FSMachineDef.NEGATIVE_BASIC:
+        return multiFSM.fsmDef.negativeBasicEventId((Class) event);
+      case FSMachineDef.POSITIVE_PATTERN:
+        return multiFSM.fsmDef.positivePatternEventId(((Pair<Class, Class>) event).getValue0(),
+          ((Pair<Class, Class>) event).getValue1());
+      default:
+        return multiFSM.fsmDef.negativePatternEventId(((Pair<Class, Class>) event).getValue0(),
+          ((Pair<Class, Class>) event).getValue1());
+    }
+  }
+
+  /**
+   * The MultiFSMs an event is routed to, with the id and index each definition compiled for the event.
+   */
+  private static final class Routes {
+
+    final MultiFSM[] fsms;
+    final int[] eventIds;
+    final int[] eventIdxs;
+
+    Routes(int kind, Object event, List<MultiFSM> routes) {
+      this.fsms = routes.toArray(new MultiFSM[routes.size()]);
+      this.eventIds = new int[fsms.length];
+      this.eventIdxs = new int[fsms.length];
+      for (int i = 0; i < fsms.length; i++) {
+        eventIds[i] = eventId(kind, event, fsms[i]);
+        eventIdxs[i] = fsms[i].fsmDef.eventIndex(kind, eventIds[i]);
+      }
+    }
+  }
+
+  private static <E extends FSMEvent> Handler<E> positiveBasic(Class<E> eventType, final Routes routes) {
+    final MultiFSM[] fsms = routes.fsms;
+    final int[] eventIds = routes.eventIds;
+    final int[] eventIdxs = routes.eventIdxs;
+    return new Handler<E>(eventType) {
+      @Override
+      public void handle(E event) {
+        for (int i = 0; i < fsms.length; i++) {
+          fsms[i].onPositiveBasic(eventIds[i], eventIdxs[i], event);
+        }
+      }
+    };
+  }
+
+  private static <E extends FSMEvent> Handler<E> negativeBasic(Class<E> eventType, final Routes routes) {
+    final MultiFSM[] fsms = routes.fsms;
+    final int[] eventIds = routes.eventIds;
+    final int[] eventIdxs = routes.eventIdxs;
+    return new Handler<E>(eventType) {
+      @Override
+      public void handle(E event) {
+        for (int i = 0; i < fsms.length; i++) {
+          fsms[i].onNegativeBasic(eventIds[i], eventIdxs[i], event);
+        }
+      }
+    };
+  }
+
+  private static <P extends KompicsEvent, C extends PatternExtractor<Class<Object>, P>>
+  ClassMatchedHandler positivePattern(Class contentType, Class<C> containerType, final Routes routes) {
+    final MultiFSM[] fsms = routes.fsms;
+    final int[] eventIds = routes.eventIds;
+    final int[] eventIdxs = routes.eventIdxs;
+    return new ClassMatchedHandler<P, C>(containerType, contentType) {
+      @Override
+      public void handle(P payload, C container) {
+        for (int i = 0; i < fsms.length; i++) {
+          fsms[i].onPositivePattern(eventIds[i], eventIdxs[i], payload, container);
+        }
+      }
+    };
+  }
+
+  private static <P extends KompicsEvent, C extends PatternExtractor<Class<Object>, P>>
+  ClassMatchedHandler negativePattern(Class contentType, Class<C> containerType, final Routes routes) {
+    final MultiFSM[] fsms = routes.fsms;
+    final int[] eventIds = routes.eventIds;
+    final int[] eventIdxs = routes.eventIdxs;
+    return new ClassMatchedHandler<P, C>(containerType, contentType) {
+      @Override
+      public void handle(P payload, C container) {
+        for (int i = 0; i < fsms.length; i++) {
+          fsms[i].onNegativePattern(eventIds[i], eventIdxs[i], payload, container);
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,445 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import org.javatuples.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sics.kompics.Channel;
+import se.sics.kompics.Component;
+import se.sics.kompics.ComponentDefinition;
+import se.sics.kompics.Handler;
+import se.sics.kompics.KompicsEvent;
+import se.sics.kompics.Negative;
+import se.sics.kompics.PatternExtractor;
+import se.sics.kompics.Port;
+import se.sics.kompics.Positive;
+import se.sics.kompics.Start;
+import se.sics.kompics.fsm.event.FSMMigration;
+import se.sics.kompics.fsm.event.FSMRebalance;
+import se.sics.kompics.fsm.id.FSMPartitioner;
+import se.sics.kompics.timer.Timer;
+import se.sics.kompics.util.Identifier;
+
+/**
+ * Spreads the instances of one fsm definition over shards - child MultiFSMComp - so that they are not all serialized
+ * on a single component.
+ * <p>
+ * The component exposes the ports of a single MultiFSMComp. Events the fsm subscribes to are routed to the shard
+ * owning the instance - chosen by the FSMPartitioner - while the events the shards trigger flow out of the
+ * component directly. An fsm only triggering events on a port it does not subscribe to should look the port up
+ * through its external state, as with a single MultiFSMComp; such ports are not connected here.
+ * <p>
+ * Each shard has its own MultiFSM and external state - build one per shard with the same definition.
+ * <p>
+ * Live instances can be moved between shards through the FSMRebalancePort - one by one with Migrate or, with
+ * Rebalance, the hottest ones of the busiest shard. Events of a migrating instance are held here until its import in
+ * the destination shard and are then delivered there in order. If the export or the import fails the instance stays
+ * in - or is imported back into - its source shard, and the held events are delivered there.
+ * <p>
+ * Instances recovered by the shard journals stay where they were recovered: each shard reports, when it starts, the
+ * ones the partitioner puts elsewhere, and events are held until all shards reported.
+ */
+public class ShardedMultiFSMComp extends ComponentDefinition {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ShardedMultiFSMComp.class);
+  private String logPrefix = "";
+
+  private final Component[] shards;
+  private final FSMachineDef fsmDef;
+  private final BaseIdExtractor fsmIdExtractor;
+  private final OnFSMExceptionAction oexa;
+  private final FSMPartitioner partitioner;
+  private final FSMRebalancer rebalancer;
+  private final Negative<FSMRebalancePort> rebalancePort = provides(FSMRebalancePort.class);
+  private final Map<Class, Positive> positivePorts = new HashMap<>();
+  private final Map<Class, Negative> negativePorts = new HashMap<>();
+  //shards that did not report their recovered instances yet, and the events routed meanwhile
+  private int recovering;
+  private final List<Early> early = new LinkedList<>();
+
+  public ShardedMultiFSMComp(Init init) {
+    //all shards are instances of the same definition
+    MultiFSM fsm = init.shards.get(0);
+    fsmDef = fsm.fsmDef;
+    fsmIdExtractor = fsm.fsmIdExtractor;
+    oexa = fsm.oexa;
+    partitioner = init.partitioner != null ? init.partitioner : fsmDef.fsmIdFactory.partitioner();
+    logPrefix = "<" + fsmDef.fsmName + ">";
+    shards = new Component[init.shards.size()];
+    boolean timer = false;
+    for (int i = 0; i < shards.length; i++) {
+      MultiFSM shard = init.shards.get(i);
+      timer = timer || shard.usesTimer();
+      shards[i] = create(MultiFSMComp.class, new MultiFSMComp.Init(shard, partitioner, i, shards.length));
+    }
+    rebalancer = new FSMRebalancer(shards.length);
+    recovering = shards.length;
+
+    subscribe(handleStart, control);
+    subscribe(handleMigrate, rebalancePort);
+    subscribe(handleRebalance, rebalancePort);
+    for (int i = 0; i < shards.length; i++) {
+      subscribe(handleExported, shards[i].getPositive(FSMMigrationPort.class));
+      subscribe(handleImported, shards[i].getPositive(FSMMigrationPort.class));
+      subscribe(handleKilled, shards[i].getPositive(FSMMigrationPort.class));
+      subscribe(recovered(i), shards[i].getPositive(FSMMigrationPort.class));
+    }
+    setupPositivePorts(fsm.positiveBasicEvents, fsm.positivePatternEvents);
+    setupNegativePorts(fsm.negativeBasicEvents, fsm.negativePatternEvents);
+    if (timer) {
+      //each shard filters the timeouts it scheduled
+      Positive<Timer> timerPort = requires(Timer.class);
+      for (Component shard : shards) {
+        connect(timerPort, shard.getNegative(Timer.class), Channel.TWO_WAY);
+      }
+    }
+  }
+
+  Handler handleStart = new Handler<Start>() {
+    @Override
+    public void handle(Start event) {
+      LOG.info("{}starting {} shards...", logPrefix, shards.length);
+    }
+  };
+
+  /**
+   * Events of the shards leave through the one way channels, incoming events are routed.
+   */
+  private void setupPositivePorts(Map<Class, Set<Class>> basicEvents,
+    Map<Class, Set<Pair<Class, Class>>> patternEvents) {
+    for (Map.Entry<Class, Set<Class>> e : basicEvents.entrySet()) {
+      Positive port = positivePort(e.getKey());
+      for (Class eventType : e.getValue()) {
+        subscribe(new Router(eventType, e.getKey(), true, false), port);
+      }
+    }
+    for (Map.Entry<Class, Set<Pair<Class, Class>>> e : patternEvents.entrySet()) {
+      Positive port = positivePort(e.getKey());
+      for (Class containerType : containerTypes(e.getValue())) {
+        subscribe(new Router(containerType, e.getKey(), true, false), port);
+      }
+    }
+  }
+
+  private void setupNegativePorts(Map<Class, Set<Class>> basicEvents,
+    Map<Class, Set<Pair<Class, Class>>> patternEvents) {
+    for (Map.Entry<Class, Set<Class>> e : basicEvents.entrySet()) {
+      Negative port = negativePort(e.getKey());
+      for (Class eventType : e.getValue()) {
+        subscribe(new Router(eventType, e.getKey(), false, false), port);
+      }
+    }
+    for (Map.Entry<Class, Set<Pair<Class, Class>>> e : patternEvents.entrySet()) {
+      Negative port = negativePort(e.getKey());
+      for (Class containerType : containerTypes(e.getValue())) {
+        //the MultiFSM picks the instance of negative pattern events by their content
+        subscribe(new Router(containerType, e.getKey(), false, true), port);
+      }
+    }
+  }
+
+  private Positive positivePort(Class portType) {
+    Positive port = positivePorts.get(portType);
+    if (port == null) {
+      port = requires(portType);
+      for (Component shard : shards) {
+        connect(port, shard.getNegative(portType), Channel.ONE_WAY_NEG);
+      }
+      positivePorts.put(portType, port);
+    }
+    return port;
+  }
+
+  private Negative negativePort(Class portType) {
+    Negative port = negativePorts.get(portType);
+    if (port == null) {
+      port = provides(portType);
+      for (Component shard : shards) {
+        connect(port, shard.getPositive(portType), Channel.ONE_WAY_POS);
+      }
+      negativePorts.put(portType, port);
+    }
+    return port;
+  }
+
+  //several contents can share a container - it is routed once
+  private static Set<Class> containerTypes(Set<Pair<Class, Class>> patternEvents) {
+    Set<Class> containerTypes = new HashSet<>();
+    for (Pair<Class, Class> p : patternEvents) {
+      containerTypes.add(p.getValue1());
+    }
+    return containerTypes;
+  }
+
+  private int home(Identifier baseId) {
+    return partitioner.partition(fsmDef.fsmDefId, baseId, shards.length);
+  }
+
+  private void deliver(int shard, KompicsEvent event, Class portType, boolean positive) {
+    Port port = positive ? shards[shard].getNegative(portType) : shards[shard].getPositive(portType);
+    trigger(event, port);
+  }
+
+  Handler handleMigrate = new Handler<FSMRebalance.Migrate>() {
+    @Override
+    public void handle(FSMRebalance.Migrate req) {
+      if (req.toShard < 0 || req.toShard >= shards.length) {
+        LOG.warn("{}no shard:{} to migrate:{} to", new Object[]{logPrefix, req.toShard, req.baseId});
+        return;
+      }
+      if (recovering > 0) {
+        //owners are not known yet
+        LOG.info("{}fsm:{} can't migrate while shards recover", logPrefix, req.baseId);
+        trigger(new FSMRebalance.Migrated(req.baseId, home(req.baseId), req.toShard, true), rebalancePort);
+        return;
+      }
+      migrate(req.baseId, req.toShard);
+    }
+  };
+
+  Handler handleRebalance = new Handler<FSMRebalance.Rebalance>() {
+    @Override
+    public void handle(FSMRebalance.Rebalance req) {
+      if (recovering > 0) {
+        LOG.debug("{}shards recovering", logPrefix);
+        return;
+      }
+      FSMRebalancer.Plan plan = rebalancer.plan(req.maxMoves, req.imbalance);
+      if (plan == null) {
+        LOG.debug("{}shards balanced", logPrefix);
+        return;
+      }
+      LOG.info("{}rebalancing {} instances from shard:{} to shard:{}",
+        new Object[]{logPrefix, plan.baseIds.size(), plan.from, plan.to});
+      for (Identifier baseId : plan.baseIds) {
+        migrate(baseId, plan.to);
+      }
+    }
+  };
+
+  private void migrate(Identifier baseId, int to) {
+    int from = rebalancer.owner(baseId, home(baseId));
+    if (rebalancer.start(baseId, from, to) == null) {
+      LOG.info("{}fsm:{} already migrating", logPrefix, baseId);
+      return;
+    }
+    if (from == to) {
+      finishMigration(baseId);
+      return;
+    }
+    trigger(new FSMMigration.Export(baseId), shards[from].getPositive(FSMMigrationPort.class));
+  }
+
+  Handler handleExported = new Handler<FSMMigration.Exported>() {
+    @Override
+    public void handle(FSMMigration.Exported resp) {
+      FSMRebalancer.Migration m = rebalancer.migration(resp.baseId);
+      if (resp.failed) {
+        //whatever the shard has of the instance is still there
+        LOG.warn("{}fsm:{} export from shard:{} failed", new Object[]{logPrefix, resp.baseId, m.from});
+        abortMigration(resp.baseId);
+        return;
+      }
+      if (resp.export == null) {
+        //no live instance - its next events create it in the destination
+        finishMigration(resp.baseId);
+        return;
+      }
+      m.export = resp.export;
+      trigger(new FSMMigration.Import(resp.export), shards[m.to].getPositive(FSMMigrationPort.class));
+    }
+  };
+
+  Handler handleImported = new Handler<FSMMigration.Imported>() {
+    @Override
+    public void handle(FSMMigration.Imported resp) {
+      FSMRebalancer.Migration m = rebalancer.migration(resp.baseId);
+      if (m.restoring) {
+        if (resp.failed) {
+          LOG.error("{}fsm:{} could not be imported back into shard:{} - instance lost", 
+            new Object[]{logPrefix, resp.baseId, m.from});
+        }
+        abortMigration(resp.baseId);
+      } else if (resp.failed) {
+        //the source journaled the instance as gone on export - importing it back journals it again
+        LOG.warn("{}fsm:{} import in shard:{} failed - back to shard:{}", 
+          new Object[]{logPrefix, resp.baseId, m.to, m.from});
+        m.restoring = true;
+        trigger(new FSMMigration.Import(m.export), shards[m.from].getPositive(FSMMigrationPort.class));
+      } else {
+        finishMigration(resp.baseId);
+      }
+    }
+  };
+
+  /**
+   * An instance living away from its partitioner shard died there - its id goes back home, so the relocation is not
+   * kept for good. Moved as a migration rather than dropped: events routed to the shard after the kill may have
+   * created the instance again.
+   */
+  Handler handleKilled = new Handler<FSMMigration.Killed>() {
+    @Override
+    public void handle(FSMMigration.Killed event) {
+      int home = home(event.baseId);
+      if (rebalancer.migrating(event.baseId) || rebalancer.owner(event.baseId, home) == home) {
+        return;
+      }
+      migrate(event.baseId, home);
+    }
+  };
+
+  private Handler recovered(final int shard) {
+    return new Handler<FSMMigration.Recovered>() {
+      @Override
+      public void handle(FSMMigration.Recovered event) {
+        for (Identifier baseId : event.baseIds) {
+          rebalancer.relocate(baseId, shard);
+        }
+        if (!event.baseIds.isEmpty()) {
+          LOG.info("{}shard:{} recovered {} instances away from their partitioner shard",
+            new Object[]{logPrefix, shard, event.baseIds.size()});
+        }
+        recovering--;
+        if (recovering == 0) {
+          for (Early e : early) {
+            route(e.baseId, e.event, e.portType, e.positive);
+          }
+          early.clear();
+        }
+      }
+    };
+  }
+
+  private void abortMigration(Identifier baseId) {
+    FSMRebalancer.Migration m = rebalancer.abort(baseId);
+    for (FSMRebalancer.Held h : m.held) {
+      deliver(m.from, h.event, h.portType, h.positive);
+    }
+    trigger(new FSMRebalance.Migrated(baseId, m.from, m.to, true), rebalancePort);
+  }
+
+  private void finishMigration(Identifier baseId) {
+    FSMRebalancer.Migration m = rebalancer.finish(baseId, home(baseId));
+    LOG.debug("{}fsm:{} migrated from shard:{} to shard:{} with {} held events",
+      new Object[]{logPrefix, baseId, m.from, m.to, m.held.size()});
+    for (FSMRebalancer.Held h : m.held) {
+      deliver(m.to, h.event, h.portType, h.positive);
+    }
+    trigger(new FSMRebalance.Migrated(baseId, m.from, m.to), rebalancePort);
+  }
+
+  private class Router extends Handler<KompicsEvent> {
+
+    private final Class portType;
+    private final boolean positive;
+    private final boolean byContent;
+
+    Router(Class eventType, Class portType, boolean positive, boolean byContent) {
+      super(eventType);
+      this.portType = portType;
+      this.positive = positive;
+      this.byContent = byContent;
+    }
+
+    @Override
+    public void handle(KompicsEvent event) {
+      Optional<Identifier> baseId;
+      try {
+        baseId = fsmIdExtractor.fromEvent(byContent ? (KompicsEvent) ((PatternExtractor) event).extractValue() : event);
+      } catch (FSMException ex) {
+        oexa.handle(ex);
+        return;
+      }
+      if (!baseId.isPresent()) {
+        LOG.warn("{}not handling event:{}", logPrefix, event);
+        return;
+      }
+      if (recovering > 0) {
+        early.add(new Early(baseId.get(), event, portType, positive));
+        return;
+      }
+      route(baseId.get(), event, portType, positive);
+    }
+  }
+
+  private void route(Identifier baseId, KompicsEvent event, Class portType, boolean positive) {
+    if (rebalancer.migrating(baseId)) {
+      rebalancer.hold(baseId, event, portType, positive);
+      return;
+    }
+    deliver(rebalancer.route(baseId, home(baseId)), event, portType, positive);
+  }
+
+  private static class Early {
+
+    final Identifier baseId;
+    final KompicsEvent event;
+    final Class portType;
+    final boolean positive;
+
+    Early(Identifier baseId, KompicsEvent event, Class portType, boolean positive) {
+      this.baseId = baseId;
+      this.event = event;
+      this.portType = portType;
+      this.positive = positive;
+    }
+  }
+
+  @Override
+  public void tearDown() {
+    LOG.warn("{}multi fsm tear down is iffy at best atm - externaly stop all machines", logPrefix);
+  }
+
+  public static class Init extends se.sics.kompics.Init<ShardedMultiFSMComp> {
+
+    public final List<MultiFSM> shards;
+    public final FSMPartitioner partitioner;
+
+    /**
+     * Instances are spread with the partitioner of the FSMIdentifierFactory of the definition.
+     *
+     * @param shards MultiFSMs of the same definition, each with its own external state
+     */
+    public Init(List<MultiFSM> shards) {
+      this(shards, null);
+    }
+
+    public Init(List<MultiFSM> shards, FSMPartitioner partitioner) {
+      if (shards.isEmpty()) {
+        throw new IllegalArgumentException("no shards");
+      }
+      for (MultiFSM shard : shards) {
+        if (!shard.fsmDef.fsmName.equals(shards.get(0).fsmDef.fsmName)) {
+          throw new IllegalArgumentException("shards of different fsms:" + shard.fsmDef.fsmName + " "
+            + shards.get(0).fsmDef.fsmName);
+        }
+      }
+      this.shards = shards;
+      this.partitioner = partitioner;
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.event;
+
+import java.util.List;
+import se.sics.kompics.KompicsEvent;
+import se.sics.kompics.fsm.FSMExport;
+import se.sics.kompics.util.Identifier;
+
+/**
+ * Moving an instance between the shards of a ShardedMultiFSMComp - exchanged with the MultiFSMComp of the shards.
+ */
+public class FSMMigration {
+
+  public static class Export implements KompicsEvent {
+
+    public final Identifier baseId;
+
+    public Export(Identifier baseId) {
+      this.baseId = baseId;
+    }
+  }
+
+  public static class Exported implements KompicsEvent {
+
+    public final Identifier baseId;
+    //null if the shard had no live instance, or if the export failed
+    public final FSMExport export;
+    //the instance, if any, is still in the shard
+    public final boolean failed;
+
+    public Exported(Identifier baseId, FSMExport export) {
+      this(baseId, export, false);
+    }
+
+    public Exported(Identifier baseId, FSMExport export, boolean failed) {
+      this.baseId = baseId;
+      this.export = export;
+      this.failed = failed;
+    }
+  }
+
+  public static class Import implements KompicsEvent {
+
+    public final FSMExport export;
+
+    public Import(FSMExport export) {
+      this.export = export;
+    }
+  }
+
+  public static class Imported implements KompicsEvent {
+
+    public final Identifier baseId;
+    //the instance was not imported - the export is still with the requester
+    public final boolean failed;
+
+    public Imported(Identifier baseId) {
+      this(baseId, false);
+    }
+
+    public Imported(Identifier baseId, boolean failed) {
+      this.baseId = baseId;
+      this.failed = failed;
+    }
+  }
+
+  /**
+   * An instance was killed in a shard the partitioner does not put it in.
+   */
+  public static class Killed implements KompicsEvent {
+
+    public final Identifier baseId;
+
+    public Killed(Identifier baseId) {
+      this.baseId = baseId;
+    }
+  }
+
+  /**
+   * Sent by each shard when it starts - the live instances it holds, recovered from its journal, that the partitioner
+   * puts in another shard.
+   */
+  public static class Recovered implements KompicsEvent {
+
+    public final List<Identifier> baseIds;
+
+    public Recovered(List<Identifier> baseIds) {
+      this.baseIds = baseIds;
+    }
+  }
+}
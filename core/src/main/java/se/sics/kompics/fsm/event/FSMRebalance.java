@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.event;
+
+import se.sics.kompics.KompicsEvent;
+import se.sics.kompics.util.Identifier;
+
+/**
+ * Requests to move instances between the shards of a ShardedMultiFSMComp.
+ */
+public class FSMRebalance {
+
+  /**
+   * Move the instance of baseId to a shard - its later events are routed there.
+   */
+  public static class Migrate implements KompicsEvent {
+
+    public final Identifier baseId;
+    public final int toShard;
+
+    public Migrate(Identifier baseId, int toShard) {
+      this.baseId = baseId;
+      this.toShard = toShard;
+    }
+  }
+
+  /**
+   * Move up to maxMoves of the busiest recent instances from the busiest shard to the least busy one, if the busiest
+   * shard routed more than imbalance times the events of the least busy one since the last Rebalance.
+   */
+  public static class Rebalance implements KompicsEvent {
+
+    public final int maxMoves;
+    public final double imbalance;
+
+    public Rebalance(int maxMoves, double imbalance) {
+      this.maxMoves = maxMoves;
+      this.imbalance = imbalance;
+    }
+  }
+
+  public static class Migrated implements KompicsEvent {
+
+    public final Identifier baseId;
+    public final int fromShard;
+    public final int toShard;
+    //the instance stayed in fromShard
+    public final boolean failed;
+
+    public Migrated(Identifier baseId, int fromShard, int toShard) {
+      this(baseId, fromShard, toShard, false);
+    }
+
+    public Migrated(Identifier baseId, int fromShard, int toShard, boolean failed) {
+      this.baseId = baseId;
+      this.fromShard = fromShard;
+      this.toShard = toShard;
+      this.failed = failed;
+    }
+  }
+}
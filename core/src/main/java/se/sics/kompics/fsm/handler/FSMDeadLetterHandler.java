@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.handler;
+
+import se.sics.kompics.KompicsEvent;
+import se.sics.kompics.fsm.FSMException;
+import se.sics.kompics.fsm.FSMExternalState;
+import se.sics.kompics.util.Identifier;
+
+/**
+ * Called for an event addressed to an id with no instance, when START does not handle the event or the id is of a
+ * recently killed instance (tombstones) - late replies, duplicates. No instance is created for it; the place to
+ * answer the sender through es.getProxy().
+ */
+public interface FSMDeadLetterHandler<ES extends FSMExternalState> {
+  public void handle(Identifier baseId, KompicsEvent event, ES es) throws FSMException;
+}
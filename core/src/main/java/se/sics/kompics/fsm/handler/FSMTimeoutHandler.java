@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.handler;
+
+import se.sics.kompics.fsm.FSMException;
+import se.sics.kompics.fsm.FSMExternalState;
+import se.sics.kompics.fsm.FSMInternalState;
+import se.sics.kompics.fsm.FSMStateName;
+
+/**
+ * Called when an instance stayed in a state for longer than the timeout declared for the state. Returns the next
+ * state, as the event handlers do - returning the same state re-enters it and arms the timeout again.
+ */
+public interface FSMTimeoutHandler<ES extends FSMExternalState, IS extends FSMInternalState> {
+  public FSMStateName handle(FSMStateName state, ES es, IS is) throws FSMException;
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.util;
+
+import java.util.Collection;
+import java.util.Objects;
+
+/**
+ * Chained hash map that grows incrementally: the doubled bucket array is allocated and the chains of the old one are
+ * relinked into it a few buckets at a time by the following operations, instead of all at once by the put that
+ * crosses the load factor. While a resize is in progress lookups check both bucket arrays.
+ * <p>
+ * No null keys or values. Not thread safe.
+ */
+public class IncrementalHashMap<K, V> {
+
+  private static final int MIN_CAPACITY = 16;
+  private static final float LOAD_FACTOR = 0.75f;
+  //old buckets relinked per operation while resizing
+  private static final int MIGRATION_STEP = 16;
+
+  private Node<K, V>[] table;
+  //buckets being drained into table, null if not resizing
+  private Node<K, V>[] old;
+  private int migrated;
+  private int size = 0;
+  private int resizeAt;
+
+  public IncrementalHashMap() {
+    this(MIN_CAPACITY);
+  }
+
+  public IncrementalHashMap(int expectedSize) {
+    long needed = (long) Math.ceil(Math.max(expectedSize, 1) / (double) LOAD_FACTOR);
+    int capacity = MIN_CAPACITY;
+    while (capacity < needed) {
+      if (capacity == 1 << 30) {
+        throw new IllegalArgumentException("expected size:" + expectedSize + " too large");
+      }
+      capacity <<= 1;
+    }
+    table = new Node[capacity];
+    resizeAt = (int) (capacity * LOAD_FACTOR);
+  }
+
+  private static int hash(Object key) {
+    int h = key.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  private static <K, V> Node<K, V> find(Node<K, V>[] buckets, int hash, Object key) {
+    Node<K, V> n = buckets[hash & (buckets.length - 1)];
+    while (n != null) {
+      if (n.hash == hash && Objects.equals(n.key, key)) {
+        return n;
+      }
+      n = n.next;
+    }
+    return null;
+  }
+
+  private Node<K, V> find(int hash, Object key) {
+    Node<K, V> n = find(table, hash, key);
+    if (n == null && old != null) {
+      n = find(old, hash, key);
+    }
+    return n;
+  }
+
+  public V get(Object key) {
+    if (old != null) {
+      migrate();
+    }
+    Node<K, V> n = find(hash(key), key);
+    return n == null ? null : n.value;
+  }
+
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  /**
+   * @return the previous value of the key or null
+   */
+  public V put(K key, V value) {
+    if (key == null || value == null) {
+      throw new NullPointerException("null keys/values not supported");
+    }
+    if (old != null) {
+      migrate();
+    }
+    int hash = hash(key);
+    Node<K, V> n = find(hash, key);
+    if (n != null) {
+      V prev = n.value;
+      n.value = value;
+      return prev;
+    }
+    link(table, new Node<>(hash, key, value));
+    if (++size > resizeAt) {
+      grow();
+    }
+    return null;
+  }
+
+  /**
+   * @return the removed value or null
+   */
+  public V remove(Object key) {
+    if (old != null) {
+      migrate();
+    }
+    int hash = hash(key);
+    Node<K, V> n = unlink(table, hash, key);
+    if (n == null && old != null) {
+      n = unlink(old, hash, key);
+    }
+    if (n == null) {
+      return null;
+    }
+    size--;
+    return n.value;
+  }
+
+  private static <K, V> void link(Node<K, V>[] buckets, Node<K, V> n) {
+    int idx = n.hash & (buckets.length - 1);
+    n.next = buckets[idx];
+    buckets[idx] = n;
+  }
+
+  private static <K, V> Node<K, V> unlink(Node<K, V>[] buckets, int hash, Object key) {
+    int idx = hash & (buckets.length - 1);
+    Node<K, V> prev = null;
+    Node<K, V> n = buckets[idx];
+    while (n != null) {
+      if (n.hash == hash && Objects.equals(n.key, key)) {
+        if (prev == null) {
+          buckets[idx] = n.next;
+        } else {
+          prev.next = n.next;
+        }
+        n.next = null;
+        return n;
+      }
+      prev = n;
+      n = n.next;
+    }
+    return null;
+  }
+
+  private void grow() {
+    //only if growing faster than MIGRATION_STEP allows - not the case for a doubling table
+    while (old != null) {
+      migrate();
+    }
+    if (table.length == 1 << 30) {
+      return;
+    }
+    old = table;
+    migrated = 0;
+    table = new Node[old.length << 1];
+    resizeAt = (int) (table.length * LOAD_FACTOR);
+  }
+
+  private void migrate() {
+    int end = Math.min(migrated + MIGRATION_STEP, old.length);
+    for (; migrated < end; migrated++) {
+      Node<K, V> n = old[migrated];
+      old[migrated] = null;
+      while (n != null) {
+        Node<K, V> next = n.next;
+        link(table, n);
+        n = next;
+      }
+    }
+    if (migrated == old.length) {
+      old = null;
+    }
+  }
+
+  /**
+   * @return into, with all values added
+   */
+  public <C extends Collection<? super V>> C values(C into) {
+    addValues(table, into);
+    if (old != null) {
+      addValues(old, into);
+    }
+    return into;
+  }
+
+  private static <K, V> void addValues(Node<K, V>[] buckets, Collection<? super V> into) {
+    for (Node<K, V> n : buckets) {
+      for (; n != null; n = n.next) {
+        into.add(n.value);
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @return true while entries are being moved to a larger bucket array
+   */
+  public boolean resizing() {
+    return old != null;
+  }
+
+  private static final class Node<K, V> {
+
+    final int hash;
+    final K key;
+    V value;
+    Node<K, V> next;
+
+    Node(int hash, K key, V value) {
+      this.hash = hash;
+      this.key = key;
+      this.value = value;
+    }
+  }
+}
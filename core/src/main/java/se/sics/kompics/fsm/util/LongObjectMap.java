@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Open addressing (linear probing) map from primitive long keys to objects. Keys and values are kept in two flat
+ * arrays, so a lookup is a multiplicative hash and a short scan of a long[] - no boxing, no entry objects.
+ * Removal shifts the following entries of the probe run back instead of leaving tombstones.
+ * <p>
+ * Growing is incremental: the larger table is allocated and the entries of the old one are moved over a few slots at
+ * a time by the following operations, so no single put pays for rehashing the whole map. While a resize is in
+ * progress lookups check both tables.
+ * <p>
+ * Long.MIN_VALUE is reserved as the empty slot marker and cannot be used as a key. Not thread safe.
+ */
+public class LongObjectMap<V> {
+
+  public static final long EMPTY = Long.MIN_VALUE;
+  private static final int MIN_CAPACITY = 16;
+  private static final float LOAD_FACTOR = 0.6f;
+  //old table slots moved per operation while resizing
+  private static final int MIGRATION_STEP = 16;
+  //2^64 / golden ratio
+  private static final long PHI = 0x9E3779B97F4A7C15L;
+
+  private Table table;
+  //table being drained into table, null if not resizing. Drained slots keep their key (with a null value) so that
+  //the probe runs of the entries not yet moved stay intact
+  private Table old;
+  private int migrated;
+  private int size = 0;
+
+  public LongObjectMap() {
+    this(MIN_CAPACITY);
+  }
+
+  public LongObjectMap(int expectedSize) {
+    table = new Table(capacityFor(expectedSize));
+  }
+
+  private static int capacityFor(int expectedSize) {
+    long needed = (long) Math.ceil(Math.max(expectedSize, 1) / (double) LOAD_FACTOR);
+    int capacity = MIN_CAPACITY;
+    while (capacity < needed) {
+      if (capacity == 1 << 30) {
+        throw new IllegalArgumentException("expected size:" + expectedSize + " too large");
+      }
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+
+  public V get(long key) {
+    if (old != null) {
+      migrate();
+    }
+    int idx = table.indexOf(key);
+    if (idx >= 0) {
+      return (V) table.values[idx];
+    }
+    if (old != null) {
+      idx = old.indexOf(key);
+      if (idx >= 0) {
+        return (V) old.values[idx];
+      }
+    }
+    return null;
+  }
+
+  public boolean containsKey(long key) {
+    return get(key) != null;
+  }
+
+  /**
+   * @return the previous value of the key or null
+   */
+  public V put(long key, V value) {
+    if (key == EMPTY) {
+      throw new IllegalArgumentException("reserved key:" + key);
+    }
+    if (value == null) {
+      throw new NullPointerException("null values not supported");
+    }
+    if (old != null) {
+      migrate();
+    }
+    int idx = table.indexOf(key);
+    if (idx >= 0) {
+      V prev = (V) table.values[idx];
+      table.values[idx] = value;
+      return prev;
+    }
+    if (old != null) {
+      idx = old.indexOf(key);
+      if (idx >= 0 && old.values[idx] != null) {
+        V prev = (V) old.values[idx];
+        old.values[idx] = null;
+        table.insert(key, value);
+        return prev;
+      }
+    }
+    table.insert(key, value);
+    if (++size > table.resizeAt) {
+      grow();
+    }
+    return null;
+  }
+
+  /**
+   * @return the removed value or null
+   */
+  public V remove(long key) {
+    if (old != null) {
+      migrate();
+    }
+    int idx = table.indexOf(key);
+    if (idx >= 0) {
+      V prev = (V) table.values[idx];
+      table.delete(idx);
+      size--;
+      return prev;
+    }
+    if (old != null) {
+      idx = old.indexOf(key);
+      if (idx >= 0 && old.values[idx] != null) {
+        V prev = (V) old.values[idx];
+        old.values[idx] = null;
+        size--;
+        return prev;
+      }
+    }
+    return null;
+  }
+
+  private void grow() {
+    //only if growing faster than MIGRATION_STEP allows - not the case for a doubling table
+    while (old != null) {
+      migrate();
+    }
+    if (table.keys.length == 1 << 30) {
+      throw new IllegalStateException("map full");
+    }
+    old = table;
+    migrated = 0;
+    table = new Table(old.keys.length << 1);
+  }
+
+  private void migrate() {
+    int end = Math.min(migrated + MIGRATION_STEP, old.keys.length);
+    for (; migrated < end; migrated++) {
+      Object value = old.values[migrated];
+      if (value != null) {
+        table.insert(old.keys[migrated], value);
+        old.values[migrated] = null;
+      }
+    }
+    if (migrated == old.keys.length) {
+      old = null;
+    }
+  }
+
+  /**
+   * @return into, with all values added
+   */
+  public <C extends Collection<? super V>> C values(C into) {
+    addValues(table, into);
+    if (old != null) {
+      //drained slots have a null value
+      addValues(old, into);
+    }
+    return into;
+  }
+
+  private static <V> void addValues(Table t, Collection<? super V> into) {
+    for (Object value : t.values) {
+      if (value != null) {
+        into.add((V) value);
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @return true while entries are being moved to a larger table
+   */
+  public boolean resizing() {
+    return old != null;
+  }
+
+  public void clear() {
+    old = null;
+    Arrays.fill(table.keys, EMPTY);
+    Arrays.fill(table.values, null);
+    size = 0;
+  }
+
+  private static final class Table {
+
+    final long[] keys;
+    final Object[] values;
+    final int mask;
+    final int shift;
+    final int resizeAt;
+
+    Table(int capacity) {
+      keys = new long[capacity];
+      Arrays.fill(keys, EMPTY);
+      values = new Object[capacity];
+      mask = capacity - 1;
+      shift = 64 - Integer.numberOfTrailingZeros(capacity);
+      resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    int slot(long key) {
+      return (int) ((key * PHI) >>> shift);
+    }
+
+    /**
+     * @return slot of the key, -1 if absent
+     */
+    int indexOf(long key) {
+      int idx = slot(key);
+      long k;
+      while ((k = keys[idx]) != EMPTY) {
+        if (k == key) {
+          return idx;
+        }
+        idx = (idx + 1) & mask;
+      }
+      return -1;
+    }
+
+    //key known to be absent
+    void insert(long key, Object value) {
+      int idx = slot(key);
+      while (keys[idx] != EMPTY) {
+        idx = (idx + 1) & mask;
+      }
+      keys[idx] = key;
+      values[idx] = value;
+    }
+
+    //backward shift deletion - moves back every entry of the run that would no longer be reachable from its home slot
+    void delete(int free) {
+      int idx = free;
+      while (true) {
+        idx = (idx + 1) & mask;
+        long k = keys[idx];
+        if (k == EMPTY) {
+          break;
+        }
+        int home = slot(k);
+        //entry at idx can fill the hole if its home slot is not cyclically in (free, idx]
+        boolean movable = free <= idx ? (home <= free || home > idx) : (home <= free && home > idx);
+        if (movable) {
+          keys[free] = k;
+          values[free] = values[idx];
+          free = idx;
+        }
+      }
+      keys[free] = EMPTY;
+      values[free] = null;
+    }
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A crash is a MultiFSM and journal dropped without close - recovery runs in a new MultiFSM on a journal opened on the
+ * same directory.
+ */
+public class FSMJournalTest {
+
+  private File dir;
+  private File snapshot;
+
+  @Before
+  public void setup() throws IOException {
+    dir = Files.createTempDirectory("fsm-journal").toFile();
+    snapshot = new File(dir, "fsm.snap");
+  }
+
+  @After
+  public void tearDown() {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  private MultiFSM multifsm(FSMJournal journal) throws FSMException {
+    return TestFSM.multifsm(FSMBuilder.multiFSMConfig().setJournal(journal));
+  }
+
+  private MultiFSM recover() throws IOException, FSMException {
+    FSMJournal journal = FSMJournal.open(dir, TestFSM.codec).setDurability(FSMDurability.SYNC, 10);
+    MultiFSM multiFSM = multifsm(journal);
+    journal.recover(snapshot, 2);
+    return multiFSM;
+  }
+
+  private List<File> segments() {
+    List<File> segments = new ArrayList<>();
+    for (File file : dir.listFiles()) {
+      if (file.getName().startsWith("journal-")) {
+        segments.add(file);
+      }
+    }
+    File[] sorted = segments.toArray(new File[segments.size()]);
+    Arrays.sort(sorted);
+    return Arrays.asList(sorted);
+  }
+
+  private static void assertInstance(MultiFSM multiFSM, int id, TestFSM.States state, long handled) {
+    assertEquals(state, multiFSM.getFSMState(new TestFSM.Id(id)));
+    assertEquals(handled, TestFSM.handled(multiFSM, id));
+  }
+
+  @Test
+  public void testRecoverAfterCrash() throws IOException, FSMException {
+    MultiFSM multiFSM = multifsm(FSMJournal.open(dir, TestFSM.codec).setDurability(FSMDurability.SYNC, 10));
+    for (int i = 0; i < 10; i++) {
+      TestFSM.hit(multiFSM, i);
+      TestFSM.hit(multiFSM, i);
+    }
+    for (int i = 0; i < 10; i += 2) {
+      TestFSM.toggle(multiFSM, i);
+    }
+    TestFSM.stop(multiFSM, 9);
+    multiFSM.exportFSM(new TestFSM.Id(7));
+    multiFSM.importFSM(TestFSM.export(multiFSM, 20, TestFSM.States.B, 5, 100));
+
+    MultiFSM recovered = recover();
+    assertEquals(9, recovered.size());
+    for (int i = 0; i < 7; i++) {
+      assertInstance(recovered, i, i % 2 == 0 ? TestFSM.States.B : TestFSM.States.A, i % 2 == 0 ? 3 : 2);
+    }
+    assertInstance(recovered, 8, TestFSM.States.B, 3);
+    assertFalse(recovered.activeFSM(new TestFSM.Id(7)));
+    assertFalse(recovered.activeFSM(new TestFSM.Id(9)));
+    assertInstance(recovered, 20, TestFSM.States.B, 5);
+    assertEquals(100, TestFSM.padding(recovered, 20));
+
+    //crash again - the new segment follows the replayed ones, recovery takes the latest word on every instance
+    TestFSM.toggle(recovered, 0);
+    TestFSM.stop(recovered, 1);
+    TestFSM.hit(recovered, 9);
+    assertEquals(2, segments().size());
+    MultiFSM again = recover();
+    assertEquals(9, again.size());
+    assertInstance(again, 0, TestFSM.States.A, 4);
+    assertFalse(again.activeFSM(new TestFSM.Id(1)));
+    assertInstance(again, 9, TestFSM.States.A, 1);
+  }
+
+  @Test
+  public void testBatchLosesOnlyUnsyncedRecords() throws IOException, FSMException, InterruptedException {
+    FSMJournal journal = FSMJournal.open(dir, TestFSM.codec).setDurability(FSMDurability.BATCH, 1);
+    MultiFSM multiFSM = multifsm(journal);
+    for (int i = 0; i < 10; i++) {
+      TestFSM.hit(multiFSM, i);
+    }
+    Thread.sleep(5);
+    //the group commit of the ticker
+    multiFSM.tick();
+    for (int i = 0; i < 10; i++) {
+      TestFSM.toggle(multiFSM, i);
+    }
+    //still buffered - lost in the crash
+    MultiFSM recovered = recover();
+    assertEquals(10, recovered.size());
+    for (int i = 0; i < 10; i++) {
+      assertInstance(recovered, i, TestFSM.States.A, 1);
+    }
+  }
+
+  @Test
+  public void testTornLastRecord() throws IOException, FSMException {
+    MultiFSM multiFSM = multifsm(FSMJournal.open(dir, TestFSM.codec).setDurability(FSMDurability.SYNC, 10));
+    for (int i = 0; i < 10; i++) {
+      TestFSM.hit(multiFSM, i);
+    }
+    TestFSM.toggle(multiFSM, 3);
+    //crash halfway through the write of the last record
+    File segment = segments().get(0);
+    try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+      raf.setLength(raf.length() - 3);
+    }
+    MultiFSM recovered = recover();
+    assertEquals(10, recovered.size());
+    //the toggle is lost, nothing before it
+    for (int i = 0; i < 10; i++) {
+      assertInstance(recovered, i, TestFSM.States.A, 1);
+    }
+  }
+
+  @Test
+  public void testCorruptLastRecord() throws IOException, FSMException {
+    MultiFSM multiFSM = multifsm(FSMJournal.open(dir, TestFSM.codec).setDurability(FSMDurability.SYNC, 10));
+    for (int i = 0; i < 10; i++) {
+      TestFSM.hit(multiFSM, i);
+    }
+    TestFSM.toggle(multiFSM, 3);
+    //complete length, garbage payload - the crc does not match
+    File segment = segments().get(0);
+    try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+      raf.seek(raf.length() - 1);
+      int last = raf.read();
+      raf.seek(raf.length() - 1);
+      raf.write(last ^ 0xff);
+    }
+    MultiFSM recovered = recover();
+    assertEquals(10, recovered.size());
+    assertInstance(recovered, 3, TestFSM.States.A, 1);
+  }
+
+  @Test
+  public void testCompactionAfterCheckpoint() throws IOException, FSMException {
+    FSMJournal journal = FSMJournal.open(dir, TestFSM.codec).setDurability(FSMDurability.SYNC, 10)
+      .setSegmentSize(1024);
+    MultiFSM multiFSM = multifsm(journal);
+    for (int i = 0; i < 100; i++) {
+      TestFSM.hit(multiFSM, i);
+    }
+    assertTrue(segments().size() > 1);
+    journal.checkpoint(snapshot);
+    assertTrue(snapshot.exists());
+    assertTrue(segments().isEmpty());
+
+    //on top of the snapshot
+    for (int i = 0; i < 100; i += 2) {
+      TestFSM.toggle(multiFSM, i);
+    }
+    for (int i = 0; i < 10; i++) {
+      TestFSM.stop(multiFSM, i);
+    }
+    TestFSM.hit(multiFSM, 100);
+    assertFalse(segments().isEmpty());
+
+    MultiFSM recovered = recover();
+    assertEquals(91, recovered.size());
+    for (int i = 0; i < 10; i++) {
+      assertFalse(recovered.activeFSM(new TestFSM.Id(i)));
+    }
+    for (int i = 10; i < 100; i++) {
+      assertInstance(recovered, i, i % 2 == 0 ? TestFSM.States.B : TestFSM.States.A, i % 2 == 0 ? 2 : 1);
+    }
+    assertInstance(recovered, 100, TestFSM.States.A, 1);
+  }
+
+  @Test
+  public void testPeriodicCheckpoint() throws IOException, FSMException, InterruptedException {
+    FSMJournal journal = FSMJournal.open(dir, TestFSM.codec).setDurability(FSMDurability.SYNC, 10)
+      .setCheckpoint(snapshot, 1);
+    MultiFSM multiFSM = multifsm(journal);
+    assertTrue(multiFSM.usesTimer());
+    for (int i = 0; i < 10; i++) {
+      TestFSM.hit(multiFSM, i);
+    }
+    Thread.sleep(5);
+    multiFSM.tick();
+    assertTrue(snapshot.exists());
+    assertTrue(segments().isEmpty());
+    TestFSM.toggle(multiFSM, 0);
+    //closed on tear down
+    multiFSM.close();
+
+    MultiFSM recovered = recover();
+    assertEquals(10, recovered.size());
+    assertInstance(recovered, 0, TestFSM.States.B, 2);
+    assertInstance(recovered, 1, TestFSM.States.A, 1);
+  }
+}
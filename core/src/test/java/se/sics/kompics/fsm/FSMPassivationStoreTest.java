@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Instances are passivated by expiring them directly instead of waiting for the idle sweep. Chunks of 1KB hold 4
+ * records of 232 bytes, so rehydrating 3 of them leaves a chunk under a quarter live.
+ */
+public class FSMPassivationStoreTest {
+
+  private static final int INSTANCES = 1000;
+  private static final int PADDING = 200;
+  private static final int CYCLES = 3;
+
+  private File file;
+
+  @Before
+  public void setup() throws IOException {
+    file = File.createTempFile("fsm", ".passivated");
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  private static MultiFSM multifsm(FSMPassivationStore store) throws FSMException {
+    return TestFSM.multifsm(FSMBuilder.multiFSMConfig().setPassivation(store.setChunkSize(1024), 1000));
+  }
+
+  //in id order, so that a chunk holds 4 consecutive ids
+  private static void passivateAll(MultiFSM multiFSM) {
+    List<FSMachine> fsms = multiFSM.instances();
+    Collections.sort(fsms, new Comparator<FSMachine>() {
+      @Override
+      public int compare(FSMachine o1, FSMachine o2) {
+        return o1.fsmId.baseId.compareTo(o2.fsmId.baseId);
+      }
+    });
+    for (FSMachine fsm : fsms) {
+      multiFSM.expire(fsm);
+    }
+  }
+
+  @Test
+  public void testOffHeap() throws IOException, FSMException {
+    passivateEvacuateRehydrate(FSMPassivationStore.offHeap(TestFSM.codec));
+  }
+
+  @Test
+  public void testMapped() throws IOException, FSMException {
+    FSMPassivationStore store = FSMPassivationStore.mapped(file, TestFSM.codec);
+    passivateEvacuateRehydrate(store);
+    store.close();
+    assertFalse(file.exists());
+  }
+
+  private void passivateEvacuateRehydrate(FSMPassivationStore store) throws FSMException {
+    MultiFSM multiFSM = multifsm(store);
+    for (int i = 0; i < INSTANCES; i++) {
+      multiFSM.importFSM(TestFSM.export(multiFSM, i, i % 2 == 0 ? TestFSM.States.A : TestFSM.States.B, i, PADDING));
+    }
+    passivateAll(multiFSM);
+    assertTrue(multiFSM.instances().isEmpty());
+    assertEquals(INSTANCES, store.size());
+    assertEquals(INSTANCES, multiFSM.size());
+    long bytes = store.bytes();
+    assertEquals(INSTANCES / 4 * 1024, bytes);
+    //an already passivated instance is live
+    try {
+      multiFSM.importFSM(TestFSM.export(multiFSM, 0, TestFSM.States.A, 0, 0));
+      fail("passivated instance imported twice");
+    } catch (FSMException ex) {
+    }
+
+    //3 of every 4 - the last record of each chunk is evacuated and the chunk reused. The first evacuation takes a
+    //new chunk, none is free yet - from then on the store does not grow
+    long reused = 0;
+    for (int cycle = 0; cycle < CYCLES; cycle++) {
+      for (int i = 0; i < INSTANCES; i++) {
+        if (i % 4 != 3) {
+          TestFSM.hit(multiFSM, i);
+        }
+      }
+      assertEquals(INSTANCES / 4, store.size());
+      assertEquals(INSTANCES / 4 * 3, multiFSM.instances().size());
+      assertEquals((cycle + 1) * INSTANCES / 4 * 3, store.hits());
+      assertEquals(0, store.misses());
+      passivateAll(multiFSM);
+      assertEquals(INSTANCES, store.size());
+      if (cycle == 0) {
+        assertEquals(bytes + 1024, store.bytes());
+        reused = store.bytes();
+      }
+      assertEquals(reused, store.bytes());
+    }
+
+    //rehydrated on their next event, evacuated or not, in their state and with their internal state
+    for (int i = 0; i < INSTANCES; i++) {
+      TestFSM.toggle(multiFSM, i);
+    }
+    assertEquals(0, store.size());
+    assertEquals(INSTANCES, multiFSM.instances().size());
+    for (int i = 0; i < INSTANCES; i++) {
+      TestFSM.Id id = new TestFSM.Id(i);
+      assertEquals(i % 2 == 0 ? TestFSM.States.B : TestFSM.States.A, multiFSM.getFSMState(id));
+      assertEquals(i % 4 == 3 ? i + 1 : i + 1 + CYCLES, TestFSM.handled(multiFSM, i));
+      assertEquals(PADDING, TestFSM.padding(multiFSM, i));
+    }
+    //a new id starts an instance
+    TestFSM.hit(multiFSM, INSTANCES);
+    assertEquals(1, store.misses());
+  }
+
+  @Test
+  public void testSnapshotOfPassivated() throws IOException, FSMException {
+    MultiFSM multiFSM = multifsm(FSMPassivationStore.offHeap(TestFSM.codec));
+    for (int i = 0; i < INSTANCES; i++) {
+      multiFSM.importFSM(TestFSM.export(multiFSM, i, TestFSM.States.B, i, PADDING));
+    }
+    //half live, half passivated
+    for (FSMachine fsm : multiFSM.instances()) {
+      if (((TestFSM.Id) fsm.fsmId.baseId).id % 2 == 0) {
+        multiFSM.expire(fsm);
+      }
+    }
+    assertEquals(INSTANCES / 2, multiFSM.passivation().size());
+    assertEquals(INSTANCES, FSMSnapshot.write(multiFSM, file, TestFSM.codec));
+    //left in the store
+    assertEquals(INSTANCES / 2, multiFSM.passivation().size());
+
+    MultiFSM restored = TestFSM.multifsm(FSMBuilder.multiFSMConfig());
+    assertEquals(INSTANCES, FSMSnapshot.load(restored, file, TestFSM.codec, 2));
+    for (int i = 0; i < INSTANCES; i++) {
+      assertEquals(TestFSM.States.B, restored.getFSMState(new TestFSM.Id(i)));
+      assertEquals(i, TestFSM.handled(restored, i));
+    }
+  }
+
+  @Test
+  public void testExportRehydrates() throws FSMException {
+    MultiFSM multiFSM = multifsm(FSMPassivationStore.offHeap(TestFSM.codec));
+    multiFSM.importFSM(TestFSM.export(multiFSM, 1, TestFSM.States.B, 7, PADDING));
+    passivateAll(multiFSM);
+    assertTrue(multiFSM.activeFSM(new TestFSM.Id(1)));
+    FSMExport export = multiFSM.exportFSM(new TestFSM.Id(1));
+    assertEquals(TestFSM.States.B, export.state);
+    assertEquals(7, ((TestFSM.InternalState) export.is).handled);
+    assertTrue(multiFSM.isEmpty());
+    assertFalse(multiFSM.activeFSM(new TestFSM.Id(1)));
+  }
+}
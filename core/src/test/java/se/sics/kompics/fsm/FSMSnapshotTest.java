@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FSMSnapshotTest {
+
+  private static final int WINDOW = 64 << 20;
+
+  private File file;
+
+  @Before
+  public void setup() throws IOException {
+    file = File.createTempFile("fsm", ".snap");
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void testAcrossWindows() throws IOException, FSMException {
+    MultiFSM from = TestFSM.multifsm(FSMBuilder.multiFSMConfig());
+    //~80MB of 4KB records - the second window starts within the records
+    int instances = 20000;
+    for (int i = 0; i < instances; i++) {
+      from.importFSM(TestFSM.export(from, i, i % 2 == 0 ? TestFSM.States.A : TestFSM.States.B, i, 4000));
+    }
+    //larger than a window - mapped on its own, between regular ones
+    from.importFSM(TestFSM.export(from, instances, TestFSM.States.B, -1, WINDOW + 1));
+    from.importFSM(TestFSM.export(from, instances + 1, TestFSM.States.A, -2, 0));
+    assertEquals(instances + 2, FSMSnapshot.write(from, file, TestFSM.codec));
+    assertTrue(file.length() > 2L * WINDOW);
+
+    MultiFSM to = TestFSM.multifsm(FSMBuilder.multiFSMConfig());
+    //padding is checked byte by byte on decode
+    assertEquals(instances + 2, FSMSnapshot.load(to, file, TestFSM.codec, 4));
+    assertEquals(instances + 2, to.size());
+    for (int i = 0; i < instances; i++) {
+      TestFSM.Id id = new TestFSM.Id(i);
+      assertEquals(i % 2 == 0 ? TestFSM.States.A : TestFSM.States.B, to.getFSMState(id));
+      assertEquals(i, TestFSM.handled(to, i));
+      assertEquals(4000, TestFSM.padding(to, i));
+    }
+    assertEquals(TestFSM.States.B, to.getFSMState(new TestFSM.Id(instances)));
+    assertEquals(-1, TestFSM.handled(to, instances));
+    assertEquals(WINDOW + 1, TestFSM.padding(to, instances));
+    assertEquals(TestFSM.States.A, to.getFSMState(new TestFSM.Id(instances + 1)));
+    assertEquals(-2, TestFSM.handled(to, instances + 1));
+    //restored instances handle events as usual
+    TestFSM.toggle(to, 0);
+    assertEquals(TestFSM.States.B, to.getFSMState(new TestFSM.Id(0)));
+    assertEquals(1, TestFSM.handled(to, 0));
+  }
+
+  @Test
+  public void testEmpty() throws IOException, FSMException {
+    MultiFSM from = TestFSM.multifsm(FSMBuilder.multiFSMConfig());
+    assertEquals(0, FSMSnapshot.write(from, file, TestFSM.codec));
+    MultiFSM to = TestFSM.multifsm(FSMBuilder.multiFSMConfig());
+    assertEquals(0, FSMSnapshot.load(to, file, TestFSM.codec, 2));
+    assertTrue(to.isEmpty());
+  }
+
+  @Test
+  public void testTruncated() throws IOException, FSMException {
+    MultiFSM from = TestFSM.multifsm(FSMBuilder.multiFSMConfig());
+    for (int i = 0; i < 100; i++) {
+      from.importFSM(TestFSM.export(from, i, TestFSM.States.A, i, 10));
+    }
+    FSMSnapshot.write(from, file, TestFSM.codec);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(raf.length() - 1);
+    }
+    MultiFSM to = TestFSM.multifsm(FSMBuilder.multiFSMConfig());
+    try {
+      FSMSnapshot.load(to, file, TestFSM.codec, 2);
+      fail("truncated snapshot loaded");
+    } catch (FSMException ex) {
+    }
+    assertEquals(0, to.size());
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ * Drives the wheel through the ticks of its MultiFSM - 10ms resolution, 4 slots, so a turn is 40ms.
+ */
+public class FSMTimerWheelTest {
+
+  private static MultiFSM multifsm(long timeoutA, long timeoutB) throws FSMException {
+    return TestFSM.multifsm(FSMBuilder.multiFSMConfig().setTimerWheel(10, 4), timeoutA, timeoutB);
+  }
+
+  private static void tick(MultiFSM multiFSM, int ticks) {
+    for (int i = 0; i < ticks; i++) {
+      multiFSM.tick();
+    }
+  }
+
+  @Test
+  public void testTimeoutLongerThanOneTurn() throws FSMException {
+    MultiFSM multiFSM = multifsm(30, 100);
+    for (int i = 0; i < 10; i++) {
+      TestFSM.hit(multiFSM, i);
+    }
+    tick(multiFSM, 2);
+    assertEquals(0, TestFSM.timeouts(multiFSM));
+    //deadline 5 - the same slot as the deadline 13 of the instances moving to B at 3
+    for (int i = 10; i < 15; i++) {
+      TestFSM.hit(multiFSM, i);
+    }
+    tick(multiFSM, 1);
+    assertEquals(10, TestFSM.timeouts(multiFSM));
+    for (int i = 0; i < 10; i++) {
+      assertEquals(TestFSM.States.B, multiFSM.getFSMState(new TestFSM.Id(i)));
+    }
+    tick(multiFSM, 2);
+    //the slot fired only the instances due
+    assertEquals(15, TestFSM.timeouts(multiFSM));
+    assertEquals(15, multiFSM.size());
+    //the slot of deadline 13 comes round at 9 - too early
+    tick(multiFSM, 7);
+    assertEquals(15, TestFSM.timeouts(multiFSM));
+    assertEquals(15, multiFSM.size());
+    tick(multiFSM, 1);
+    assertEquals(25, TestFSM.timeouts(multiFSM));
+    assertEquals(5, multiFSM.size());
+    //B at 5 + 10
+    tick(multiFSM, 2);
+    assertEquals(30, TestFSM.timeouts(multiFSM));
+    assertEquals(0, multiFSM.size());
+  }
+
+  @Test
+  public void testResolutionRoundsUp() throws FSMException {
+    MultiFSM multiFSM = multifsm(1, 41);
+    TestFSM.hit(multiFSM, 0);
+    //shorter than a tick - fires on the next one
+    tick(multiFSM, 1);
+    assertEquals(TestFSM.States.B, multiFSM.getFSMState(new TestFSM.Id(0)));
+    //41ms is 5 ticks, one more than a turn
+    tick(multiFSM, 4);
+    assertEquals(1, multiFSM.size());
+    tick(multiFSM, 1);
+    assertEquals(0, multiFSM.size());
+  }
+
+  @Test
+  public void testCancelArmedTimer() throws FSMException {
+    MultiFSM multiFSM = multifsm(30, 100);
+    //all in the one slot of deadline 3
+    for (int i = 0; i < 10; i++) {
+      TestFSM.hit(multiFSM, i);
+    }
+    tick(multiFSM, 1);
+    //leaving A cancels its timeout - taken out of the middle and the ends of the slot list
+    for (int i = 0; i < 10; i += 3) {
+      TestFSM.toggle(multiFSM, i);
+    }
+    //killed
+    TestFSM.stop(multiFSM, 1);
+    TestFSM.stop(multiFSM, 8);
+    //exported
+    FSMExport export = multiFSM.exportFSM(new TestFSM.Id(4));
+    assertEquals(TestFSM.States.A, export.state);
+    tick(multiFSM, 2);
+    //2, 5 and 7 left in A
+    assertEquals(3, TestFSM.timeouts(multiFSM));
+    assertEquals(7, multiFSM.size());
+    assertFalse(multiFSM.activeFSM(new TestFSM.Id(1)));
+    for (int i : new int[]{0, 3, 6, 9}) {
+      assertEquals(TestFSM.States.B, multiFSM.getFSMState(new TestFSM.Id(i)));
+    }
+    //back to A at 3, before the B timeout armed at 1 runs out at 11
+    TestFSM.toggle(multiFSM, 0);
+    assertEquals(TestFSM.States.A, multiFSM.getFSMState(new TestFSM.Id(0)));
+    tick(multiFSM, 3);
+    //0 moved to B again at 6 - due at 16
+    assertEquals(4, TestFSM.timeouts(multiFSM));
+    tick(multiFSM, 5);
+    //3, 6, 9 killed at 11
+    assertEquals(7, TestFSM.timeouts(multiFSM));
+    assertEquals(4, multiFSM.size());
+    tick(multiFSM, 2);
+    //2, 5, 7 (B at 3) die at 13
+    assertEquals(10, TestFSM.timeouts(multiFSM));
+    assertEquals(1, multiFSM.size());
+    tick(multiFSM, 2);
+    assertEquals(1, multiFSM.size());
+    tick(multiFSM, 1);
+    assertEquals(11, TestFSM.timeouts(multiFSM));
+    assertEquals(0, multiFSM.size());
+    assertNull(multiFSM.exportFSM(new TestFSM.Id(0)));
+  }
+}
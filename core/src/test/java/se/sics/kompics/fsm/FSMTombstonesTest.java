@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class FSMTombstonesTest {
+
+  private static final long HOUR = 3600 * 1000;
+
+  private static TestFSM.Id id(int id) {
+    return new TestFSM.Id(id);
+  }
+
+  private static int contained(FSMTombstones tombstones, int from, int to) {
+    int contained = 0;
+    for (int i = from; i < to; i++) {
+      if (tombstones.contains(id(i))) {
+        contained++;
+      }
+    }
+    return contained;
+  }
+
+  @Test
+  public void testRotationOnWindowExpiry() throws InterruptedException {
+    FSMTombstones tombstones = new FSMTombstones(1000, 1000, 0.01);
+    for (int i = 0; i < 100; i++) {
+      tombstones.add(id(i));
+    }
+    assertEquals(100, contained(tombstones, 0, 100));
+    //one window on - moved to the previous generation
+    Thread.sleep(1200);
+    assertEquals(100, contained(tombstones, 0, 100));
+    tombstones.add(id(100));
+    //two windows on - dropped, the kill of the second window is kept
+    Thread.sleep(1100);
+    assertTrue(contained(tombstones, 0, 100) <= 5);
+    assertTrue(tombstones.contains(id(100)));
+  }
+
+  @Test
+  public void testIdleForTwoWindows() throws InterruptedException {
+    FSMTombstones tombstones = new FSMTombstones(200, 1000, 0.01);
+    for (int i = 0; i < 100; i++) {
+      tombstones.add(id(i));
+    }
+    //nothing killed since - both generations dropped at once
+    Thread.sleep(450);
+    assertTrue(contained(tombstones, 0, 100) <= 5);
+  }
+
+  @Test
+  public void testRotationOnExpectedKills() {
+    FSMTombstones tombstones = new FSMTombstones(HOUR, 100, 0.01);
+    for (int i = 0; i < 100; i++) {
+      tombstones.add(id(i));
+    }
+    //the 101st kill starts a new generation, well within the window
+    tombstones.add(id(100));
+    assertEquals(101, contained(tombstones, 0, 101));
+    for (int i = 101; i < 200; i++) {
+      tombstones.add(id(i));
+    }
+    assertEquals(200, contained(tombstones, 0, 200));
+    //the 201st drops the first 100
+    tombstones.add(id(200));
+    assertTrue(contained(tombstones, 0, 100) <= 5);
+    assertEquals(101, contained(tombstones, 100, 201));
+  }
+
+  @Test
+  public void testFalsePositiveRate() {
+    for (double fpp : new double[]{0.01, 0.001}) {
+      int kills = 10000;
+      FSMTombstones tombstones = new FSMTombstones(HOUR, kills, fpp);
+      for (int i = 0; i < kills; i++) {
+        tombstones.add(id(i));
+      }
+      //no false negatives
+      assertEquals(kills, contained(tombstones, 0, kills));
+      int probes = 1000000;
+      double rate = (double) contained(tombstones, kills, kills + probes) / probes;
+      assertTrue("fpp:" + fpp + " measured:" + rate, rate <= fpp);
+
+      //a full previous generation next to a full current one - each adds its own rate
+      for (int i = kills; i < 2 * kills; i++) {
+        tombstones.add(id(i));
+      }
+      assertEquals(2 * kills, contained(tombstones, 0, 2 * kills));
+      rate = (double) contained(tombstones, 2 * kills, 2 * kills + probes) / probes;
+      assertTrue("fpp:" + fpp + " measured with two generations:" + rate, rate <= 2 * fpp);
+    }
+  }
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import se.sics.kompics.ComponentProxy;
+import se.sics.kompics.Handler;
+import se.sics.kompics.KompicsEvent;
+import se.sics.kompics.PortType;
+import se.sics.kompics.fsm.handler.FSMBasicEventHandler;
+import se.sics.kompics.fsm.handler.FSMTimeoutHandler;
+import se.sics.kompics.fsm.id.FSMIdentifier;
+import se.sics.kompics.fsm.id.FSMIdentifierFactory;
+import se.sics.kompics.util.Identifier;
+
+/**
+ * Definition the core tests run: Hit starts an instance in A and stays, Toggle moves between A and B, Stop kills.
+ * Optional state timeouts move A to B and B to FINAL. The internal state is a counter of handled events and padding
+ * bytes, so that records of any size can be encoded.
+ */
+public class TestFSM {
+
+  public static final String NAME = "test-fsm";
+
+  public static enum States implements FSMStateName {
+    A, B
+  }
+
+  public static MultiFSM multifsm(FSMBuilder.MultiFSMConfig config) throws FSMException {
+    return multifsm(config, 0, 0);
+  }
+
+  /**
+   * @param timeoutA ms, 0 for none - A moves to B
+   * @param timeoutB ms, 0 for none - B moves to FINAL
+   */
+  public static MultiFSM multifsm(FSMBuilder.MultiFSMConfig config, long timeoutA, long timeoutB)
+    throws FSMException {
+    FSMBuilder.Transition a = FSMBuilder.structuralDef()
+      .onStart()
+        .nextStates(States.A)
+        .buildTransition()
+      .onState(States.A)
+        .nextStates(States.A, States.B)
+        .toFinal();
+    if (timeoutA > 0) {
+      a.timeout(timeoutA, Handlers.timeoutA);
+    }
+    FSMBuilder.Transition b = a.buildTransition()
+      .onState(States.B)
+        .nextStates(States.B, States.A)
+        .toFinal();
+    if (timeoutB > 0) {
+      b.timeout(timeoutB, Handlers.timeoutB);
+    }
+    FSMBuilder.SemanticDefinition semanticDef = FSMBuilder.semanticDef()
+      .positivePort(Port.class)
+        .basicEvent(Hit.class)
+          .subscribeOnStart(Handlers.start)
+          .subscribe(Handlers.hit, States.A, States.B)
+        .basicEvent(Toggle.class)
+          .subscribe(Handlers.toggle, States.A, States.B)
+        .basicEvent(Stop.class)
+          .subscribe(Handlers.stop, States.A, States.B)
+        .buildEvents()
+      .defaultFallback(null, null);
+    ExternalState es = new ExternalState();
+    es.setProxy(new Proxy().componentProxy());
+    MultiFSM multiFSM = FSMBuilder.multiFSM(fsmIdFactory(), NAME, b.buildTransition(), semanticDef, es,
+      new InternalState.Builder(), oexa, bidx, config);
+    multiFSM.setupHandlers();
+    return multiFSM;
+  }
+
+  private static synchronized FSMIdentifierFactory fsmIdFactory() throws FSMException {
+    FSMIdentifierFactory fsmIdFactory = FSMIdentifierFactory.DEFAULT;
+    try {
+      fsmIdFactory.getFSMDefId(NAME);
+    } catch (FSMException ex) {
+      fsmIdFactory.registerFSMDefId(NAME);
+    }
+    return fsmIdFactory;
+  }
+
+  public static void hit(MultiFSM multiFSM, int id) {
+    handle(multiFSM, new Hit(new Id(id)));
+  }
+
+  public static void toggle(MultiFSM multiFSM, int id) {
+    handle(multiFSM, new Toggle(new Id(id)));
+  }
+
+  public static void stop(MultiFSM multiFSM, int id) {
+    handle(multiFSM, new Stop(new Id(id)));
+  }
+
+  private static void handle(MultiFSM multiFSM, Event event) {
+    proxy(multiFSM).handler(event.getClass()).handle(event);
+  }
+
+  /**
+   * An instance in state, as if imported
+   */
+  public static FSMExport export(MultiFSM multiFSM, int id, States state, long handled, int padding) {
+    FSMIdentifier fsmId = multiFSM.fsmDef.getFsmId(new Id(id));
+    InternalState is = new InternalState(fsmId);
+    is.handled = handled;
+    is.padding = padding;
+    return new FSMExport(fsmId, state, is);
+  }
+
+  public static long handled(MultiFSM multiFSM, int id) {
+    return ((InternalState) multiFSM.getFSMInternalState(new Id(id))).handled;
+  }
+
+  public static int padding(MultiFSM multiFSM, int id) {
+    return ((InternalState) multiFSM.getFSMInternalState(new Id(id))).padding;
+  }
+
+  /**
+   * @return state timeouts fired
+   */
+  public static int timeouts(MultiFSM multiFSM) {
+    return proxy(multiFSM).timeouts;
+  }
+
+  private static Proxy proxy(MultiFSM multiFSM) {
+    return (Proxy) java.lang.reflect.Proxy.getInvocationHandler(multiFSM.proxy());
+  }
+
+  private static final OnFSMExceptionAction oexa = new OnFSMExceptionAction() {
+    @Override
+    public void handle(FSMException ex) {
+      throw new RuntimeException(ex);
+    }
+  };
+
+  private static final BaseIdExtractor bidx = new BaseIdExtractor() {
+    @Override
+    public Optional<Identifier> fromEvent(KompicsEvent event) throws FSMException {
+      if (event instanceof Event) {
+        return Optional.of(((Event) event).baseId);
+      }
+      return Optional.empty();
+    }
+  };
+
+  /**
+   * Id base ids, the handled counter and the padding - bytes derived from the id, checked on decode
+   */
+  public static final FSMInternalStateCodec<InternalState> codec = new FSMInternalStateCodec<InternalState>() {
+    @Override
+    public void encodeBaseId(Identifier baseId, ByteBuffer buf) {
+      buf.putInt(((Id) baseId).id);
+    }
+
+    @Override
+    public Identifier decodeBaseId(ByteBuffer buf) {
+      return new Id(buf.getInt());
+    }
+
+    @Override
+    public void encode(InternalState is, ByteBuffer buf) {
+      buf.putLong(is.handled);
+      buf.putInt(is.padding);
+      byte b = (byte) ((Id) is.fsmId.baseId).id;
+      for (int i = 0; i < is.padding; i++) {
+        buf.put(b++);
+      }
+    }
+
+    @Override
+    public InternalState decode(FSMIdentifier fsmId, ByteBuffer buf) {
+      InternalState is = new InternalState(fsmId);
+      is.handled = buf.getLong();
+      is.padding = buf.getInt();
+      byte b = (byte) ((Id) fsmId.baseId).id;
+      for (int i = 0; i < is.padding; i++) {
+        if (buf.get() != b++) {
+          throw new IllegalStateException("fsm:" + fsmId + " padding corrupt at:" + i);
+        }
+      }
+      return is;
+    }
+  };
+
+  public static class Id implements Identifier {
+
+    public final int id;
+
+    public Id(int id) {
+      this.id = id;
+    }
+
+    @Override
+    public int partition(int nrPartitions) {
+      return id % nrPartitions;
+    }
+
+    @Override
+    public int compareTo(Identifier o) {
+      return Integer.compare(id, ((Id) o).id);
+    }
+
+    @Override
+    public int hashCode() {
+      return id;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Id && ((Id) obj).id == id;
+    }
+
+    @Override
+    public String toString() {
+      return "" + id;
+    }
+  }
+
+  public static abstract class Event implements FSMEvent {
+
+    public final Identifier baseId;
+
+    public Event(Identifier baseId) {
+      this.baseId = baseId;
+    }
+  }
+
+  public static class Hit extends Event {
+
+    public Hit(Identifier baseId) {
+      super(baseId);
+    }
+  }
+
+  public static class Toggle extends Event {
+
+    public Toggle(Identifier baseId) {
+      super(baseId);
+    }
+  }
+
+  public static class Stop extends Event {
+
+    public Stop(Identifier baseId) {
+      super(baseId);
+    }
+  }
+
+  public static class Port extends PortType {
+    {
+      indication(Hit.class);
+      indication(Toggle.class);
+      indication(Stop.class);
+    }
+  }
+
+  public static class ExternalState implements FSMExternalState {
+
+    private ComponentProxy proxy;
+
+    @Override
+    public void setProxy(ComponentProxy proxy) {
+      this.proxy = proxy;
+    }
+
+    @Override
+    public ComponentProxy getProxy() {
+      return proxy;
+    }
+  }
+
+  public static class InternalState implements FSMInternalState {
+
+    private final FSMIdentifier fsmId;
+    long handled = 0;
+    int padding = 0;
+
+    private InternalState(FSMIdentifier fsmId) {
+      this.fsmId = fsmId;
+    }
+
+    @Override
+    public FSMIdentifier getFSMId() {
+      return fsmId;
+    }
+
+    public static class Builder implements FSMInternalStateBuilder {
+
+      @Override
+      public FSMInternalState newState(FSMIdentifier fsmId) {
+        return new InternalState(fsmId);
+      }
+    }
+  }
+
+  private static class Handlers {
+
+    static Proxy proxy(ExternalState es) {
+      return (Proxy) java.lang.reflect.Proxy.getInvocationHandler(es.proxy);
+    }
+
+    static FSMBasicEventHandler start = new FSMBasicEventHandler<ExternalState, InternalState, Hit>() {
+      @Override
+      public FSMStateName handle(FSMStateName state, ExternalState es, InternalState is, Hit event) {
+        is.handled++;
+        return States.A;
+      }
+    };
+
+    static FSMBasicEventHandler hit = new FSMBasicEventHandler<ExternalState, InternalState, Hit>() {
+      @Override
+      public FSMStateName handle(FSMStateName state, ExternalState es, InternalState is, Hit event) {
+        is.handled++;
+        return state;
+      }
+    };
+
+    static FSMBasicEventHandler toggle = new FSMBasicEventHandler<ExternalState, InternalState, Toggle>() {
+      @Override
+      public FSMStateName handle(FSMStateName state, ExternalState es, InternalState is, Toggle event) {
+        is.handled++;
+        return States.A.equals(state) ? States.B : States.A;
+      }
+    };
+
+    static FSMBasicEventHandler stop = new FSMBasicEventHandler<ExternalState, InternalState, Stop>() {
+      @Override
+      public FSMStateName handle(FSMStateName state, ExternalState es, InternalState is, Stop event) {
+        return FSMBasicStateNames.FINAL;
+      }
+    };
+
+    static FSMTimeoutHandler timeoutA = new FSMTimeoutHandler<ExternalState, InternalState>() {
+      @Override
+      public FSMStateName handle(FSMStateName state, ExternalState es, InternalState is) {
+        proxy(es).timeouts++;
+        return States.B;
+      }
+    };
+
+    static FSMTimeoutHandler timeoutB = new FSMTimeoutHandler<ExternalState, InternalState>() {
+      @Override
+      public FSMStateName handle(FSMStateName state, ExternalState es, InternalState is) {
+        proxy(es).timeouts++;
+        return FSMBasicStateNames.FINAL;
+      }
+    };
+  }
+
+  /**
+   * Stand-in for the component proxy, so that the handlers the MultiFSM subscribes can be driven directly. Ports are
+   * inert, triggers dropped. Counts the state timeouts fired.
+   */
+  private static class Proxy implements InvocationHandler {
+
+    private final Map<Class, Handler> handlers = new HashMap<>();
+    int timeouts = 0;
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      switch (method.getName()) {
+        case "subscribe":
+          if (args[0] instanceof Handler) {
+            Handler h = (Handler) args[0];
+            handlers.put(h.getEventType(), h);
+          }
+          return null;
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        case "toString":
+          return "TestProxy";
+        default:
+          Class type = method.getReturnType();
+          if (type.isInterface()) {
+            return java.lang.reflect.Proxy.newProxyInstance(type.getClassLoader(), new Class[]{type}, this);
+          }
+          return type == boolean.class ? (Object) false : null;
+      }
+    }
+
+    Handler handler(Class eventType) {
+      Handler h = handlers.get(eventType);
+      if (h == null) {
+        throw new IllegalStateException("no handler subscribed for event:" + eventType);
+      }
+      return h;
+    }
+
+    ComponentProxy componentProxy() {
+      return (ComponentProxy) java.lang.reflect.Proxy.newProxyInstance(ComponentProxy.class.getClassLoader(),
+        new Class[]{ComponentProxy.class}, this);
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class IncrementalHashMapTest {
+
+  @Test
+  public void testRemoveAndValuesWhileResizing() {
+    IncrementalHashMap<Integer, Integer> map = new IncrementalHashMap<>();
+    Map<Integer, Integer> expected = new HashMap<>();
+    int key = 0;
+    //128 old buckets take 8 operations to drain
+    while (!map.resizing() || map.size() < 60) {
+      key++;
+      map.put(key, key);
+      expected.put(key, key);
+    }
+    //the resize just started - a few removes leave it half done, chains spread over both bucket arrays
+    for (int k = 1; k <= key; k += key / 3) {
+      assertEquals(Integer.valueOf(k), map.remove(k));
+      expected.remove(k);
+    }
+    assertTrue(map.resizing());
+    assertValues(expected, map);
+    //back in the new array while the old one may still hold its neighbours
+    map.put(1, -1);
+    expected.put(1, -1);
+    assertTrue(map.resizing());
+    assertValues(expected, map);
+
+    while (map.resizing()) {
+      map.get(0);
+    }
+    assertValues(expected, map);
+  }
+
+  @Test
+  public void testCollidingKeysWhileResizing() {
+    IncrementalHashMap<Key, Integer> map = new IncrementalHashMap<>();
+    Map<Key, Integer> expected = new HashMap<>();
+    //7 chains, relinked whole into the new array
+    for (int i = 0; i < 100; i++) {
+      map.put(new Key(i), i);
+      expected.put(new Key(i), i);
+    }
+    assertTrue(map.resizing());
+    for (int i = 0; i < 100; i += 2) {
+      assertEquals(Integer.valueOf(i), map.remove(new Key(i)));
+      expected.remove(new Key(i));
+      assertNull(map.get(new Key(i)));
+      assertEquals(Integer.valueOf(i + 1), map.get(new Key(i + 1)));
+    }
+    assertValues(expected, map);
+    for (int i = 0; i < 100; i++) {
+      assertEquals(expected.get(new Key(i)), map.get(new Key(i)));
+    }
+  }
+
+  @Test
+  public void testAgainstHashMap() {
+    Random rand = new Random(1);
+    IncrementalHashMap<Integer, Integer> map = new IncrementalHashMap<>();
+    Map<Integer, Integer> expected = new HashMap<>();
+    boolean sawResize = false;
+    for (int i = 0; i < 200000; i++) {
+      Integer key = rand.nextInt(5000);
+      int op = rand.nextInt(10);
+      if (op < 5) {
+        assertEquals(expected.put(key, i), map.put(key, i));
+      } else if (op < 8) {
+        assertEquals(expected.remove(key), map.remove(key));
+      } else {
+        assertEquals(expected.containsKey(key), map.containsKey(key));
+      }
+      assertEquals(expected.size(), map.size());
+      sawResize |= map.resizing();
+    }
+    assertTrue(sawResize);
+    assertValues(expected, map);
+  }
+
+  @Test
+  public void testNulls() {
+    IncrementalHashMap<Integer, Integer> map = new IncrementalHashMap<>();
+    try {
+      map.put(null, 1);
+      fail("null key accepted");
+    } catch (NullPointerException ex) {
+    }
+    try {
+      map.put(1, null);
+      fail("null value accepted");
+    } catch (NullPointerException ex) {
+    }
+    assertTrue(map.isEmpty());
+    assertFalse(map.containsKey(1));
+  }
+
+  private static <K> void assertValues(Map<K, Integer> expected, IncrementalHashMap<K, Integer> map) {
+    List<Integer> values = map.values(new ArrayList<Integer>());
+    assertEquals(expected.size(), values.size());
+    Set<Integer> unique = new HashSet<>(values);
+    assertEquals(values.size(), unique.size());
+    assertEquals(new HashSet<>(expected.values()), unique);
+    assertEquals(expected.size(), map.size());
+  }
+
+  private static final class Key {
+
+    final int id;
+
+    Key(int id) {
+      this.id = id;
+    }
+
+    @Override
+    public int hashCode() {
+      return id % 7;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Key && ((Key) obj).id == id;
+    }
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class LongObjectMapTest {
+
+  //same hash as the map - home slot of a key in a table of 16
+  private static int slot16(long key) {
+    return (int) ((key * 0x9E3779B97F4A7C15L) >>> 60);
+  }
+
+  private static List<Long> keysHomingTo(int slot, int n) {
+    List<Long> keys = new ArrayList<>();
+    for (long key = 1; keys.size() < n; key++) {
+      if (slot16(key) == slot) {
+        keys.add(key);
+      }
+    }
+    return keys;
+  }
+
+  @Test
+  public void testBackwardShiftAcrossWrapAround() {
+    //the probe run starts in the last slot and wraps to the first ones: a1 at 15, a2 at 0, b at 1, a3 at 2
+    List<Long> a = keysHomingTo(15, 3);
+    long b = keysHomingTo(0, 1).get(0);
+    LongObjectMap<String> map = new LongObjectMap<>();
+    map.put(a.get(0), "a1");
+    map.put(a.get(1), "a2");
+    map.put(b, "b");
+    map.put(a.get(2), "a3");
+    assertFalse(map.resizing());
+
+    assertEquals("a1", map.remove(a.get(0)));
+    assertNull(map.get(a.get(0)));
+    assertEquals("a2", map.get(a.get(1)));
+    assertEquals("b", map.get(b));
+    assertEquals("a3", map.get(a.get(2)));
+
+    //a2 moved back over the wrap to 15 - removing it must pull b and a3 back again
+    assertEquals("a2", map.remove(a.get(1)));
+    assertEquals("b", map.get(b));
+    assertEquals("a3", map.get(a.get(2)));
+    assertEquals(2, map.size());
+
+    //b sits in its home slot, a3 must stay reachable from 15 after b is gone
+    assertEquals("b", map.remove(b));
+    assertEquals("a3", map.get(a.get(2)));
+    assertNull(map.get(b));
+    assertEquals(1, map.size());
+  }
+
+  @Test
+  public void testBackwardShiftKeepsEntriesInTheirHomeSlot() {
+    //b homes to 0 and is displaced to 1 by a2; c homes to 1 and is displaced to 2. Removing a1 at 15 moves all of them
+    List<Long> a = keysHomingTo(15, 2);
+    long b = keysHomingTo(0, 1).get(0);
+    long c = keysHomingTo(1, 1).get(0);
+    LongObjectMap<String> map = new LongObjectMap<>();
+    map.put(a.get(0), "a1");
+    map.put(a.get(1), "a2");
+    map.put(b, "b");
+    map.put(c, "c");
+
+    map.remove(a.get(0));
+    map.remove(a.get(1));
+    assertEquals("b", map.get(b));
+    assertEquals("c", map.get(c));
+    map.remove(b);
+    assertEquals("c", map.get(c));
+    assertTrue(map.containsKey(c));
+    assertEquals(1, map.size());
+  }
+
+  @Test
+  public void testRemoveAndValuesWhileResizing() {
+    LongObjectMap<Long> map = new LongObjectMap<>();
+    Map<Long, Long> expected = new HashMap<>();
+    long key = 0;
+    //a table of 256 takes 16 operations to drain
+    while (!map.resizing() || map.size() < 100) {
+      key++;
+      map.put(key, key);
+      expected.put(key, key);
+    }
+    //the resize just started - a few removes leave it half done, entries spread over both tables
+    for (long k = 1; k <= key; k += key / 4) {
+      assertEquals(Long.valueOf(k), map.remove(k));
+      expected.remove(k);
+    }
+    assertTrue(map.resizing());
+    assertValues(expected, map);
+    //put back a removed key - it must not come back twice once its old slot is drained
+    map.put(1, 1L);
+    expected.put(1L, 1L);
+    assertValues(expected, map);
+
+    while (map.resizing()) {
+      map.get(0);
+    }
+    assertValues(expected, map);
+  }
+
+  @Test
+  public void testAgainstHashMap() {
+    Random rand = new Random(1);
+    LongObjectMap<Long> map = new LongObjectMap<>();
+    Map<Long, Long> expected = new HashMap<>();
+    boolean sawResize = false;
+    for (int i = 0; i < 200000; i++) {
+      //a small key range so puts, removes and hits mix, keys spread over the sign bit
+      long key = rand.nextInt(5000) * 0x100000001L - 2500 * 0x100000001L;
+      int op = rand.nextInt(10);
+      if (op < 5) {
+        assertEquals(expected.put(key, (long) i), map.put(key, (long) i));
+      } else if (op < 8) {
+        assertEquals(expected.remove(key), map.remove(key));
+      } else {
+        assertEquals(expected.get(key), map.get(key));
+      }
+      assertEquals(expected.size(), map.size());
+      sawResize |= map.resizing();
+    }
+    assertTrue(sawResize);
+    assertValues(expected, map);
+    map.clear();
+    assertTrue(map.isEmpty());
+    assertFalse(map.resizing());
+    assertNull(map.get(0));
+  }
+
+  @Test
+  public void testReservedKey() {
+    LongObjectMap<String> map = new LongObjectMap<>();
+    try {
+      map.put(LongObjectMap.EMPTY, "x");
+      fail("reserved key accepted");
+    } catch (IllegalArgumentException ex) {
+    }
+    assertNull(map.get(LongObjectMap.EMPTY));
+    assertTrue(map.isEmpty());
+  }
+
+  private static void assertValues(Map<Long, Long> expected, LongObjectMap<Long> map) {
+    List<Long> values = map.values(new ArrayList<Long>());
+    assertEquals(expected.size(), values.size());
+    Set<Long> unique = new HashSet<>(values);
+    assertEquals(values.size(), unique.size());
+    assertEquals(new HashSet<>(expected.values()), unique);
+    assertEquals(expected.size(), map.size());
+  }
+}
@@ -13,7 +13,6 @@ import se.sics.kompics.KompicsEvent;
 import se.sics.kompics.Negative;
 import se.sics.kompics.PatternExtractor;
 import se.sics.kompics.Positive;
-import se.sics.kompics.fsm.BaseIdExtractor;
 import se.sics.kompics.fsm.FSMBuilder;
 import se.sics.kompics.fsm.FSMEvent;
 import se.sics.kompics.fsm.FSMException;
@@ -21,6 +20,7 @@ import se.sics.kompics.fsm.FSMExternalState;
 import se.sics.kompics.fsm.FSMInternalState;
 import se.sics.kompics.fsm.FSMInternalStateBuilder;
 import se.sics.kompics.fsm.FSMStateName;
+import se.sics.kompics.fsm.LongBaseIdExtractor;
 import se.sics.kompics.fsm.MultiFSM;
 import se.sics.kompics.fsm.OnFSMExceptionAction;
 import se.sics.kompics.fsm.handler.FSMBasicEventHandler;
@@ -66,7 +66,7 @@ public class PingFSM {
         .buildEvents();
   }
   
-  private static final BaseIdExtractor bidx = new BaseIdExtractor() {
+  private static final LongBaseIdExtractor bidx = new LongBaseIdExtractor() {
     @Override
     public Optional<Identifier> fromEvent(KompicsEvent event) throws FSMException {
       if (event instanceof Event) {
@@ -74,6 +74,19 @@ public class PingFSM {
       }
       return Optional.empty();
     }
+
+    @Override
+    public long keyFromEvent(KompicsEvent event) throws FSMException {
+      if (event instanceof Event) {
+        return key(((Event)event).getPingBaseFSMId());
+      }
+      return NO_ID;
+    }
+
+    @Override
+    public long key(Identifier baseId) {
+      return ((IntId)baseId).id;
+    }
   };
   
   private static final OnFSMExceptionAction oexa = new OnFSMExceptionAction() {
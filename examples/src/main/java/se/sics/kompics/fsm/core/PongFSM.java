@@ -12,7 +12,6 @@ import se.sics.kompics.ComponentProxy;
 import se.sics.kompics.KompicsEvent;
 import se.sics.kompics.Negative;
 import se.sics.kompics.PatternExtractor;
-import se.sics.kompics.fsm.BaseIdExtractor;
 import se.sics.kompics.fsm.FSMBuilder;
 import se.sics.kompics.fsm.FSMEvent;
 import se.sics.kompics.fsm.FSMException;
@@ -20,6 +19,7 @@ import se.sics.kompics.fsm.FSMExternalState;
 import se.sics.kompics.fsm.FSMInternalState;
 import se.sics.kompics.fsm.FSMInternalStateBuilder;
 import se.sics.kompics.fsm.FSMStateName;
+import se.sics.kompics.fsm.LongBaseIdExtractor;
 import se.sics.kompics.fsm.MultiFSM;
 import se.sics.kompics.fsm.OnFSMExceptionAction;
 import se.sics.kompics.fsm.handler.FSMBasicEventHandler;
@@ -62,7 +62,7 @@ public class PongFSM {
         .buildEvents();
   }
   
-  private static final BaseIdExtractor bidx = new BaseIdExtractor() {
+  private static final LongBaseIdExtractor bidx = new LongBaseIdExtractor() {
     @Override
     public Optional<Identifier> fromEvent(KompicsEvent event) throws FSMException {
       if (event instanceof PingFSM.Event) {
@@ -70,6 +70,19 @@ public class PongFSM {
       }
       return Optional.empty();
     }
+
+    @Override
+    public long keyFromEvent(KompicsEvent event) throws FSMException {
+      if (event instanceof PingFSM.Event) {
+        return key(((PongFSM.Event)event).getPongBaseFSMId());
+      }
+      return NO_ID;
+    }
+
+    @Override
+    public long key(Identifier baseId) {
+      return ((IntId)baseId).id;
+    }
   };
   
   private static final OnFSMExceptionAction oexa = new OnFSMExceptionAction() {
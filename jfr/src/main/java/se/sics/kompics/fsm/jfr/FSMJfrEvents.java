@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder events of fsm instances. Stack traces are off - the handler frames say nothing about the fsm, the
+ * fields do.
+ */
+public class FSMJfrEvents {
+
+  private static final String CATEGORY = "Kompics";
+  private static final String SUBCATEGORY = "FSM";
+
+  @Name("se.sics.kompics.fsm.Created")
+  @Label("FSM Created")
+  @Category({CATEGORY, SUBCATEGORY})
+  @StackTrace(false)
+  public static class Created extends Event {
+
+    @Label("Definition")
+    String fsmName;
+    @Label("FSM Id")
+    String fsmId;
+    @Label("State")
+    String state;
+  }
+
+  @Name("se.sics.kompics.fsm.Handler")
+  @Label("FSM Handler")
+  @Description("Handling of an event by an fsm instance")
+  @Category({CATEGORY, SUBCATEGORY})
+  @StackTrace(false)
+  public static class Handler extends Event {
+
+    @Label("Definition")
+    String fsmName;
+    @Label("FSM Id")
+    String fsmId;
+    @Label("State")
+    String state;
+    @Label("Event Type")
+    Class<?> eventType;
+    @Label("Outcome")
+    @Description("handled, fallback or unhandled")
+    String outcome;
+    @Label("Next State")
+    String nextState;
+  }
+
+  @Name("se.sics.kompics.fsm.Transition")
+  @Label("FSM Transition")
+  @Category({CATEGORY, SUBCATEGORY})
+  @StackTrace(false)
+  public static class Transition extends Event {
+
+    @Label("Definition")
+    String fsmName;
+    @Label("FSM Id")
+    String fsmId;
+    @Label("From")
+    String from;
+    @Label("To")
+    String to;
+    @Label("Event Type")
+    @Description("null for a state timeout")
+    Class<?> eventType;
+  }
+
+  @Name("se.sics.kompics.fsm.Fallback")
+  @Label("FSM Fallback")
+  @Description("Event handled by the fallback handler, as the state has none for it")
+  @Category({CATEGORY, SUBCATEGORY})
+  @StackTrace(false)
+  public static class Fallback extends Event {
+
+    @Label("Definition")
+    String fsmName;
+    @Label("FSM Id")
+    String fsmId;
+    @Label("State")
+    String state;
+    @Label("Event Type")
+    Class<?> eventType;
+  }
+
+  @Name("se.sics.kompics.fsm.Killed")
+  @Label("FSM Killed")
+  @Category({CATEGORY, SUBCATEGORY})
+  @StackTrace(false)
+  public static class Killed extends Event {
+
+    @Label("Definition")
+    String fsmName;
+    @Label("FSM Id")
+    String fsmId;
+    @Label("State")
+    String state;
+  }
+}
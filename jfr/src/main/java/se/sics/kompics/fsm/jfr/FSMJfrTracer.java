@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.jfr;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import se.sics.kompics.fsm.FSMStateName;
+import se.sics.kompics.fsm.FSMTracer;
+import se.sics.kompics.fsm.FSMachine;
+
+/**
+ * Emits FSMJfrEvents. Found by core with ServiceLoader.
+ * <p>
+ * A MultiFSM asks enabled() before every event: it reads a flag kept up to date by a FlightRecorderListener, so with
+ * no recording running the tracer costs a volatile read. While recording, each event type is still checked with
+ * isEnabled/shouldCommit before its fields are filled.
+ */
+public class FSMJfrTracer extends FSMTracer {
+
+  private static final String[] OUTCOMES = {"handled", "fallback", "unhandled"};
+
+  private volatile boolean recording = false;
+
+  public FSMJfrTracer() {
+    FlightRecorder.addListener(new FlightRecorderListener() {
+      @Override
+      public void recorderInitialized(FlightRecorder recorder) {
+        update(recorder);
+      }
+
+      @Override
+      public void recordingStateChanged(Recording recording) {
+        update(FlightRecorder.getFlightRecorder());
+      }
+    });
+  }
+
+  private void update(FlightRecorder recorder) {
+    boolean running = false;
+    for (Recording r : recorder.getRecordings()) {
+      if (r.getState() == RecordingState.RUNNING) {
+        running = true;
+        break;
+      }
+    }
+    recording = running;
+  }
+
+  @Override
+  public boolean enabled() {
+    return recording;
+  }
+
+  @Override
+  public Object handlerStart() {
+    FSMJfrEvents.Handler event = new FSMJfrEvents.Handler();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.begin();
+    return event;
+  }
+
+  @Override
+  public void handled(Object token, String fsmName, FSMachine fsm, FSMStateName from, Class eventType, int outcome,
+    FSMStateName to) {
+    if (token != null) {
+      FSMJfrEvents.Handler event = (FSMJfrEvents.Handler) token;
+      event.end();
+      if (event.shouldCommit()) {
+        event.fsmName = fsmName;
+        event.fsmId = fsm.fsmId.toString();
+        event.state = from.toString();
+        event.eventType = eventType;
+        event.outcome = OUTCOMES[outcome];
+        event.nextState = to.toString();
+        event.commit();
+      }
+    }
+    if (outcome == FSMachine.FALLBACK) {
+      FSMJfrEvents.Fallback event = new FSMJfrEvents.Fallback();
+      if (event.shouldCommit()) {
+        event.fsmName = fsmName;
+        event.fsmId = fsm.fsmId.toString();
+        event.state = from.toString();
+        event.eventType = eventType;
+        event.commit();
+      }
+    }
+    if (!from.equals(to)) {
+      transition(fsmName, fsm, from, to, eventType);
+    }
+  }
+
+  private void transition(String fsmName, FSMachine fsm, FSMStateName from, FSMStateName to, Class eventType) {
+    FSMJfrEvents.Transition event = new FSMJfrEvents.Transition();
+    if (event.shouldCommit()) {
+      event.fsmName = fsmName;
+      event.fsmId = fsm.fsmId.toString();
+      event.from = from.toString();
+      event.to = to.toString();
+      event.eventType = eventType;
+      event.commit();
+    }
+  }
+
+  @Override
+  public void created(String fsmName, FSMachine fsm) {
+    FSMJfrEvents.Created event = new FSMJfrEvents.Created();
+    if (event.shouldCommit()) {
+      event.fsmName = fsmName;
+      event.fsmId = fsm.fsmId.toString();
+      event.state = fsm.getState().toString();
+      event.commit();
+    }
+  }
+
+  @Override
+  public void timeout(String fsmName, FSMachine fsm, FSMStateName from, FSMStateName to) {
+    transition(fsmName, fsm, from, to, null);
+  }
+
+  @Override
+  public void killed(String fsmName, FSMachine fsm) {
+    FSMJfrEvents.Killed event = new FSMJfrEvents.Killed();
+    if (event.shouldCommit()) {
+      event.fsmName = fsmName;
+      event.fsmId = fsm.fsmId.toString();
+      event.state = fsm.getState().toString();
+      event.commit();
+    }
+  }
+}
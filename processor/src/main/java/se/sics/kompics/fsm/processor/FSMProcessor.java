@@ -0,0 +1,490 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * KompicsToolbox is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.fsm.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates the FSMDispatcher of every class annotated with FSM: a semanticDef() registering the OnEvent and
+ * OnPattern methods of the class, per port and event, a switch over handler numbers calling each of them directly and
+ * the final Basic and Pattern adapters of this one dispatcher. The state and event lookup stays with FSMState - see
+ * FSMDispatcher.
+ * <p>
+ * Everything FSMBuilder would only reject when the definition is built - unknown states, handlers registered twice
+ * for a state, the same event on two ports of the same charge, wrong signatures - is a compile error here.
+ */
+@SupportedAnnotationTypes({FSMProcessor.FSM, FSMProcessor.ON_EVENT, FSMProcessor.ON_PATTERN})
+public class FSMProcessor extends AbstractProcessor {
+
+  static final String FSM = "se.sics.kompics.fsm.annotation.FSM";
+  static final String ON_EVENT = "se.sics.kompics.fsm.annotation.OnEvent";
+  static final String ON_PATTERN = "se.sics.kompics.fsm.annotation.OnPattern";
+  private static final String START = "START";
+
+  private Elements elements;
+  private Types types;
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+    elements = processingEnv.getElementUtils();
+    types = processingEnv.getTypeUtils();
+    for (String handlerAnnotation : new String[]{ON_EVENT, ON_PATTERN}) {
+      TypeElement a = elements.getTypeElement(handlerAnnotation);
+      if (a == null) {
+        continue;
+      }
+      for (Element method : round.getElementsAnnotatedWith(a)) {
+        if (mirror(method.getEnclosingElement(), FSM) == null) {
+          error(method, "handler outside of a class annotated with @FSM");
+        }
+      }
+    }
+    TypeElement fsm = elements.getTypeElement(FSM);
+    if (fsm == null) {
+      return false;
+    }
+    for (Element e : round.getElementsAnnotatedWith(fsm)) {
+      Definition def = definition((TypeElement) e);
+      if (def != null) {
+        write(def);
+      }
+    }
+    return true;
+  }
+
+  //********************************************************************************************************************
+  private static class Handler {
+
+    final ExecutableElement method;
+    final boolean pattern;
+    final List<String> states = new ArrayList<>();
+    final boolean fallback;
+    //erasures of the parameters, for the casts of the call
+    final List<String> params = new ArrayList<>();
+    int number;
+
+    Handler(ExecutableElement method, boolean pattern, boolean fallback) {
+      this.method = method;
+      this.pattern = pattern;
+      this.fallback = fallback;
+    }
+  }
+
+  private static class Event {
+
+    final boolean pattern;
+    final String type;
+    //null for basic events
+    final String container;
+    final List<Handler> handlers = new ArrayList<>();
+    final Set<String> states = new HashSet<>();
+    boolean fallback = false;
+
+    Event(boolean pattern, String type, String container) {
+      this.pattern = pattern;
+      this.type = type;
+      this.container = container;
+    }
+  }
+
+  private static class Port {
+
+    final boolean negative;
+    final String type;
+    final Map<String, Event> events = new LinkedHashMap<>();
+
+    Port(boolean negative, String type) {
+      this.negative = negative;
+      this.type = type;
+    }
+  }
+
+  private static class Definition {
+
+    final TypeElement type;
+    final String pkg;
+    final String name;
+    final Map<String, Port> ports = new LinkedHashMap<>();
+    final List<Handler> basic = new ArrayList<>();
+    final List<Handler> pattern = new ArrayList<>();
+
+    Definition(TypeElement type, String pkg, String name) {
+      this.type = type;
+      this.pkg = pkg;
+      this.name = name;
+    }
+  }
+
+  //********************************************************************************************************************
+  private Definition definition(TypeElement type) {
+    if (type.getKind() != ElementKind.CLASS) {
+      error(type, "@FSM only applies to classes");
+      return null;
+    }
+    if (type.getNestingKind().isNested() && !type.getModifiers().contains(Modifier.STATIC)) {
+      error(type, "@FSM class has to be top level or static");
+      return null;
+    }
+    TypeMirror statesType = (TypeMirror) value(mirror(type, FSM), "states");
+    Element statesElement = types.asElement(statesType);
+    if (statesElement == null || statesElement.getKind() != ElementKind.ENUM) {
+      error(type, "@FSM states has to be an enum, found:" + statesType);
+      return null;
+    }
+    Set<String> constants = new HashSet<>();
+    for (Element c : statesElement.getEnclosedElements()) {
+      if (c.getKind() == ElementKind.ENUM_CONSTANT) {
+        constants.add(c.getSimpleName().toString());
+      }
+    }
+    String states = types.erasure(statesType).toString();
+
+    String pkg = elements.getPackageOf(type).getQualifiedName().toString();
+    StringBuilder name = new StringBuilder();
+    for (Element e = type; e.getKind() == ElementKind.CLASS; e = e.getEnclosingElement()) {
+      name.insert(0, name.length() == 0 ? e.getSimpleName() : e.getSimpleName() + "_");
+    }
+    Definition def = new Definition(type, pkg, name + "Dispatcher");
+
+    Map<String, String> eventPorts = new LinkedHashMap<>();
+    boolean ok = true;
+    for (Element e : type.getEnclosedElements()) {
+      if (e.getKind() != ElementKind.METHOD) {
+        continue;
+      }
+      AnnotationMirror onEvent = mirror(e, ON_EVENT);
+      AnnotationMirror onPattern = mirror(e, ON_PATTERN);
+      if (onEvent == null && onPattern == null) {
+        continue;
+      }
+      if (onEvent != null && onPattern != null) {
+        error(e, "handler is either @OnEvent or @OnPattern");
+        ok = false;
+        continue;
+      }
+      AnnotationMirror a = onEvent != null ? onEvent : onPattern;
+      Handler h = handler((ExecutableElement) e, onPattern != null, a, states, constants);
+      if (h == null) {
+        ok = false;
+        continue;
+      }
+      boolean negative = (Boolean) value(a, "negative");
+      String portType = types.erasure((TypeMirror) value(a, "port")).toString();
+      String eventType = h.params.get(3);
+      String container = h.pattern ? h.params.get(4) : null;
+      String eventKey = (negative ? "-" : "+") + eventType + (h.pattern ? "@" + container : "");
+      String eventPort = eventPorts.get(eventKey);
+      if (eventPort != null && !eventPort.equals(portType)) {
+        error(e, "event:" + eventType + " already handled on port:" + eventPort + " of the same charge");
+        ok = false;
+        continue;
+      }
+      eventPorts.put(eventKey, portType);
+
+      String portKey = (negative ? "-" : "+") + portType;
+      Port port = def.ports.get(portKey);
+      if (port == null) {
+        port = new Port(negative, portType);
+        def.ports.put(portKey, port);
+      }
+      Event event = port.events.get(eventKey);
+      if (event == null) {
+        event = new Event(h.pattern, eventType, container);
+        port.events.put(eventKey, event);
+      }
+      if (h.fallback) {
+        if (event.fallback) {
+          error(e, "second fallback for event:" + eventType);
+          ok = false;
+          continue;
+        }
+        event.fallback = true;
+      }
+      for (String state : h.states) {
+        if (!event.states.add(state)) {
+          error(e, "second handler for event:" + eventType + " in state:" + state);
+          ok = false;
+        }
+      }
+      List<Handler> numbered = h.pattern ? def.pattern : def.basic;
+      h.number = numbered.size();
+      numbered.add(h);
+      event.handlers.add(h);
+    }
+    if (def.ports.isEmpty() && ok) {
+      error(type, "@FSM class without @OnEvent or @OnPattern handlers");
+      return null;
+    }
+    return ok ? def : null;
+  }
+
+  private Handler handler(ExecutableElement method, boolean pattern, AnnotationMirror a, String states,
+    Set<String> constants) {
+    String kind = pattern ? "@OnPattern" : "@OnEvent";
+    if (!method.getModifiers().contains(Modifier.STATIC) || method.getModifiers().contains(Modifier.PRIVATE)) {
+      error(method, kind + " handler has to be static and not private");
+      return null;
+    }
+    List<? extends VariableElement> params = method.getParameters();
+    if (params.size() != (pattern ? 5 : 4)) {
+      error(method, kind + " handler takes (FSMStateName state, ES es, IS is, " + (pattern
+        ? "P payload, C container)" : "E event)"));
+      return null;
+    }
+    if (!types.isSameType(params.get(0).asType(), type("se.sics.kompics.fsm.FSMStateName"))
+      || !assignable(params.get(1).asType(), "se.sics.kompics.fsm.FSMExternalState")
+      || !assignable(params.get(2).asType(), "se.sics.kompics.fsm.FSMInternalState")
+      || !assignable(params.get(3).asType(), "se.sics.kompics.KompicsEvent")
+      || (pattern && !assignable(params.get(4).asType(), "se.sics.kompics.PatternExtractor"))) {
+      error(method, kind + " handler takes (FSMStateName state, ES extends FSMExternalState, "
+        + "IS extends FSMInternalState, " + (pattern ? "P extends KompicsEvent, C extends PatternExtractor)"
+          : "E extends KompicsEvent)"));
+      return null;
+    }
+    if (!assignable(method.getReturnType(), "se.sics.kompics.fsm.FSMStateName")) {
+      error(method, kind + " handler returns the next FSMStateName");
+      return null;
+    }
+    for (TypeMirror thrown : method.getThrownTypes()) {
+      if (!assignable(thrown, "se.sics.kompics.fsm.FSMException") && !assignable(thrown, "java.lang.RuntimeException")
+        && !assignable(thrown, "java.lang.Error")) {
+        error(method, kind + " handler can only throw FSMException, found:" + thrown);
+        return null;
+      }
+    }
+    boolean fallback = (Boolean) value(a, "fallback");
+    List<?> names = (List<?>) value(a, "states");
+    if (fallback == !names.isEmpty()) {
+      error(method, kind + " handler has either states or is the fallback");
+      return null;
+    }
+    Handler h = new Handler(method, pattern, fallback);
+    for (Object n : names) {
+      String name = (String) ((AnnotationValue) n).getValue();
+      if (START.equals(name)) {
+        h.states.add("FSMBasicStateNames.START");
+      } else if (constants.contains(name)) {
+        h.states.add(states + "." + name);
+      } else {
+        error(method, "state:" + name + " is neither START nor a constant of:" + states);
+        return null;
+      }
+    }
+    for (VariableElement p : params) {
+      TypeMirror t = types.erasure(p.asType());
+      if (t.getKind() != TypeKind.DECLARED) {
+        error(p, "parameter type:" + t + " is not a class");
+        return null;
+      }
+      h.params.add(((TypeElement) ((DeclaredType) t).asElement()).getQualifiedName().toString());
+    }
+    return h;
+  }
+
+  //********************************************************************************************************************
+  private void write(Definition def) {
+    String fsm = def.type.getQualifiedName().toString();
+    StringBuilder s = new StringBuilder();
+    if (!def.pkg.isEmpty()) {
+      s.append("package ").append(def.pkg).append(";\n\n");
+    }
+    s.append("import se.sics.kompics.KompicsEvent;\n");
+    s.append("import se.sics.kompics.PatternExtractor;\n");
+    s.append("import se.sics.kompics.fsm.FSMBasicStateNames;\n");
+    s.append("import se.sics.kompics.fsm.FSMBuilder;\n");
+    s.append("import se.sics.kompics.fsm.FSMDispatcher;\n");
+    s.append("import se.sics.kompics.fsm.FSMException;\n");
+    s.append("import se.sics.kompics.fsm.FSMExternalState;\n");
+    s.append("import se.sics.kompics.fsm.FSMInternalState;\n");
+    s.append("import se.sics.kompics.fsm.FSMStateName;\n\n");
+    s.append("/**\n");
+    s.append(" * Generated by ").append(FSMProcessor.class.getName()).append(" from ").append(fsm)
+      .append(" - do not edit.\n");
+    s.append(" */\n");
+    s.append("public final class ").append(def.name).append(" extends FSMDispatcher {\n\n");
+    s.append("  private static final ").append(def.name).append(" INSTANCE = new ").append(def.name).append("();\n\n");
+    s.append("  private ").append(def.name).append("() {\n");
+    s.append("  }\n\n");
+
+    s.append("  /**\n");
+    s.append("   * @return the handlers of ").append(fsm).append(" - the default fallbacks can still be set on it\n");
+    s.append("   */\n");
+    s.append("  public static FSMBuilder.SemanticDefinition semanticDef() throws FSMException {\n");
+    s.append("    FSMBuilder.SemanticDefinition def = FSMBuilder.semanticDef();\n");
+    for (Port port : def.ports.values()) {
+      s.append("    def.").append(port.negative ? "negativePort" : "positivePort").append("(").append(port.type)
+        .append(".class)\n");
+      for (Event event : port.events.values()) {
+        if (event.pattern) {
+          s.append("      .patternEvent(").append(event.type).append(".class, ").append(event.container)
+            .append(".class)\n");
+        } else {
+          s.append("      .basicEvent(").append(event.type).append(".class)\n");
+        }
+        for (Handler h : event.handlers) {
+          String handler = (h.pattern ? "new Pattern(" : "new Basic(") + h.number + ")";
+          if (h.fallback) {
+            s.append("        .fallback(").append(handler).append(")\n");
+          } else {
+            s.append("        .subscribe(").append(handler);
+            for (String state : h.states) {
+              s.append(", ").append(state);
+            }
+            s.append(")\n");
+          }
+        }
+      }
+      s.append("      .buildEvents();\n");
+    }
+    s.append("    return def;\n");
+    s.append("  }\n\n");
+
+    s.append("  @Override\n");
+    s.append("  @SuppressWarnings(\"unchecked\")\n");
+    s.append("  protected FSMStateName handleBasic(int handler, FSMStateName state, FSMExternalState es,\n");
+    s.append("    FSMInternalState is, KompicsEvent event) throws FSMException {\n");
+    s.append("    switch (handler) {\n");
+    for (Handler h : def.basic) {
+      call(s, fsm, h, "event");
+    }
+    s.append("      default:\n");
+    s.append("        throw new IllegalArgumentException(\"basic handler:\" + handler);\n");
+    s.append("    }\n");
+    s.append("  }\n\n");
+
+    s.append("  @Override\n");
+    s.append("  @SuppressWarnings(\"unchecked\")\n");
+    s.append("  protected FSMStateName handlePattern(int handler, FSMStateName state, FSMExternalState es,\n");
+    s.append("    FSMInternalState is, KompicsEvent payload, PatternExtractor container) throws FSMException {\n");
+    s.append("    switch (handler) {\n");
+    for (Handler h : def.pattern) {
+      call(s, fsm, h, "payload", "container");
+    }
+    s.append("      default:\n");
+    s.append("        throw new IllegalArgumentException(\"pattern handler:\" + handler);\n");
+    s.append("    }\n");
+    s.append("  }\n\n");
+
+    s.append("  private static final class Basic extends BasicHandler {\n\n");
+    s.append("    Basic(int handler) {\n");
+    s.append("      super(handler);\n");
+    s.append("    }\n\n");
+    s.append("    @Override\n");
+    s.append("    public FSMStateName handle(FSMStateName state, FSMExternalState es, FSMInternalState is,\n");
+    s.append("      KompicsEvent event) throws FSMException {\n");
+    s.append("      return INSTANCE.handleBasic(handler, state, es, is, event);\n");
+    s.append("    }\n");
+    s.append("  }\n\n");
+
+    s.append("  private static final class Pattern extends PatternHandler {\n\n");
+    s.append("    Pattern(int handler) {\n");
+    s.append("      super(handler);\n");
+    s.append("    }\n\n");
+    s.append("    @Override\n");
+    s.append("    public FSMStateName handle(FSMStateName state, FSMExternalState es, FSMInternalState is,\n");
+    s.append("      KompicsEvent payload, PatternExtractor container) throws FSMException {\n");
+    s.append("      return INSTANCE.handlePattern(handler, state, es, is, payload, container);\n");
+    s.append("    }\n");
+    s.append("  }\n");
+    s.append("}\n");
+
+    String qualifiedName = def.pkg.isEmpty() ? def.name : def.pkg + "." + def.name;
+    try {
+      JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, def.type);
+      try (Writer w = file.openWriter()) {
+        w.write(s.toString());
+      }
+    } catch (IOException ex) {
+      error(def.type, "can't write:" + qualifiedName + " - " + ex);
+    }
+  }
+
+  private void call(StringBuilder s, String fsm, Handler h, String... events) {
+    s.append("      case ").append(h.number).append(":\n");
+    s.append("        return ").append(fsm).append(".").append(h.method.getSimpleName()).append("(state, (")
+      .append(h.params.get(1)).append(") es, (").append(h.params.get(2)).append(") is");
+    for (int i = 0; i < events.length; i++) {
+      s.append(", (").append(h.params.get(3 + i)).append(") ").append(events[i]);
+    }
+    s.append(");\n");
+  }
+
+  //********************************************************************************************************************
+  private TypeMirror type(String name) {
+    return elements.getTypeElement(name).asType();
+  }
+
+  private boolean assignable(TypeMirror t, String to) {
+    return types.isAssignable(types.erasure(t), types.erasure(type(to)));
+  }
+
+  private static AnnotationMirror mirror(Element e, String annotation) {
+    for (AnnotationMirror m : e.getAnnotationMirrors()) {
+      if (((TypeElement) m.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotation)) {
+        return m;
+      }
+    }
+    return null;
+  }
+
+  private Object value(AnnotationMirror m, String name) {
+    for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e
+      : elements.getElementValuesWithDefaults(m).entrySet()) {
+      if (e.getKey().getSimpleName().contentEquals(name)) {
+        return e.getValue().getValue();
+      }
+    }
+    return null;
+  }
+
+  private void error(Element e, String msg) {
+    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, msg, e);
+  }
+}